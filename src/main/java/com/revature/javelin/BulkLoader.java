@@ -0,0 +1,252 @@
+package com.revature.javelin;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import com.revature.javelin.exceptions.InvalidColumnsException;
+import com.revature.javelin.exceptions.ResourcePersistenceException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.core.BaseConnection;
+
+/**
+ * Loads large numbers of {@code Model} objects into their table as fast
+ * as the database allows. On PostgreSQL the rows are streamed as CSV
+ * through one {@code COPY ... FROM STDIN}, which skips the planning and
+ * round trip of every single {@code INSERT}. On other databases they are
+ * sent as multi-row {@code INSERT ... VALUES (...), (...)} statements of
+ * {@code Setup.setBatchSize()} rows each.
+ * <pre>
+ * BulkLoader&lt;User&gt; loader = BulkLoader.into(User.class, "id", "name", "age");
+ * BulkLoader.Result result = loader.load(users);
+ * </pre>
+ * A load runs in one transaction, or joins the one running on this
+ * thread, so either every row is loaded or none. Objects are only read
+ * and a missing column is loaded as {@code null}. A loader holds no
+ * state between loads, so it can be kept and used from many threads.
+ * @param <T> object inheriting from {@code Model}
+ */
+public final class BulkLoader<T extends Model> {
+
+    private static final Logger logger = LogManager.getLogger(BulkLoader.class);
+
+    /** The most parameters PostgreSQL allows in one statement. */
+    private static final int MAX_PARAMETERS = 32767;
+
+    /** Characters of CSV collected before they are sent to {@code COPY}. */
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final String tableName;
+    private final String[] columns;
+    /** Upper case column names, as stored in {@code fieldsAndValues}. */
+    private final String[] keys;
+
+    private BulkLoader(String tableName, String[] columns) {
+        this.tableName = tableName;
+        this.columns = columns;
+        this.keys = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            keys[i] = columns[i].toUpperCase();
+        }
+    }
+
+    /**
+     * Defines a loader for the table of {@code clazz}.
+     * @param <T> object inheriting from {@code Model}
+     * @param clazz the {@code Class} of the objects to load
+     * @param columns the columns to load from each object
+     * @return the loader
+     * @throws InvalidColumnsException if no column is given or a
+     *      column name is invalid
+     */
+    public static <T extends Model> BulkLoader<T> into(Class<T> clazz, String... columns) {
+        if (columns.length == 0) {
+            throw new InvalidColumnsException("No columns to load");
+        }
+        for (String column : columns) {
+            SqlBuilder.sanitizeColumn(column);
+        }
+        return new BulkLoader<>(Model.tableNameOf(clazz), columns.clone());
+    }
+
+    /**
+     * Loads every object of {@code models}. Objects are read one at a
+     * time as they are sent, so {@code models} may be a lazy source
+     * that does not fit in memory, such as {@code stream::iterator}.
+     * @param models the objects to insert
+     * @return how many rows were loaded and how fast
+     * @throws ResourcePersistenceException if the table does not exist
+     *      or the rows could not be loaded, in which case none are
+     */
+    public Result load(Iterable<? extends T> models) {
+        long start = System.nanoTime();
+        Result[] result = new Result[1];
+        try {
+            Setup.inTransaction(session -> result[0] = load(session.getConnection(), models.iterator(), start));
+        } catch (SQLException e) {
+            throw new ResourcePersistenceException("Could not load " + tableName + ": " + e.getMessage(), e);
+        }
+        logger.info("Loaded " + tableName + ": " + result[0]);
+        return result[0];
+    }
+
+    private Result load(Connection conn, Iterator<? extends T> models, long start) throws SQLException {
+        SqlExecutor.checkTable(conn, tableName);
+        boolean copy = conn.isWrapperFor(BaseConnection.class);
+        try {
+            long rows = copy ? copy(conn.unwrap(BaseConnection.class), models) : insert(conn, models);
+            Setup.markWrite();
+            return new Result(rows, System.nanoTime() - start, copy);
+        } catch (SQLException e) {
+            Transactions.recordFailure(e);
+            throw e;
+        } finally {
+            TableVersions.written(tableName);
+        }
+    }
+
+    /**
+     * Streams the objects through {@code COPY} in CSV format.
+     */
+    private long copy(BaseConnection conn, Iterator<? extends T> models) throws SQLException {
+        CopyIn copy = new CopyManager(conn).copyIn(SqlBuilder.copyIn(tableName, columns));
+        try {
+            StringBuilder csv = new StringBuilder(COPY_BUFFER_SIZE + 1024);
+            long rows = 0;
+            while (models.hasNext()) {
+                appendCsv(csv, models.next().getFieldsAndValues());
+                rows++;
+                if (csv.length() >= COPY_BUFFER_SIZE) {
+                    write(copy, csv);
+                }
+            }
+            write(copy, csv);
+            copy.endCopy();
+            return rows;
+        } finally {
+            if (copy.isActive()) {
+                copy.cancelCopy();
+            }
+        }
+    }
+
+    private void appendCsv(StringBuilder csv, HashMap<String, Object> values) {
+        for (int i = 0; i < keys.length; i++) {
+            if (i != 0) {
+                csv.append(',');
+            }
+            Object value = values.get(keys[i]);
+            // An unquoted empty value is NULL, a quoted one an empty string
+            if (value instanceof byte[]) {
+                appendHex(csv, (byte[]) value);
+            } else if (value != null) {
+                String text = value.toString();
+                csv.append('"');
+                for (int c = 0; c < text.length(); c++) {
+                    char ch = text.charAt(c);
+                    if (ch == '"') {
+                        csv.append('"');
+                    }
+                    csv.append(ch);
+                }
+                csv.append('"');
+            }
+        }
+        csv.append('\n');
+    }
+
+    /**
+     * Writes {@code bytes} in the hex format {@code bytea} reads.
+     */
+    private static void appendHex(StringBuilder csv, byte[] bytes) {
+        final String digits = "0123456789abcdef";
+        csv.append("\\x");
+        for (byte b : bytes) {
+            csv.append(digits.charAt((b >> 4) & 0xf)).append(digits.charAt(b & 0xf));
+        }
+    }
+
+    private static void write(CopyIn copy, StringBuilder csv) throws SQLException {
+        if (csv.length() > 0) {
+            byte[] bytes = csv.toString().getBytes(StandardCharsets.UTF_8);
+            copy.writeToCopy(bytes, 0, bytes.length);
+            csv.setLength(0);
+        }
+    }
+
+    /**
+     * Sends the objects as multi-row {@code INSERT} statements. Every
+     * full chunk uses the same SQL, so its statement is prepared once
+     * per connection.
+     */
+    private long insert(Connection conn, Iterator<? extends T> models) throws SQLException {
+        int chunk = Math.max(1, Math.min(Setup.getBatchSize(), MAX_PARAMETERS / columns.length));
+        String chunkSql = SqlBuilder.insertRows(tableName, columns, chunk);
+        List<Object> params = new ArrayList<>(chunk * columns.length);
+        long rows = 0;
+        int inChunk = 0;
+        while (models.hasNext()) {
+            HashMap<String, Object> values = models.next().getFieldsAndValues();
+            for (String key : keys) {
+                params.add(values.get(key));
+            }
+            rows++;
+            if (++inChunk == chunk) {
+                SqlExecutor.executeUpdate(conn, chunkSql, params);
+                params.clear();
+                inChunk = 0;
+            }
+        }
+        if (inChunk != 0) {
+            SqlExecutor.executeUpdate(conn, SqlBuilder.insertRows(tableName, columns, inChunk), params);
+        }
+        return rows;
+    }
+
+    /**
+     * How many rows a load wrote and how long it took.
+     */
+    public static final class Result {
+        private final long rows;
+        private final long nanos;
+        private final boolean copy;
+
+        private Result(long rows, long nanos, boolean copy) {
+            this.rows = rows;
+            this.nanos = nanos;
+            this.copy = copy;
+        }
+
+        public long getRows() { return rows; }
+
+        public long getMillis() { return nanos / 1_000_000; }
+
+        /**
+         * @return rows loaded per second, counting everything from
+         *      borrowing the connection to the commit
+         */
+        public double getRowsPerSecond() {
+            return nanos == 0 ? rows : rows * 1_000_000_000.0 / nanos;
+        }
+
+        /**
+         * @return {@code true} if the rows were sent with {@code COPY},
+         *      {@code false} if with multi-row {@code INSERT} statements
+         */
+        public boolean isCopy() { return copy; }
+
+        @Override
+        public String toString() {
+            return rows + " rows in " + getMillis() + " ms (" + (long) getRowsPerSecond() + " rows/s, " +
+                (copy ? "COPY" : "INSERT") + ")";
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.revature.javelin;
+
+/**
+ * How well a cache did since it was created. Returned by
+ * {@code EntityCache.getStats()} and {@code QueryCache.getStats()}.
+ */
+public final class CacheStats {
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long size;
+
+    /**
+     * @param hits lookups answered from the cache
+     * @param misses lookups that went to the database
+     * @param evictions entries dropped to stay within size or
+     *      because they were too old
+     * @param size entries held now, rows or query results
+     */
+    public CacheStats(long hits, long misses, long evictions, long size) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.size = size;
+    }
+
+    public long getHits() { return hits; }
+
+    public long getMisses() { return misses; }
+
+    public long getEvictions() { return evictions; }
+
+    public long getSize() { return size; }
+
+    /**
+     * @return the share of lookups answered from the cache, or 0 if
+     *      there were none
+     */
+    public double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return hits + " hits, " + misses + " misses, " + evictions + " evictions, " + size + " entries";
+    }
+}
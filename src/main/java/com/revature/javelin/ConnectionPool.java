@@ -0,0 +1,369 @@
+package com.revature.javelin;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A bounded pool of JDBC {@code Connection}s. Connections are
+ * borrowed for a single operation and given back with
+ * {@code release()}. The pool never holds more than {@code maxSize}
+ * connections, keeps at least {@code minSize} open, closes connections
+ * that sit idle longer than {@code idleTimeout} and validates idle
+ * connections before handing them out again. Each connection
+ * keeps its own {@code StatementCache} for as long as it is open.
+ */
+final class ConnectionPool {
+
+    /**
+     * Opens new physical connections for the pool.
+     */
+    interface ConnectionFactory {
+        Connection create() throws SQLException;
+    }
+
+    /**
+     * Idle connections used more recently than this are handed out
+     * without a validation round trip.
+     */
+    private static final long VALIDATION_BYPASS_MILLIS = 500;
+
+    private static final Logger logger = LogManager.getLogger(ConnectionPool.class);
+
+    private final ConnectionFactory factory;
+    private final int minSize;
+    private final int maxSize;
+    private final long borrowTimeout;
+    private final long idleTimeout;
+    private final int validationTimeout;
+    private final int statementCacheSize;
+
+    /**
+     * Idle connections, most recently used first, so that the
+     * least used ones reach the idle timeout and get evicted.
+     */
+    private final LinkedBlockingDeque<PooledEntry> idle = new LinkedBlockingDeque<>();
+    private final Map<Connection, PooledEntry> borrowed = new IdentityHashMap<>();
+    private final Semaphore permits;
+    private final ScheduledExecutorService evictor;
+
+    private volatile String schema = null;
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a pool. No connections are opened until {@code fill()}
+     * or {@code borrow()} is called.
+     * @param factory opens new physical connections
+     * @param minSize number of connections kept open while idle
+     * @param maxSize maximum number of open connections
+     * @param borrowTimeout milliseconds to wait for a free connection
+     * @param idleTimeout milliseconds an idle connection above
+     *      {@code minSize} is kept before being closed
+     * @param validationTimeout seconds to wait for {@code Connection.isValid()}
+     * @param statementCacheSize most prepared statements cached per
+     *      connection, or 0 to not cache them
+     */
+    ConnectionPool(ConnectionFactory factory, int minSize, int maxSize,
+            long borrowTimeout, long idleTimeout, int validationTimeout, int statementCacheSize) {
+        if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size: min " + minSize + ", max " + maxSize);
+        }
+        this.factory = factory;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.borrowTimeout = borrowTimeout;
+        this.idleTimeout = idleTimeout;
+        this.validationTimeout = validationTimeout;
+        this.statementCacheSize = statementCacheSize;
+        this.permits = new Semaphore(maxSize, true);
+
+        evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "javelin-pool-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000, idleTimeout / 2);
+        evictor.scheduleWithFixedDelay(this::evict, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Opens connections until at least {@code minSize} are open.
+     * @throws SQLException if a connection could not be opened
+     */
+    void fill() throws SQLException {
+        fill(minSize);
+    }
+
+    /**
+     * Opens connections until at least {@code count} are open, but
+     * never more than {@code maxSize}.
+     * @param count number of connections that should be open
+     * @throws SQLException if a connection could not be opened
+     */
+    synchronized void fill(int count) throws SQLException {
+        count = Math.min(count, maxSize);
+        while (!closed && size() < count) {
+            if (!permits.tryAcquire()) {
+                return;
+            }
+            try {
+                idle.offerLast(open());
+            } finally {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * Takes a connection out of the pool, opening a new one if no
+     * idle connection is available and the pool is not full. Waits
+     * at most {@code borrowTimeout} milliseconds for a connection to
+     * be released.
+     * @return a connection that must be given back with {@code release()}
+     * @throws SQLException if the pool is closed, no connection became
+     *      free in time or a new connection could not be opened
+     */
+    Connection borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        try {
+            if (!permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timed out after " + borrowTimeout +
+                    "ms waiting for a connection, all " + maxSize + " are in use");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", e);
+        }
+
+        try {
+            PooledEntry entry;
+            while ((entry = idle.pollFirst()) != null) {
+                if (isUsable(entry)) {
+                    break;
+                }
+                logger.info("Discarding broken pooled connection");
+                closeQuietly(entry);
+            }
+            if (entry == null) {
+                entry = open();
+            }
+            applySchema(entry);
+            synchronized (borrowed) {
+                borrowed.put(entry.conn, entry);
+            }
+            return entry.conn;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Gives a borrowed connection back to the pool. Any open
+     * transaction is rolled back and autocommit is restored. Closed
+     * connections are dropped from the pool.
+     * @param conn a connection returned by {@code borrow()}
+     */
+    void release(Connection conn) {
+        if (conn == null) {
+            return;
+        }
+        PooledEntry entry;
+        synchronized (borrowed) {
+            entry = borrowed.remove(conn);
+        }
+        if (entry == null) {
+            logger.warn("Released a connection that does not belong to this pool");
+            return;
+        }
+        try {
+            if (closed || conn.isClosed()) {
+                closeQuietly(entry);
+                return;
+            }
+            if (!conn.getAutoCommit()) {
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+            entry.lastUsed = System.currentTimeMillis();
+            idle.offerFirst(entry);
+        } catch (SQLException e) {
+            logger.warn("Dropping connection that could not be reset: " + e.getMessage());
+            closeQuietly(entry);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * @param conn any connection
+     * @return {@code true} if {@code conn} is currently borrowed from this pool
+     */
+    boolean owns(Connection conn) {
+        synchronized (borrowed) {
+            return borrowed.containsKey(conn);
+        }
+    }
+
+    /**
+     * @param conn a connection borrowed from this pool
+     * @return the statement cache of {@code conn}, or {@code null} if
+     *      it is not borrowed from this pool or caching is turned off
+     */
+    StatementCache statementCache(Connection conn) {
+        PooledEntry entry;
+        synchronized (borrowed) {
+            entry = borrowed.get(conn);
+        }
+        return entry == null ? null : entry.statements;
+    }
+
+    /**
+     * Changes the schema used by every connection in the pool. Idle
+     * connections are changed right away, borrowed ones the next
+     * time they are handed out.
+     * @param schema the name of the schema in which to work
+     * @throws SQLException if the schema could not be set
+     */
+    void setSchema(String schema) throws SQLException {
+        this.schema = schema;
+        for (PooledEntry entry : idle) {
+            applySchema(entry);
+        }
+    }
+
+    /**
+     * Closes every connection, including borrowed ones, and stops
+     * the eviction thread. The pool can not be used afterwards.
+     */
+    void close() {
+        closed = true;
+        evictor.shutdownNow();
+        PooledEntry entry;
+        while ((entry = idle.pollFirst()) != null) {
+            closeQuietly(entry);
+        }
+        synchronized (borrowed) {
+            for (PooledEntry borrowedEntry : borrowed.values()) {
+                closeQuietly(borrowedEntry);
+            }
+        }
+    }
+
+    /**
+     * @return the number of open connections, idle or borrowed
+     */
+    int size() {
+        synchronized (borrowed) {
+            return idle.size() + borrowed.size();
+        }
+    }
+
+    /**
+     * @return the number of connections waiting in the pool
+     */
+    int idleCount() {
+        return idle.size();
+    }
+
+    int getMaxSize() { return maxSize; }
+
+    boolean isClosed() { return closed; }
+
+    /**
+     * Closes idle connections that have not been used within
+     * {@code idleTimeout} while more than {@code minSize} are open,
+     * then tops the pool back up to {@code minSize}.
+     */
+    void evict() {
+        if (closed) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - idleTimeout;
+        Iterator<PooledEntry> it = idle.descendingIterator();
+        while (it.hasNext() && size() > minSize) {
+            PooledEntry entry = it.next();
+            if (entry.lastUsed < cutoff && idle.remove(entry)) {
+                logger.info("Evicting idle connection");
+                closeQuietly(entry);
+            }
+        }
+        try {
+            fill();
+        } catch (SQLException e) {
+            logger.warn("Could not refill connection pool: " + e.getMessage());
+        }
+    }
+
+    private PooledEntry open() throws SQLException {
+        PooledEntry entry = new PooledEntry(factory.create(), statementCacheSize);
+        try {
+            applySchema(entry);
+        } catch (SQLException e) {
+            closeQuietly(entry);
+            throw e;
+        }
+        return entry;
+    }
+
+    private boolean isUsable(PooledEntry entry) {
+        try {
+            if (entry.conn.isClosed()) {
+                return false;
+            }
+            if (System.currentTimeMillis() - entry.lastUsed < VALIDATION_BYPASS_MILLIS) {
+                return true;
+            }
+            return entry.conn.isValid(validationTimeout);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void applySchema(PooledEntry entry) throws SQLException {
+        String wanted = schema;
+        if (wanted != null && !wanted.equals(entry.schema)) {
+            entry.conn.setSchema(wanted);
+            entry.schema = wanted;
+        }
+    }
+
+    private static void closeQuietly(PooledEntry entry) {
+        if (entry.statements != null) {
+            entry.statements.close();
+        }
+        try {
+            entry.conn.close();
+        } catch (SQLException e) {
+            logger.error("Error when closing connection: " + e.getMessage());
+        }
+    }
+
+    /**
+     * A physical connection together with the bookkeeping the
+     * pool needs for it.
+     */
+    private static final class PooledEntry {
+        final Connection conn;
+        final StatementCache statements;
+        volatile long lastUsed = System.currentTimeMillis();
+        String schema = null;
+
+        PooledEntry(Connection conn, int statementCacheSize) {
+            this.conn = conn;
+            this.statements = statementCacheSize > 0 ? new StatementCache(conn, statementCacheSize) : null;
+        }
+    }
+}
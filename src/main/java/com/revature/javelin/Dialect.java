@@ -0,0 +1,30 @@
+package com.revature.javelin;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * The databases javelin can write database specific SQL for, such
+ * as upserts. Found once from the primary connection when
+ * {@code Setup} opens.
+ */
+enum Dialect {
+    POSTGRESQL,
+    H2,
+    OTHER;
+
+    /**
+     * @param conn a connection to the database
+     * @return the dialect of the database behind {@code conn}
+     * @throws SQLException if the database could not be identified
+     */
+    static Dialect of(Connection conn) throws SQLException {
+        String product = conn.getMetaData().getDatabaseProductName();
+        if ("PostgreSQL".equalsIgnoreCase(product)) {
+            return POSTGRESQL;
+        } else if ("H2".equalsIgnoreCase(product)) {
+            return H2;
+        }
+        return OTHER;
+    }
+}
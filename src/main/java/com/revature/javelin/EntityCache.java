@@ -0,0 +1,101 @@
+package com.revature.javelin;
+
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A cache of rows shared by every thread, set with
+ * {@code Setup.setEntityCache()}. Lookups of a single row by the
+ * primary key named in {@code @Table}, such as
+ * {@code findAllById("id", 7)}, are answered from it instead of the
+ * database. {@link LruEntityCache} is the default implementation;
+ * implement this interface to keep rows somewhere else.
+ * <p>
+ * A row is stored under an {@link Key} that includes the version of
+ * its table. Every write to a table through javelin moves the table to
+ * a new version, so rows stored before the write are never asked for
+ * again and only need to age out. Rows read from a read replica are not
+ * stored, as the replica may lag behind the version. Writes made without
+ * javelin are not seen; use a time to live or {@code clear()} for tables
+ * changed that way. Implementations must be safe to use from many threads.
+ */
+public interface EntityCache {
+
+    /**
+     * @param key the table version and primary key of the row
+     * @return the column values stored for {@code key}, or {@code null}
+     *      if there are none. The map is not changed by the caller.
+     */
+    Map<String, Object> get(Key key);
+
+    /**
+     * Stores the column values of a row read from the database.
+     * @param key the table version and primary key of the row
+     * @param row the values by upper case column name, not changed
+     *      by the caller afterwards
+     */
+    void put(Key key, Map<String, Object> row);
+
+    /**
+     * Called after {@code tableName} was written to. Rows stored before
+     * can no longer be asked for, so implementations may drop them
+     * right away or let them age out.
+     * @param tableName the table written to, in upper case
+     */
+    void invalidateTable(String tableName);
+
+    /**
+     * Drops every row.
+     */
+    void clear();
+
+    /**
+     * @return the hits, misses and evictions since the cache was created
+     */
+    CacheStats getStats();
+
+    /**
+     * Identifies a row by table, table version and primary key value.
+     * Whole numbers are compared by value, so an {@code int} id finds a
+     * row with a {@code long} key.
+     */
+    final class Key {
+        private final String table;
+        private final long version;
+        private final Object id;
+
+        Key(String table, long version, Object id) {
+            this.table = table.toUpperCase();
+            this.version = version;
+            this.id = id instanceof Integer || id instanceof Short || id instanceof Byte
+                ? Long.valueOf(((Number) id).longValue())
+                : id;
+        }
+
+        /**
+         * @return the table of the row, in upper case
+         */
+        public String getTable() { return table; }
+
+        public Object getId() { return id; }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return version == other.version && table.equals(other.table) && id.equals(other.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(table, version, id);
+        }
+
+        @Override
+        public String toString() {
+            return table + "#" + id + " (version " + version + ")";
+        }
+    }
+}
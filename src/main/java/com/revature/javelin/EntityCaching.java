@@ -0,0 +1,80 @@
+package com.revature.javelin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Answers lookups by primary key from the {@link EntityCache} set with
+ * {@code Setup.setEntityCache()}. Keys include the version of the table
+ * from {@code TableVersions}, so writes need not touch the cache.
+ * Lookups inside a transaction skip the cache, as they may see rows
+ * that are not committed. Rows read from a replica are not put in the
+ * cache, as the replica may not have caught up with writes the table
+ * version already counts.
+ */
+final class EntityCaching {
+
+    private EntityCaching() {
+        super();
+    }
+
+    /**
+     * @param column the column the lookup is by
+     * @param value the value looked up
+     * @return the key to look up, or {@code null} if the lookup can not
+     *      use the cache because there is none, {@code column} is not
+     *      the primary key of {@code clazz} or a transaction is running
+     */
+    static EntityCache.Key keyFor(Class<?> clazz, String tableName, String column, Object value) {
+        if (Setup.getEntityCache() == null || value == null || Transactions.boundConnection() != null
+                || !column.equalsIgnoreCase(ModelMetadata.of(clazz).getPrimaryKey())) {
+            return null;
+        }
+        return new EntityCache.Key(tableName, TableVersions.current(tableName), value);
+    }
+
+    /**
+     * @return a list with a new object for the row cached under
+     *      {@code key}, or {@code null} if it is not cached
+     */
+    @SuppressWarnings("unchecked")
+    static <T extends Model> List<T> get(EntityCache.Key key, Class<T> clazz) {
+        EntityCache cache = Setup.getEntityCache();
+        Map<String, Object> row = cache == null ? null : cache.get(key);
+        if (row == null) {
+            return null;
+        }
+        T model;
+        try {
+            model = (T) (Model) ModelMetadata.of(clazz).getConstructor().invokeExact();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            // Read the database instead, which reports the error as usual
+            return null;
+        }
+        model.loaded(new HashMap<>(row));
+        List<T> found = new ArrayList<>(1);
+        found.add(model);
+        return found;
+    }
+
+    /**
+     * Caches the row of {@code found} if it is exactly one row with
+     * every column of its table.
+     */
+    static void put(EntityCache.Key key, List<? extends Model> found) {
+        EntityCache cache = Setup.getEntityCache();
+        if (cache == null || found.size() != 1) {
+            return;
+        }
+        Model model = found.get(0);
+        Map<String, Integer> knownColumns = ModelMetadata.of(model.getClass()).getKnownColumns();
+        if (knownColumns != null && model.hasColumns(knownColumns.keySet())) {
+            cache.put(key, Collections.unmodifiableMap(model.copyOfValues()));
+        }
+    }
+}
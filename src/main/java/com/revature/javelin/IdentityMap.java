@@ -0,0 +1,139 @@
+package com.revature.javelin;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The models a {@link Session} has loaded, by table, key column and
+ * key value, so loading the same row again in that session gives back
+ * the object it already has. A model's key column is the primary key
+ * named in its {@code @Table} annotation, or the column a by-id finder
+ * was given. Only full rows of a model's own table are kept: rows of
+ * joins or of queries selecting some of the columns are returned as
+ * they are, so a kept object never misses a column.
+ * <p>
+ * Not thread safe. A session only uses it while holding its lock.
+ */
+final class IdentityMap {
+
+    private final Map<Key, Model> models = new HashMap<>();
+
+    /**
+     * @return the object kept for the row of {@code tableName} with
+     *      {@code value} in {@code keyColumn}, or {@code null}
+     */
+    Model get(String tableName, String keyColumn, Object value) {
+        return value == null ? null : models.get(new Key(tableName, keyColumn, value));
+    }
+
+    /**
+     * Replaces every full row in {@code loaded} that is already kept
+     * with the kept object, and keeps the others.
+     * @param keyColumn the column identifying a row, or {@code null}
+     *      for the primary key of {@code clazz}
+     * @return {@code loaded}, changed in place
+     */
+    @SuppressWarnings("unchecked")
+    <T extends Model> List<T> resolve(List<T> loaded, Class<T> clazz, String tableName, String keyColumn) {
+        ModelMetadata metadata = ModelMetadata.of(clazz);
+        String column = keyColumn != null ? keyColumn : metadata.getPrimaryKey();
+        Map<String, Integer> knownColumns = metadata.getKnownColumns();
+        if (column.isEmpty() || knownColumns == null) {
+            return loaded;
+        }
+        for (int i = 0; i < loaded.size(); i++) {
+            T model = loaded.get(i);
+            Object value = model.get(column);
+            if (value == null || !model.hasColumns(knownColumns.keySet())) {
+                continue;
+            }
+            Key key = new Key(tableName, column, value);
+            Model kept = models.get(key);
+            if (kept != null && kept.getClass() == clazz) {
+                loaded.set(i, (T) kept);
+            } else {
+                models.put(key, model);
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Forgets the object kept for the row {@code model} was written to,
+     * unless it is {@code model} itself, as its values are now stale.
+     * @param keyColumn the column identifying the row, or {@code null}
+     *      for the primary key of the model's class only
+     */
+    void written(Model model, String keyColumn) {
+        String primaryKey = ModelMetadata.of(model.getClass()).getPrimaryKey();
+        if (keyColumn != null) {
+            forget(model, keyColumn);
+        }
+        if (!primaryKey.isEmpty() && !primaryKey.equalsIgnoreCase(keyColumn)) {
+            forget(model, primaryKey);
+        }
+    }
+
+    private void forget(Model model, String keyColumn) {
+        Object value = model.get(keyColumn);
+        if (value != null) {
+            Key key = new Key(model.getTableName(), keyColumn, value);
+            if (models.get(key) != model) {
+                models.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Forgets every object kept for {@code tableName}.
+     */
+    void evict(String tableName) {
+        String table = tableName.toUpperCase();
+        Iterator<Key> keys = models.keySet().iterator();
+        while (keys.hasNext()) {
+            if (keys.next().table.equals(table)) {
+                keys.remove();
+            }
+        }
+    }
+
+    void clear() { models.clear(); }
+
+    int size() { return models.size(); }
+
+    /**
+     * A row by table, key column and key value. Whole numbers are
+     * compared by value, so an {@code int} id finds a row loaded with
+     * a {@code long} key.
+     */
+    private static final class Key {
+        final String table;
+        final String column;
+        final Object value;
+
+        Key(String table, String column, Object value) {
+            this.table = table.toUpperCase();
+            this.column = column.toUpperCase();
+            this.value = value instanceof Integer || value instanceof Short || value instanceof Byte
+                ? Long.valueOf(((Number) value).longValue())
+                : value;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return table.equals(other.table) && column.equals(other.column) && value.equals(other.value);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(table, column, value);
+        }
+    }
+}
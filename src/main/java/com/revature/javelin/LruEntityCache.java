@@ -0,0 +1,72 @@
+package com.revature.javelin;
+
+import java.util.Map;
+
+/**
+ * An {@link EntityCache} in memory, holding at most a given number of
+ * rows. When full, the row used least recently is dropped; rows older
+ * than the time to live are dropped when next asked for. The rows are
+ * split over stripes by key, each with its own lock, so threads looking
+ * up different rows rarely wait for each other:
+ * <pre>
+ * Setup.setEntityCache(new LruEntityCache(10_000, 60_000));
+ * </pre>
+ * Each stripe holds its share of the rows, so the least recently used
+ * row of a stripe is dropped even if another stripe has older ones.
+ */
+public final class LruEntityCache implements EntityCache {
+
+    private static final int DEFAULT_STRIPES = 16;
+
+    private final StripedLru<Key, Map<String, Object>> rows;
+
+    /**
+     * Creates a cache with 16 stripes.
+     * @param maxRows the most rows to hold
+     * @param timeToLiveMillis how long a row is used after it was
+     *      read from the database, or 0 to keep it until it is dropped
+     *      to make room
+     * @throws IllegalArgumentException if {@code maxRows} is less than 1
+     *      or {@code timeToLiveMillis} is negative
+     */
+    public LruEntityCache(int maxRows, long timeToLiveMillis) {
+        this(maxRows, timeToLiveMillis, DEFAULT_STRIPES);
+    }
+
+    /**
+     * Creates a cache split over {@code stripes} locks, rounded up to a
+     * power of two and to at most one per row.
+     * @param maxRows the most rows to hold
+     * @param timeToLiveMillis how long a row is used after it was
+     *      read from the database, or 0 to keep it until it is dropped
+     *      to make room
+     * @param stripes the number of locks to spread the rows over
+     * @throws IllegalArgumentException if {@code maxRows} or
+     *      {@code stripes} is less than 1 or {@code timeToLiveMillis}
+     *      is negative
+     */
+    public LruEntityCache(int maxRows, long timeToLiveMillis, int stripes) {
+        this.rows = new StripedLru<>(maxRows, timeToLiveMillis, stripes);
+    }
+
+    @Override
+    public Map<String, Object> get(Key key) { return rows.get(key); }
+
+    @Override
+    public void put(Key key, Map<String, Object> row) { rows.put(key, row); }
+
+    /**
+     * Does nothing: rows of older versions of the table are never used
+     * again, so they are the first to be dropped when a stripe is full.
+     */
+    @Override
+    public void invalidateTable(String tableName) {
+        // Scanning every stripe on every write would cost more than it frees
+    }
+
+    @Override
+    public void clear() { rows.clear(); }
+
+    @Override
+    public CacheStats getStats() { return rows.getStats(); }
+}
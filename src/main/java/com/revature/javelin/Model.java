@@ -1,25 +1,34 @@
 package com.revature.javelin;
 
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
+import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Stream;
 
-import com.revature.javelin.annotations.Table;
 import com.revature.javelin.exceptions.InvalidColumnsException;
-import com.revature.javelin.exceptions.InvalidQueryException;
 import com.revature.javelin.exceptions.ResourcePersistenceException;
 import com.revature.javelin.exceptions.TypeMismatchException;
 
 import static com.revature.javelin.AppState.logger;
 
-// TODO: add logging
+/**
+ * Base class for every table-backed object. A {@code Model} holds the
+ * column values of one row and offers a fluent API to build and run
+ * SQL against its table. The fluent API keeps the query being built on
+ * the instance, so an instance must not be shared between threads
+ * while building a query; use a {@link Session} to run queries from
+ * many threads with models treated as plain data.
+ */
 public abstract class Model {
 
     /**
@@ -32,6 +41,16 @@ public abstract class Model {
      */
     private HashMap<String, Object> fieldsAndValues;
 
+    /**
+     * Holds the values last read from or written to the database, or
+     * {@code null} if {@code this} was never loaded or saved. Shares
+     * its map with {@code fieldsAndValues} until the first change, so
+     * loading an object does not copy its values. Volatile because
+     * {@code createAsync()} and {@code updateAsync()} set it on the
+     * thread that ran the statement.
+     */
+    private volatile HashMap<String, Object> snapshot = null;
+
     /**
      * Stores the sql statement that will be run by the {@code execute()} method
      */
@@ -44,12 +63,25 @@ public abstract class Model {
     private String sqlString = "";
 
     /**
-     * Stores whether the database has been checked to see if
-     * the table exists or not. If this value has been changed
-     * to true, the table will either already exist or will
-     * be created when this value is changed.
+     * Stores whether the next {@code execute()} must read from the
+     * primary database even when read replicas are set up.
+     */
+    private boolean forcePrimary = false;
+
+    /**
+     * Stores whether the query being built already has a {@code LIMIT},
+     * so {@code first()} does not add a second one.
      */
-    private boolean tableChecked = false;
+    private boolean hasLimit = false;
+
+    /**
+     * Stores the column looked up by {@code findAllById()} or
+     * {@code findAllByColumn()} and the SQL they started, so
+     * {@code execute()} can tell the lookup is still unchanged
+     * and answer it from the entity cache.
+     */
+    private String keyColumn = null;
+    private String keySql = null;
 
     /**
      * Creates a {@code Model} object. Sets the name of table to the name of the
@@ -58,12 +90,7 @@ public abstract class Model {
     public Model() {
         fieldsAndValues = new HashMap<>();
         userSqlList = new ArrayList<>();
-        if (this.getClass().isAnnotationPresent(Table.class)
-                && this.getClass().getAnnotation(Table.class).value() != "") {
-            tableName = this.getClass().getAnnotation(Table.class).value();
-        } else {
-            tableName = this.getClass().getSimpleName();
-        }
+        tableName = tableNameOf(this.getClass());
     }
 
     /**
@@ -106,6 +133,7 @@ public abstract class Model {
      */
     @SuppressWarnings("unchecked") 
     public <T extends Model> T setColumn(String column, Object value) {
+        ownFields();
         column = column.toUpperCase();
         if (!fieldsAndValues.containsKey(column)) {
             fieldsAndValues.put(column, value);
@@ -137,10 +165,22 @@ public abstract class Model {
      */
     @SuppressWarnings("unchecked") 
     public <T extends Model> T changeColumn(String column, Object value) {
+        ownFields();
         fieldsAndValues.put(column.toUpperCase(), value);
         return (T) this;
     }
 
+    /**
+     * Finds the name of the table for a {@code Model} class. This is the
+     * value given in the {@code @Table} annotation if present, or the
+     * simple name of the class.
+     * @param clazz a class inheriting from {@code Model}
+     * @return the name of the table associated with {@code clazz}
+     */
+    static String tableNameOf(Class<?> clazz) {
+        return ModelMetadata.of(clazz).getTableName();
+    }
+
     // -------------------------------------------
     // POJO methods
 
@@ -194,9 +234,102 @@ public abstract class Model {
 
     public void setTableName(String tableName) { this.tableName = tableName; }
     
-    protected HashMap<String, Object> getFieldsAndValues() { return fieldsAndValues; }
+    protected HashMap<String, Object> getFieldsAndValues() {
+        ownFields();
+        return fieldsAndValues;
+    }
+
+    protected void setFieldsAndValues(HashMap<String, Object> fieldsAndValues) {
+        this.fieldsAndValues = fieldsAndValues;
+        this.snapshot = null;
+    }
 
-    protected void setFieldsAndValues(HashMap<String, Object> fieldsAndValues) { this.fieldsAndValues = fieldsAndValues; }
+    // -------------------------------------------
+    // Dirty tracking
+
+    /**
+     * Sets the values of an object just read from the database and
+     * remembers them as unchanged.
+     */
+    void loaded(HashMap<String, Object> values) {
+        fieldsAndValues = values;
+        snapshot = values;
+    }
+
+    /**
+     * Remembers the current values as the ones in the database.
+     */
+    void markClean() {
+        snapshot = fieldsAndValues;
+    }
+
+    /**
+     * Remembers the current values as the ones in the database once
+     * {@code written} completes without an error. The values are copied
+     * now, as {@code this} may be changed while the statement runs.
+     */
+    private CompletableFuture<Void> markCleanWhenDone(CompletableFuture<?> written) {
+        HashMap<String, Object> values = new HashMap<>(fieldsAndValues);
+        return written.thenApply(result -> {
+            snapshot = values;
+            return null;
+        });
+    }
+
+    /**
+     * Gives {@code this} its own copy of the values before they are
+     * changed, so the snapshot keeps the values from the database.
+     */
+    private void ownFields() {
+        if (snapshot != null && snapshot == fieldsAndValues) {
+            fieldsAndValues = new HashMap<>(snapshot);
+        }
+    }
+
+    /**
+     * @return the columns whose values differ from the values last read
+     *      from or written to the database, or every column if
+     *      {@code this} was never loaded or saved
+     */
+    Set<String> changedColumns() {
+        if (snapshot == null) {
+            return fieldsAndValues.keySet();
+        }
+        if (snapshot == fieldsAndValues) {
+            return Collections.emptySet();
+        }
+        Set<String> changed = new HashSet<>();
+        for (Map.Entry<String, Object> entry : fieldsAndValues.entrySet()) {
+            String column = entry.getKey();
+            if (!snapshot.containsKey(column) || !Objects.equals(entry.getValue(), snapshot.get(column))) {
+                changed.add(column);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @param columns column names in any case
+     * @return {@code true} if {@code this} has exactly {@code columns}
+     */
+    boolean hasColumns(Collection<String> columns) {
+        if (fieldsAndValues.size() != columns.size()) {
+            return false;
+        }
+        for (String column : columns) {
+            if (!fieldsAndValues.containsKey(column.toUpperCase())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return a copy of the values of {@code this}
+     */
+    HashMap<String, Object> copyOfValues() {
+        return new HashMap<>(fieldsAndValues);
+    }
 
     // -------------------------------------------
     // CRUD methods
@@ -209,35 +342,43 @@ public abstract class Model {
      * terminal operation.
      * @param <T> object inheriting from {@code Model}
      * @param clazz the {@code Class} of this object
+     * @throws ResourcePersistenceException if the insert failed, in
+     *      which case {@code this} is still treated as not saved
      */
     public <T extends Model> void create(Class<T> clazz) {
+        startInsert();
+        execute(clazz);
+        markClean();
+    }
+
+    /**
+     * Same as {@code create(Class)}, but runs the {@code INSERT} on the
+     * executor set with {@code Setup.setExecutor()} and returns
+     * straight away. The values are read before this method returns,
+     * so {@code this} may be changed while the insert runs.
+     * @param <T> object inheriting from {@code Model}
+     * @param clazz the {@code Class} of this object
+     * @return a future that completes when the record is created, or
+     *      completes exceptionally if the insert failed
+     */
+    public <T extends Model> CompletableFuture<Void> createAsync(Class<T> clazz) {
+        startInsert();
+        return markCleanWhenDone(executeAsync(clazz));
+    }
+
+    /**
+     * Sets {@code sqlString} and {@code userSqlList} to insert all
+     * {@code fields} and {@code values} in object.
+     */
+    private void startInsert() {
         logger.info("Creating object in table " + tableName);
         if (fieldsAndValues.isEmpty()) {
             throw new InvalidColumnsException("No columns are set");
         }
-        sqlString = "INSERT INTO " + tableName + " (";
-        
-        String[] keySet = (String[]) fieldsAndValues.keySet().toArray(new String[0]);
-        for (int i = 0; i < keySet.length; i++) {
-            sqlString += keySet[i];
-            if (i != keySet.length - 1) {
-                sqlString += ", ";
-            } else {
-                sqlString += ") ";
-            }
-        }
-        sqlString += "VALUES (";
-        for (int i = 0; i < keySet.length; i++) {
-            if (i != keySet.length - 1) {
-                sqlString += "?, ";
-            } else {
-                sqlString += "?) ";
-            }
-            userSqlList.add(fieldsAndValues.get(keySet[i]));
-        }
+        SqlTemplates.Template template = SqlTemplates.insert(tableName, fieldsAndValues.keySet());
+        sqlString = template.sql;
+        userSqlList.addAll(template.params(fieldsAndValues));
         logger.info("SQL String: " + sqlString);
-        execute(clazz);
-
     }
 
     /**
@@ -246,28 +387,84 @@ public abstract class Model {
      * this class with the already given values. Will {@code throw} an
      * {@code InvalidColumnsException} if no fields are set. Will add the
      * primary key column and value to {@code this} after object creation.
-     * Assumes primary key is a serial
+     * The key is returned by the {@code INSERT} itself, through
+     * {@code getGeneratedKeys()}, so it is the key of this record even
+     * when other inserts run at the same time. If the driver returns
+     * no key, {@code this} keeps the value it had.
      * This is a starting and terminal operation.
      * @param <T> object inheriting from {@code Model}
      * @param clazz the {@code Class} of this object
      * @param primaryKeyColumnName the name of the primary key column
+     * @throws ResourcePersistenceException if no connection could be
+     *      borrowed or the insert failed
      */
     public <T extends Model> void create(Class<T> clazz, String primaryKeyColumnName) {
-        create(clazz);
-        sanitizeColumn(primaryKeyColumnName);
-        logger.info("Retrieving max value from " + primaryKeyColumnName + " to add into object");
-        sqlString = "SELECT MAX(" + primaryKeyColumnName + ") FROM " + tableName;
+        SqlBuilder.sanitizeColumn(primaryKeyColumnName);
+        startInsert();
+        Connection conn = null;
         try {
-            PreparedStatement pstmt = Setup.getConnection().prepareStatement(sqlString);
-            ResultSet rs = pstmt.executeQuery();
-            rs.next();
-            Object primaryKeyValue = rs.getObject(1);
-            fieldsAndValues.put(primaryKeyColumnName.toUpperCase(), primaryKeyValue);
+            conn = Setup.borrowConnection();
+            Object primaryKeyValue = SqlExecutor.insert(conn, tableName, sqlString, userSqlList, primaryKeyColumnName);
+            Setup.markWrite();
+            if (primaryKeyValue != null) {
+                ownFields();
+                fieldsAndValues.put(primaryKeyColumnName.toUpperCase(), primaryKeyValue);
+            }
+            markClean();
         } catch (SQLException e) {
-            logger.error(e.getStackTrace());
+            throw new ResourcePersistenceException("Could not borrow a connection: " + e.getMessage(), e);
+        } finally {
+            Setup.releaseConnection(conn);
+            resetQuery();
         }
+    }
 
+    /**
+     * Creates a new record for every object in {@code models} in one
+     * transaction, sending the inserts in batches of
+     * {@code Setup.setBatchSize()} rows instead of one round trip and
+     * one commit per object. Objects may have different columns; they
+     * are grouped by table and set of columns and each group is sent
+     * as its own batches. Inside a running transaction, joins it.
+     * See {@code Session.createAll(List)}.
+     * @param <T> object inheriting from {@code Model}
+     * @param models the objects to insert
+     * @throws InvalidColumnsException if an object has no fields set
+     * @throws ResourcePersistenceException if the objects could not be
+     *      created, in which case none of them are
+     */
+    public static <T extends Model> void createAll(List<T> models) {
+        inTransaction(models, session -> session.createAll(models));
+    }
 
+    /**
+     * Same as {@code createAll(List)}, but also adds the key generated
+     * for each record to its object where the driver returns them. See
+     * {@code Session.createAll(List, String)}.
+     * @param <T> object inheriting from {@code Model}
+     * @param models the objects to insert
+     * @param primaryKeyColumnName the name of the generated key column
+     * @throws InvalidColumnsException if an object has no fields set
+     * @throws ResourcePersistenceException if the objects could not be
+     *      created, in which case none of them are
+     */
+    public static <T extends Model> void createAll(List<T> models, String primaryKeyColumnName) {
+        inTransaction(models, session -> session.createAll(models, primaryKeyColumnName));
+    }
+
+    /**
+     * Runs {@code work}, a batch write of {@code models}, in one
+     * transaction.
+     */
+    private static <T extends Model> void inTransaction(List<T> models, TransactionWork work) {
+        if (models.isEmpty()) {
+            return;
+        }
+        try {
+            Setup.inTransaction(work);
+        } catch (SQLException e) {
+            throw new ResourcePersistenceException("Could not write objects: " + e.getMessage(), e);
+        }
     }
 
     /**
@@ -280,7 +477,7 @@ public abstract class Model {
      */
     @SuppressWarnings("unchecked") 
     public <T extends Model> T findAll() {
-        sqlString = "SELECT * FROM " + tableName + " ";
+        sqlString = SqlBuilder.selectAll(tableName);
         logger.info("Starting sql query: " + sqlString);
         return (T) this;
     }
@@ -298,27 +495,14 @@ public abstract class Model {
      */
     @SuppressWarnings("unchecked") 
     public <T extends Model> T findAllById(String idColumnName, int id) {
-        sanitizeColumn(idColumnName);
-        sqlString = "SELECT * FROM " + tableName + " WHERE " + idColumnName + "=? ";
+        sqlString = SqlBuilder.selectWhere(tableName, idColumnName);
+        keyColumn = idColumnName;
+        keySql = sqlString;
         userSqlList.add(id);
         logger.info("Starting sql query: " + sqlString);
         return (T) this;
     }
 
-    /**
-     * Checks user-given column names to make sure they are in a good format
-     * @param columnName
-     * @throws InvalidColumnsException
-     */
-    private void sanitizeColumn(String columnName) throws InvalidColumnsException {
-        logger.info("Running basic sanitation on column name: " + columnName);
-        if (!columnName.matches("([A-Za-z_][A-Za-z_0-9$]*)|\".*\"")) {
-            logger.warn("Column not accepted");
-            throw new InvalidColumnsException("Invalid name for a column, " +
-                "please ensure that your column only contains alphabetic characters and underscores");
-        }
-    }
-
     /**
      * Adds query to find object with the given {@code value} for {@code columnName}
      * to be executed later. This is an starting operation, use {@code execute()} to
@@ -332,8 +516,9 @@ public abstract class Model {
      */
     @SuppressWarnings("unchecked") 
     public <T extends Model> T findAllByColumn(String columnName, Object value) {
-        sanitizeColumn(columnName);
-        sqlString = "SELECT * FROM " + tableName + " WHERE " + columnName + "=? ";
+        sqlString = SqlBuilder.selectWhere(tableName, columnName);
+        keyColumn = columnName;
+        keySql = sqlString;
         userSqlList.add(value);
         logger.info("Starting sql query: " + sqlString);
         return (T) this;
@@ -350,16 +535,7 @@ public abstract class Model {
      */
     @SuppressWarnings("unchecked") 
     public <T extends Model> T findColumns(String... columnList) {
-        sqlString = "SELECT ";
-        for (int i = 0; i < columnList.length; i++) {
-            sanitizeColumn(columnList[i]);
-            if (i != columnList.length - 1) {
-                sqlString += columnList[i] + ", ";
-            } else {
-                sqlString += columnList[i] + " ";
-            }
-        }
-        sqlString += "FROM " + tableName + " ";
+        sqlString = SqlBuilder.selectColumns(tableName, columnList);
         logger.info("Starting sql query: " + sqlString);
         return (T) this;
     }
@@ -376,8 +552,7 @@ public abstract class Model {
      */
     @SuppressWarnings("unchecked") 
     public <T extends Model> T where(String query) {
-        sanitizeQuery(query);
-        sqlString += "WHERE " + query + " ";
+        sqlString += SqlBuilder.where(query);
         logger.info("Starting where clause: " + sqlString);
         return (T) this;
     }
@@ -395,11 +570,10 @@ public abstract class Model {
      */
     @SuppressWarnings("unchecked") 
     public <T extends Model> T whereAnd(String query) {
-        sanitizeQuery(query);
         if (sqlString.contains("WHERE")) {
-            sqlString += "AND " + query + " ";
+            sqlString += SqlBuilder.and(query);
         } else {
-            sqlString += "WHERE " + query + " ";
+            sqlString += SqlBuilder.where(query);
         }
         logger.info("Continuing where clause: " + sqlString);
         return (T) this;
@@ -416,9 +590,7 @@ public abstract class Model {
      */
     @SuppressWarnings("unchecked") 
     public <T extends Model, U extends Model> T joinUsing(U other, String columnName) {
-        sanitizeColumn(columnName);
-        sqlString += "JOIN " + other.getTableName() +
-            " USING (" + columnName.toUpperCase() + ") ";
+        sqlString += SqlBuilder.joinUsing(other.getTableName(), columnName);
         logger.info("Adding join using clause: " + sqlString);
         return (T) this;
     }
@@ -435,13 +607,7 @@ public abstract class Model {
      */
     @SuppressWarnings("unchecked") 
     public <T extends Model, U extends Model> T joinOn(U other, String otherColumnName, String thisColumnName) {
-        sanitizeColumn(thisColumnName);
-        sanitizeColumn(otherColumnName);
-        // String[] temp = sqlString.split(tableName);
-        // sqlString = temp[0] + tableName + ", " + other.getTableName() + temp[1];
-        sqlString += "JOIN " + other.getTableName() +
-            " ON (" + tableName + "." + thisColumnName.toUpperCase() + 
-            " = " + other.getTableName() + "." + otherColumnName.toUpperCase() + ") ";
+        sqlString += SqlBuilder.joinOn(other.getTableName(), otherColumnName, tableName, thisColumnName);
         logger.info("Adding join on clause: " + sqlString);
         return (T) this;
     }
@@ -458,30 +624,75 @@ public abstract class Model {
      */
     @SuppressWarnings("unchecked") 
     public <T extends Model, U extends Model, V extends Model> T joinOn(U otherTable1, String table1ColumnName, V otherTable2, String table2ColumnName) {
-        sanitizeColumn(table1ColumnName);
-        sanitizeColumn(table2ColumnName);
-        // String[] temp = sqlString.split(tableName);
-        // sqlString = temp[0] + tableName + ", " + other.getTableName() + temp[1];
-        sqlString += "JOIN " + otherTable1.getTableName() +
-            " ON (" + otherTable2.getTableName() + "." + table1ColumnName.toUpperCase() + 
-            " = " + otherTable1.getTableName() + "." + table2ColumnName.toUpperCase() + ") ";
+        sqlString += SqlBuilder.joinOn(otherTable1.getTableName(), table2ColumnName,
+            otherTable2.getTableName(), table1ColumnName);
         logger.info("Adding join on clause: " + sqlString);
         return (T) this;
     }
 
     /**
-     * Checks user-given queries to make sure they are in a good format.
-     * Only does basic checking to make sure there aren't semicolons
-     * @param query
-     * @throws InvalidQueryException
-     */
-    private void sanitizeQuery(String query) throws InvalidQueryException {
-        logger.info("Running basic sanitation on query: " + query);
-        if (!query.matches("[^;]+")) {
-            logger.warn("Query not accepted");
-            throw new InvalidQueryException("Invalid query, " +
-                "please ensure that your query only contains alphabetic characters, underscores and whitespace");
-        }
+     * Makes the query being built read from the primary database
+     * instead of a read replica. Has no effect if no replicas are
+     * set up or the statement is not a {@code SELECT}. This is an
+     * intermediary operation. Use after a starting operation and
+     * before a terminal operation.
+     * @param <T> object inheriting from {@code Model}
+     * @return {@code this} to allow for method chaining
+     */
+    @SuppressWarnings("unchecked") 
+    public <T extends Model> T onPrimary() {
+        forcePrimary = true;
+        return (T) this;
+    }
+
+    /**
+     * Adds an {@code ORDER BY} clause to the SQL query. This is an
+     * intermediary operation. Use after any {@code WHERE} clause and
+     * before a terminal operation.
+     * @param <T> object inheriting from {@code Model}
+     * @param columns column names, each optionally followed by
+     *      {@code ASC} or {@code DESC}
+     * @return {@code this} to allow for method chaining
+     */
+    @SuppressWarnings("unchecked") 
+    public <T extends Model> T orderBy(String... columns) {
+        sqlString += SqlBuilder.orderBy(columns);
+        logger.info("Adding order by clause: " + sqlString);
+        return (T) this;
+    }
+
+    /**
+     * Adds a {@code LIMIT} clause to the SQL query, so the database
+     * returns at most {@code rows} rows. This is an intermediary
+     * operation. Use after {@code orderBy()} and before a terminal
+     * operation.
+     * @param <T> object inheriting from {@code Model}
+     * @param rows the most rows to return
+     * @return {@code this} to allow for method chaining
+     */
+    @SuppressWarnings("unchecked") 
+    public <T extends Model> T limit(int rows) {
+        sqlString += SqlBuilder.limit(rows);
+        hasLimit = true;
+        logger.info("Adding limit clause: " + sqlString);
+        return (T) this;
+    }
+
+    /**
+     * Adds an {@code OFFSET} clause to the SQL query, skipping the first
+     * {@code rows} rows. This is an intermediary operation. Use after
+     * {@code limit()} and before a terminal operation. The database still
+     * reads the skipped rows, so prefer {@code Query.pages()} to walk
+     * through a large table.
+     * @param <T> object inheriting from {@code Model}
+     * @param rows the number of rows to skip
+     * @return {@code this} to allow for method chaining
+     */
+    @SuppressWarnings("unchecked") 
+    public <T extends Model> T offset(int rows) {
+        sqlString += SqlBuilder.offset(rows);
+        logger.info("Adding offset clause: " + sqlString);
+        return (T) this;
     }
 
     /**
@@ -489,31 +700,146 @@ public abstract class Model {
      * update a record with the same {@code id} value in the database corresponding
      * to this class. Will {@code throw InvalidColumnsException} if no fields are
      * set. This is a starting and terminal operation.
+     * <p>
+     * If {@code this} was read from or written to the database before,
+     * only the columns changed since are written, and nothing is sent
+     * at all if none changed.
      * 
      * @param <T>   object inheriting from {@code Model}
      * @param primaryKeyColumn, the name of the primary key column in the table
      * @param clazz the {@code Class} of this object
+     * @throws ResourcePersistenceException if the update failed, in
+     *      which case the changed columns are still written by the next
+     *      {@code update()}
      */
     public <T extends Model> void update(String primaryKeyColumn, Class<T> clazz) {
-        sqlString = "UPDATE " + tableName + " SET ";
-        // for loop
-        String[] keySet = (String[]) fieldsAndValues.keySet().toArray(new String[0]);
-        for (int i = 0; i < keySet.length; i++) {
-            sqlString += keySet[i] + "=?" ;
-            userSqlList.add(fieldsAndValues.get(keySet[i]));
-            if (i != keySet.length - 1) {
-                sqlString += ", ";
-            } else {
-                sqlString += " ";
-            }
+        if (startUpdate(primaryKeyColumn)) {
+            execute(clazz);
+            markClean();
         }
-        sqlString += "WHERE ";
-        // find id column and value
-        sanitizeColumn(primaryKeyColumn);
-        sqlString += primaryKeyColumn + "=? ";
-        userSqlList.add(fieldsAndValues.get(primaryKeyColumn.toUpperCase()));
-        logger.info("Updating object: " + this.toString());
+    }
+
+    /**
+     * Same as {@code update(String, Class)}, but runs the {@code UPDATE}
+     * on the executor set with {@code Setup.setExecutor()} and returns
+     * straight away. The values are read before this method returns, and
+     * only changed columns are written, as with {@code update()}.
+     * @param <T>   object inheriting from {@code Model}
+     * @param primaryKeyColumn the name of the primary key column in the table
+     * @param clazz the {@code Class} of this object
+     * @return a future that completes when the record is updated, or
+     *      completes exceptionally if the update failed
+     */
+    public <T extends Model> CompletableFuture<Void> updateAsync(String primaryKeyColumn, Class<T> clazz) {
+        if (!startUpdate(primaryKeyColumn)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return markCleanWhenDone(executeAsync(clazz));
+    }
+
+    /**
+     * Inserts {@code this}, or updates the record with the same values in
+     * {@code conflictColumns} if there is one, in a single statement and
+     * round trip: {@code INSERT ... ON CONFLICT ... DO UPDATE} on
+     * PostgreSQL and {@code MERGE ... KEY} on H2. Replaces finding the
+     * record first and choosing between {@code create()} and
+     * {@code update()}, which takes two round trips and races with other
+     * writers. The conflict columns must be set in {@code this} and, on
+     * PostgreSQL, be covered by a unique index. This is a starting and
+     * terminal operation.
+     * @param <T> object inheriting from {@code Model}
+     * @param clazz the {@code Class} of this object
+     * @param conflictColumns the columns identifying an existing record
+     * @throws InvalidColumnsException if no fields are set or a conflict
+     *      column is invalid or not set
+     * @throws com.revature.javelin.exceptions.InvalidQueryException if
+     *      the database has no upsert
+     * @throws ResourcePersistenceException if the statement failed
+     */
+    public <T extends Model> void upsert(Class<T> clazz, String... conflictColumns) {
+        logger.info("Upserting object in table " + tableName);
+        if (fieldsAndValues.isEmpty()) {
+            throw new InvalidColumnsException("No columns are set");
+        }
+        SqlTemplates.Template template = SqlTemplates.upsert(Setup.getDialect(), tableName,
+            fieldsAndValues.keySet(), conflictColumns);
+        sqlString = template.sql;
+        userSqlList.addAll(template.params(fieldsAndValues));
         execute(clazz);
+        markClean();
+    }
+
+    /**
+     * Same as {@code upsert()} for every object in {@code models}, in one
+     * transaction and sent in batches like {@code createAll()}. Inside a
+     * running transaction, joins it.
+     * @param <T> object inheriting from {@code Model}
+     * @param models the objects to write
+     * @param conflictColumns the columns identifying an existing record
+     * @throws InvalidColumnsException if an object has no fields set or
+     *      a conflict column is invalid or not set
+     * @throws com.revature.javelin.exceptions.InvalidQueryException if
+     *      the database has no upsert
+     * @throws ResourcePersistenceException if the objects could not be
+     *      written, in which case none of them are
+     */
+    public static <T extends Model> void upsertAll(List<T> models, String... conflictColumns) {
+        inTransaction(models, session -> session.upsertAll(models, conflictColumns));
+    }
+
+    /**
+     * Updates the record of every object in {@code models} in one
+     * transaction, sending the updates in batches of
+     * {@code Setup.setBatchSize()} rows instead of one round trip per
+     * object. Unlike {@code update()}, an object with no record is not
+     * an error: its count is 0 and the others are still updated. Inside
+     * a running transaction, joins it. See
+     * {@code Session.updateAll(List, String)}.
+     * @param <T> object inheriting from {@code Model}
+     * @param models the objects to update
+     * @param primaryKeyColumn the name of the primary key column in the table
+     * @return the number of rows updated for each object, in order, or
+     *      {@code Statement.SUCCESS_NO_INFO} where the driver does not know
+     * @throws InvalidColumnsException if an object has no fields set
+     * @throws ResourcePersistenceException if the objects could not be
+     *      updated, in which case none of them are
+     */
+    public static <T extends Model> int[] updateAll(List<T> models, String primaryKeyColumn) {
+        int[][] counts = { new int[0] };
+        inTransaction(models, session -> counts[0] = session.updateAll(models, primaryKeyColumn));
+        return counts[0];
+    }
+
+    /**
+     * Sets {@code sqlString} and {@code userSqlList} to update the changed
+     * {@code fields} and {@code values} in object by primary key.
+     * @return {@code false} if nothing changed since {@code this} was last
+     *      read or written, so there is nothing to update
+     */
+    private boolean startUpdate(String primaryKeyColumn) {
+        SqlTemplates.Template template = updateTemplate(primaryKeyColumn);
+        if (template == null) {
+            logger.info("Nothing changed, not updating object: " + this.toString());
+            return false;
+        }
+        sqlString = template.sql;
+        // The values to set, then the primary key
+        userSqlList.addAll(template.params(fieldsAndValues));
+        logger.info("Updating object: " + this.toString());
+        return true;
+    }
+
+    /**
+     * @return the {@code UPDATE} by primary key of the columns changed
+     *      since {@code this} was last read or written, or of every
+     *      column if it never was, or {@code null} if nothing changed
+     */
+    SqlTemplates.Template updateTemplate(String primaryKeyColumn) {
+        Set<String> changed = changedColumns();
+        if (changed.isEmpty() && snapshot != null) {
+            return null;
+        }
+        return SqlTemplates.update(tableName, changed, primaryKeyColumn);
     }
 
     /**
@@ -527,7 +853,7 @@ public abstract class Model {
      */
     @SuppressWarnings("unchecked") 
     public <T extends Model> T delete() {
-        sqlString = "DELETE FROM " + tableName + " ";
+        sqlString = SqlBuilder.delete(tableName);
         logger.info("Starting delete statement");
         return (T) this;
     }
@@ -548,116 +874,194 @@ public abstract class Model {
      * @param clazz the {@code Class} of this object
      * @return a list of objects returned by query,
      *      or empty list.
+     * @throws ResourcePersistenceException if no connection could be
+     *      borrowed or the statement failed
      */
     public <T extends Model> List<T> execute(Class<T> clazz) {
-        ResultSet rs = null;
-        boolean isQuery;
         // Make sure a starting operation was used
-        if (sqlString.startsWith("SELECT")) {
-            isQuery = true;
-        } else if (sqlString.startsWith("INSERT") || sqlString.startsWith("UPDATE") || sqlString.startsWith("DELETE")) {
-            isQuery = false;
-        } else {
-            throw new InvalidQueryException(
-                    "A starting operation was not used. Start a query by using methods like delete() or find()." +
-                    " Your query was: `" + sqlString + "`");
-        }
+        boolean isQuery = SqlExecutor.isQuery(sqlString);
 
-        // Execute sqlString on the database
+        List<T> newModelList;
         try {
-            if (!tableChecked) {
-                // Check if table already exists in database
-                boolean tableExists = false;
-                ResultSet tables = Setup.getConnection().getMetaData().getTables(null, null, "%", null);
-                while (tables.next()) {
-                    // System.out.println(tables.getString(3));
-                    if (tables.getString(3).equalsIgnoreCase(tableName)) {
-                        tableExists = true;
-                        break;
-                    }
-                }
-                // Table does not exist in database, throw exception
-                // TODO create table or add a create table method
-                if (!tableExists) {
-                    throw new ResourcePersistenceException("Table " +
-                        tableName +
-                        " could not be found, please create table and try again.");
-                }
-            }
-            // sqlString = "SELECT * FROM ModelExtension JOIN Test USING (person_id)";
-            // userSqlList = new ArrayList<>();
-            PreparedStatement pstmt = Setup.getConnection().prepareStatement(sqlString);
-            for (int i = 0; i < userSqlList.size(); i++) {
-                pstmt.setObject(i + 1, userSqlList.get(i));
-            }
-            // If the sqlString is a SELECT query, get result in resultSet
-            if (isQuery) {
-                // System.out.println(pstmt.toString());
-                // System.out.println(pstmt.sql);
-                pstmt.execute();
-                rs = pstmt.getResultSet();
-            } else {
-                // System.out.println(sqlString);
-                if (pstmt.executeUpdate() > 0) {
-                    rs = pstmt.getGeneratedKeys();
-                } else {
-                    if (sqlString.startsWith("INSERT")) {
-                        throw new ResourcePersistenceException("Insert function failed, please please make sure columns " +
-                        "and values are valid.");
-                    }
-                    else if (sqlString.startsWith("UPDATE")) {
-                        throw new ResourcePersistenceException("Update function failed, please please make sure that an object " +
-                        "with given primary key column and value exists in table to be updated.");
-                    }
-                    else if (sqlString.startsWith("DELETE")) {
-                        throw new ResourcePersistenceException("Delete function failed, please make sure that an object " +
-                                "with given columns and values exists in table to be deleted.");
-                    }
-                }
-            }
+            newModelList = run(tableName, sqlString, userSqlList, clazz, isQuery, forcePrimary,
+                sqlString.equals(keySql) ? keyColumn : null);
         } catch (SQLException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            throw new ResourcePersistenceException("Could not run statement: " + e.getMessage(), e);
+        } finally {
+            resetQuery();
         }
 
-        List<T> newModelList = new ArrayList<>();
+        if (isQuery && newModelList.size() == 1) {
+            Model found = newModelList.get(0);
+            // Shared with found until either of them changes a value
+            fieldsAndValues = found.fieldsAndValues;
+            snapshot = found.snapshot;
+            tableName = found.getTableName();
+        }
+        return newModelList;
+    }
+
+    /**
+     * Runs the {@code SELECT} built so far with {@code LIMIT 1} added,
+     * so only one row is read from the database, and returns it. If
+     * {@code limit()} was used, it is kept as given. Like
+     * {@code execute()}, a single row found is copied into {@code this}.
+     * This is a terminal operation.
+     * @param <T> object inheriting from {@code Model}
+     * @param clazz the {@code Class} of this object
+     * @return the first object returned by the query, or {@code null}
+     *      if there is none
+     */
+    public <T extends Model> T first(Class<T> clazz) {
+        if (!hasLimit) {
+            sqlString += SqlBuilder.limit(1);
+        }
+        List<T> models = execute(clazz);
+        return models.isEmpty() ? null : models.get(0);
+    }
+
+    /**
+     * Same as {@code execute(Class)}, but runs the SQL command on the
+     * executor set with {@code Setup.setExecutor()} and returns straight
+     * away. The query built so far is taken off {@code this} before this
+     * method returns, so {@code this} can start the next query at once
+     * and several queries can be in flight together. Unlike
+     * {@code execute()}, a single result is not copied into {@code this}.
+     * @param <T> object inheriting from {@code Model}
+     * @param clazz the {@code Class} of this object
+     * @return a future holding the list of objects returned by query,
+     *      or an empty list. Completes exceptionally if the statement failed.
+     */
+    public <T extends Model> CompletableFuture<List<T>> executeAsync(Class<T> clazz) {
+        // Take a copy of the query so this object can be reused right away
+        final boolean isQuery = SqlExecutor.isQuery(sqlString);
+        final String table = tableName;
+        final String sql = sqlString;
+        final List<Object> params = userSqlList;
+        final boolean primary = forcePrimary;
+        resetQuery();
 
-        // Get all objects from resultSet if a SELECT statement was used
-        if (isQuery) {
+        return CompletableFuture.supplyAsync(() -> {
             try {
-                while (rs.next()) {
-                    ResultSetMetaData rsmd = rs.getMetaData();
-                    // Put all columns into HashMap<String,Object>
-                    HashMap<String, Object> fieldMap = new HashMap<>();
-                    for (int i = 0; i < rsmd.getColumnCount(); i++) {
-                        String columnName = rsmd.getColumnName(i+1);
-                        Object value = rs.getObject(columnName);
-                        fieldMap.put(columnName.toUpperCase(), value);
-                    }
-
-                    // Get constructor for T and create a new object of that class
-                    Constructor<T> ctor = clazz.getConstructor();
-
-
-                    // Add it to the list
-                    T temp = ctor.newInstance();
-                    temp.setFieldsAndValues(fieldMap);
-                    newModelList.add(temp);
-                }
-            } catch (InstantiationException | IllegalAccessException | IllegalArgumentException
-                    | InvocationTargetException | SQLException | NoSuchMethodException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-            }
-            if (newModelList.size() == 1) {
-                fieldsAndValues = newModelList.get(0).getFieldsAndValues();
-                tableName = newModelList.get(0).getTableName();
+                return run(table, sql, params, clazz, isQuery, primary);
+            } catch (SQLException e) {
+                throw new CompletionException(e);
             }
+        }, Setup.getExecutor());
+    }
+
+    /**
+     * Runs the {@code SELECT} built so far and returns its rows one at
+     * a time as they are read from the database, instead of loading
+     * them all into a list. See {@code ResultIterator}. The iterator
+     * holds a pooled connection until all rows are read or it is
+     * closed. This is a terminal operation.
+     * @param <T> object inheriting from {@code Model}
+     * @param clazz the {@code Class} of this object
+     * @return an iterator over the rows of the query
+     * @throws com.revature.javelin.exceptions.InvalidQueryException if
+     *      the statement is not a {@code SELECT}
+     * @throws ResourcePersistenceException if the query could not be run
+     */
+    public <T extends Model> ResultIterator<T> iterator(Class<T> clazz) {
+        final String sql = sqlString;
+        final List<Object> params = userSqlList;
+        final boolean primary = forcePrimary;
+        resetQuery();
+        try {
+            return ResultIterator.open(tableName, sql, params, clazz, primary);
+        } catch (SQLException e) {
+            throw new ResourcePersistenceException("Could not run query: " + e.getMessage(), e);
         }
+    }
 
+    /**
+     * Same as {@code iterator(Class)}, but returns a sequential
+     * {@code Stream}. Close the stream when done, preferably with
+     * try-with-resources, to give its connection back to the pool.
+     * This is a terminal operation.
+     * @param <T> object inheriting from {@code Model}
+     * @param clazz the {@code Class} of this object
+     * @return a lazily mapped stream of the rows of the query
+     */
+    public <T extends Model> Stream<T> stream(Class<T> clazz) {
+        return ResultIterator.stream(iterator(clazz));
+    }
+
+    /**
+     * Clears the query being built so {@code this} can start the next one.
+     */
+    private void resetQuery() {
         sqlString = "";
         userSqlList = new ArrayList<>();
-        return newModelList;
+        forcePrimary = false;
+        hasLimit = false;
+        keyColumn = null;
+        keySql = null;
     }
-    
+
+    /**
+     * Runs {@code sql} with a connection borrowed from the pool for the
+     * duration of this call. Queries may go to a read replica,
+     * everything else goes to the primary. Queries are answered from
+     * the query cache, if one is set, when they are found there, and
+     * stored there when they were read from the primary.
+     * @throws SQLException if no connection could be borrowed or the
+     *      statement failed
+     */
+    static <T extends Model> List<T> run(String tableName, String sql, List<Object> params,
+            Class<T> clazz, boolean isQuery, boolean forcePrimary) throws SQLException {
+        return run(tableName, sql, params, clazz, isQuery, forcePrimary, null);
+    }
+
+    /**
+     * Same as {@code run()}, for a query finding rows by the value of
+     * {@code keyColumn}, its only parameter. If that is the primary key,
+     * the row is taken from the entity cache when it is there and put
+     * there when it is not and was read from the primary.
+     * @param keyColumn the column looked up, or {@code null} if the
+     *      query is not a lookup by one column
+     */
+    static <T extends Model> List<T> run(String tableName, String sql, List<Object> params,
+            Class<T> clazz, boolean isQuery, boolean forcePrimary, String keyColumn) throws SQLException {
+        EntityCache.Key entityKey = keyColumn == null || forcePrimary || params.size() != 1
+            ? null
+            : EntityCaching.keyFor(clazz, tableName, keyColumn, params.get(0));
+        if (entityKey != null) {
+            List<T> cached = EntityCaching.get(entityKey, clazz);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        QueryCache cache = isQuery && !forcePrimary ? Setup.getQueryCache() : null;
+        QueryCache.Key key = cache == null ? null : cache.keyFor(sql, params);
+        if (key != null) {
+            List<T> cached = cache.get(key, clazz);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        Connection conn = null;
+        try {
+            conn = isQuery ? Setup.borrowReadConnection(forcePrimary) : Setup.borrowConnection();
+            // Thrown rather than returned empty, so a failed query is never cached
+            List<T> result = SqlExecutor.executeOrThrow(conn, tableName, sql, params, clazz, 0);
+            // A replica may not have the writes the table versions in the keys already count
+            if (!Setup.isReplica(conn)) {
+                if (key != null) {
+                    cache.put(key, result);
+                }
+                if (entityKey != null) {
+                    EntityCaching.put(entityKey, result);
+                }
+            }
+            if (!isQuery) {
+                Setup.markWrite();
+            }
+            return result;
+        } finally {
+            Setup.releaseConnection(conn);
+        }
+    }
+
 }
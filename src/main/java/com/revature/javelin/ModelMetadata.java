@@ -0,0 +1,114 @@
+package com.revature.javelin;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.revature.javelin.annotations.NamedQuery;
+import com.revature.javelin.annotations.Table;
+
+/**
+ * Everything javelin needs to know about a {@code Model} class that
+ * can be read off the class itself: its table, its {@code @Table} and
+ * {@code @NamedQuery} annotations, its constructor and the row mappers
+ * compiled for it. Worked out once per class the first time it is
+ * needed and shared from then on, so creating and mapping models does
+ * not touch reflection. Kept in a {@code ClassValue}, which is read
+ * without locking or hashing a map. The metadata refers to its class,
+ * constructor and row mappers strongly, so a class that was used stays
+ * loaded as long as javelin is, just as it would in a static map.
+ */
+final class ModelMetadata {
+
+    private static final ClassValue<ModelMetadata> registry = new ClassValue<ModelMetadata>() {
+        @Override
+        protected ModelMetadata computeValue(Class<?> type) {
+            return new ModelMetadata(type);
+        }
+    };
+
+    private final Class<?> clazz;
+    private final String tableName;
+    private final String primaryKey;
+    private final NamedQuery[] namedQueries;
+
+    /** The public no-argument constructor, typed {@code () -> Model}, or {@code null}. */
+    private final MethodHandle constructor;
+    /** Why {@code constructor} is missing. */
+    private final String constructorError;
+
+    /** Row mappers by the column names of the result sets they map. */
+    private final Map<List<String>, RowMapper<?>> rowMappers = new ConcurrentHashMap<>();
+
+    private ModelMetadata(Class<?> clazz) {
+        this.clazz = clazz;
+        Table table = clazz.getAnnotation(Table.class);
+        this.tableName = table != null && !table.value().isEmpty() ? table.value() : clazz.getSimpleName();
+        this.primaryKey = table != null ? table.primaryKey() : "";
+        this.namedQueries = clazz.getAnnotationsByType(NamedQuery.class);
+
+        MethodHandle handle = null;
+        String error = null;
+        try {
+            handle = MethodHandles.lookup()
+                .unreflectConstructor(clazz.getConstructor())
+                .asType(MethodType.methodType(Model.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            error = e.toString();
+        }
+        this.constructor = handle;
+        this.constructorError = error;
+    }
+
+    /**
+     * @param clazz a class inheriting from {@code Model}
+     * @return the metadata of {@code clazz}
+     */
+    static ModelMetadata of(Class<?> clazz) {
+        return registry.get(clazz);
+    }
+
+    /**
+     * @return the value given in the {@code @Table} annotation if
+     *      present, or the simple name of the class
+     */
+    String getTableName() { return tableName; }
+
+    /**
+     * @return the primary key named in {@code @Table}, or an empty string
+     */
+    String getPrimaryKey() { return primaryKey; }
+
+    /**
+     * @return the {@code @NamedQuery} annotations of the class
+     */
+    NamedQuery[] getNamedQueries() { return namedQueries.clone(); }
+
+    /**
+     * @return the columns of the table as last seen by the schema cache,
+     *      mapped to their {@code java.sql.Types}, or {@code null} if the
+     *      table has not been looked up yet
+     */
+    Map<String, Integer> getKnownColumns() {
+        return Setup.getSchemaCache().cachedColumnsOf(tableName);
+    }
+
+    Map<List<String>, RowMapper<?>> getRowMappers() { return rowMappers; }
+
+    /**
+     * @return a handle to the public no-argument constructor, typed
+     *      {@code () -> Model}
+     * @throws NoSuchMethodException if there is no such constructor
+     *      or it can not be called
+     */
+    MethodHandle getConstructor() throws NoSuchMethodException {
+        if (constructor == null) {
+            throw new NoSuchMethodException(clazz.getName() +
+                " needs a public no-argument constructor: " + constructorError);
+        }
+        return constructor;
+    }
+}
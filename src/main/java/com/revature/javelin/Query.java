@@ -0,0 +1,436 @@
+package com.revature.javelin;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Stream;
+
+import com.revature.javelin.exceptions.InvalidQueryException;
+import com.revature.javelin.exceptions.ResourcePersistenceException;
+
+/**
+ * An immutable, reusable query. The SQL text is built and checked once
+ * when the query is defined; values are only given when it is run, as
+ * parameters for its {@code ?} placeholders. Intermediary operations
+ * return a new {@code Query} and leave the original untouched, so a
+ * query can be kept in a static field and run from any number of
+ * threads at once:
+ * <pre>
+ * static final Query&lt;User&gt; OLDER_THAN =
+ *     Query.findAll(User.class).where("age &gt; ?");
+ *
+ * List&lt;User&gt; users = OLDER_THAN.execute(21);
+ * </pre>
+ * Each clause is kept apart until the SQL is put together, so
+ * intermediary operations can be chained in any order.
+ * @param <T> object inheriting from {@code Model}
+ */
+public final class Query<T extends Model> {
+
+    private final Class<T> clazz;
+    private final String tableName;
+    /** The statement up to its joins. */
+    private final String start;
+    private final String where;
+    private final String orderBy;
+    private final String limit;
+    private final String offset;
+    private final boolean forcePrimary;
+    private final String sqlString;
+    private final boolean isQuery;
+    /** The column a {@code findAllByColumn()} query looks up, until another clause is added. */
+    private final String keyColumn;
+
+    private Query(Class<T> clazz, String tableName, String start, String where,
+            String orderBy, String limit, String offset, boolean forcePrimary) {
+        this(clazz, tableName, start, where, orderBy, limit, offset, forcePrimary, null);
+    }
+
+    private Query(Class<T> clazz, String tableName, String start, String where,
+            String orderBy, String limit, String offset, boolean forcePrimary, String keyColumn) {
+        this.clazz = clazz;
+        this.tableName = tableName;
+        this.start = start;
+        this.where = where;
+        this.orderBy = orderBy;
+        this.limit = limit;
+        this.offset = offset;
+        this.forcePrimary = forcePrimary;
+        this.sqlString = start + where + orderBy + limit + offset;
+        this.isQuery = SqlExecutor.isQuery(sqlString);
+        this.keyColumn = keyColumn;
+    }
+
+    private Query(Class<T> clazz, String tableName, String start) {
+        this(clazz, tableName, start, "", "", "", "", false);
+    }
+
+    // -------------------------------------------
+    // Starting operations
+
+    /**
+     * Defines a query to find all objects in the table of {@code clazz}.
+     * @param <T> object inheriting from {@code Model}
+     * @param clazz the {@code Class} of the objects to find
+     * @return the query
+     */
+    public static <T extends Model> Query<T> findAll(Class<T> clazz) {
+        String tableName = Model.tableNameOf(clazz);
+        return new Query<>(clazz, tableName, SqlBuilder.selectAll(tableName));
+    }
+
+    /**
+     * Defines a query to find objects by the value of {@code columnName},
+     * which is the first parameter given when the query is run.
+     * @param <T> object inheriting from {@code Model}
+     * @param clazz the {@code Class} of the objects to find
+     * @param columnName the name of the column to be searched
+     * @return the query
+     */
+    public static <T extends Model> Query<T> findAllByColumn(Class<T> clazz, String columnName) {
+        String tableName = Model.tableNameOf(clazz);
+        SqlBuilder.sanitizeColumn(columnName);
+        Query<T> query = new Query<>(clazz, tableName, SqlBuilder.selectAll(tableName)).where(columnName + "=?");
+        return new Query<>(clazz, tableName, query.start, query.where, "", "", "", false, columnName);
+    }
+
+    /**
+     * Defines a query to find specified columns of objects in the
+     * table of {@code clazz}.
+     * @param <T> object inheriting from {@code Model}
+     * @param clazz the {@code Class} of the objects to find
+     * @param columnList the name of columns for desired values
+     * @return the query
+     */
+    public static <T extends Model> Query<T> findColumns(Class<T> clazz, String... columnList) {
+        String tableName = Model.tableNameOf(clazz);
+        return new Query<>(clazz, tableName, SqlBuilder.selectColumns(tableName, columnList));
+    }
+
+    /**
+     * Defines a {@code DELETE} statement on the table of {@code clazz}.
+     * Use intermediary operations to specify what to delete.
+     * @param <T> object inheriting from {@code Model}
+     * @param clazz the {@code Class} of the objects to delete
+     * @return the query
+     */
+    public static <T extends Model> Query<T> delete(Class<T> clazz) {
+        String tableName = Model.tableNameOf(clazz);
+        return new Query<>(clazz, tableName, SqlBuilder.delete(tableName));
+    }
+
+    /**
+     * Looks up a query declared on {@code clazz} with {@code @NamedQuery}
+     * or added with {@code Setup.registerQuery()}. The query is built and
+     * checked once, so this only costs a map lookup.
+     * @param <T> object inheriting from {@code Model}
+     * @param clazz the {@code Class} the query runs on
+     * @param name the name of the query
+     * @return the query
+     * @throws com.revature.javelin.exceptions.InvalidQueryException if
+     *      {@code clazz} has no query named {@code name}
+     */
+    public static <T extends Model> Query<T> named(Class<T> clazz, String name) {
+        return QueryRegistry.get(clazz, name);
+    }
+
+    // -------------------------------------------
+    // Intermediary operations
+
+    /**
+     * Starts or continues a {@code WHERE} clause. The first call adds
+     * {@code WHERE}, later calls add {@code AND}.
+     * @param query SQL condition, may use {@code ?} placeholders
+     * @return a new query with the condition added
+     */
+    public Query<T> where(String query) {
+        String condition = where.isEmpty() ? SqlBuilder.where(query) : where + SqlBuilder.and(query);
+        return new Query<>(clazz, tableName, start, condition, orderBy, limit, offset, forcePrimary);
+    }
+
+    /**
+     * Same as {@code where()}, kept for symmetry with {@code Model}.
+     * @param query SQL condition, may use {@code ?} placeholders
+     * @return a new query with the condition added
+     */
+    public Query<T> whereAnd(String query) {
+        return where(query);
+    }
+
+    /**
+     * Adds a {@code JOIN...USING} clause.
+     * @param other class of the table to join with
+     * @param columnName name of shared column to use in join
+     * @return a new query with the join added
+     */
+    public Query<T> joinUsing(Class<? extends Model> other, String columnName) {
+        return new Query<>(clazz, tableName, start + SqlBuilder.joinUsing(Model.tableNameOf(other), columnName),
+            where, orderBy, limit, offset, forcePrimary);
+    }
+
+    /**
+     * Adds a {@code JOIN...ON} clause between this table and {@code other}.
+     * @param other class of the table to join with
+     * @param otherColumnName name of column in other table to use in join
+     * @param thisColumnName name of column in this table to use in join
+     * @return a new query with the join added
+     */
+    public Query<T> joinOn(Class<? extends Model> other, String otherColumnName, String thisColumnName) {
+        String join = SqlBuilder.joinOn(Model.tableNameOf(other), otherColumnName, tableName, thisColumnName);
+        return new Query<>(clazz, tableName, start + join, where, orderBy, limit, offset, forcePrimary);
+    }
+
+    /**
+     * Sets the {@code ORDER BY} clause, replacing any given before.
+     * @param columns column names, each optionally followed by
+     *      {@code ASC} or {@code DESC}
+     * @return a new query with the order set
+     */
+    public Query<T> orderBy(String... columns) {
+        return new Query<>(clazz, tableName, start, where, SqlBuilder.orderBy(columns), limit, offset, forcePrimary);
+    }
+
+    /**
+     * Sets the {@code LIMIT} clause, replacing any given before.
+     * @param rows the most rows to return
+     * @return a new query with the limit set
+     */
+    public Query<T> limit(int rows) {
+        return new Query<>(clazz, tableName, start, where, orderBy, SqlBuilder.limit(rows), offset, forcePrimary);
+    }
+
+    /**
+     * Sets the {@code OFFSET} clause, replacing any given before. The
+     * database still reads every skipped row, so use {@code pages()}
+     * rather than growing offsets to walk through a large table.
+     * @param rows the number of rows to skip
+     * @return a new query with the offset set
+     */
+    public Query<T> offset(int rows) {
+        return new Query<>(clazz, tableName, start, where, orderBy, limit, SqlBuilder.offset(rows), forcePrimary);
+    }
+
+    /**
+     * Makes the query read from the primary database instead of a
+     * read replica. See {@code Model.onPrimary()}.
+     * @return a new query that always reads from the primary
+     */
+    public Query<T> onPrimary() {
+        return new Query<>(clazz, tableName, start, where, orderBy, limit, offset, true);
+    }
+
+    // -------------------------------------------
+    // Terminal operations
+
+    /**
+     * Runs the query with a connection borrowed from the pool.
+     * @param params values for the {@code ?} placeholders, in order
+     * @return a list of objects returned by query, or an empty list
+     *      if the statement is not a {@code SELECT}
+     * @throws ResourcePersistenceException if the statement could not
+     *      be run
+     */
+    public List<T> execute(Object... params) {
+        try {
+            return Model.run(tableName, sqlString, Arrays.asList(params), clazz, isQuery, forcePrimary, keyColumn);
+        } catch (SQLException e) {
+            throw new ResourcePersistenceException("Could not run query: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Runs the query with {@code LIMIT 1}, so only one row is read from
+     * the database, unless a limit was already set.
+     * @param params values for the {@code ?} placeholders, in order
+     * @return the first object returned by the query, or {@code null}
+     *      if there is none
+     * @throws ResourcePersistenceException if the query could not be run
+     */
+    public T first(Object... params) {
+        List<T> models = (limit.isEmpty() ? limit(1) : this).execute(params);
+        return models.isEmpty() ? null : models.get(0);
+    }
+
+    /**
+     * Walks through every row of the query in pages of {@code pageSize}
+     * rows ordered by {@code keyColumn}. Instead of an {@code OFFSET},
+     * which makes the database read and throw away every row before the
+     * page, each page after the first asks for rows whose key is greater
+     * than the last key seen:
+     * <pre>
+     * ... WHERE ... AND keyColumn &gt; ? ORDER BY keyColumn LIMIT pageSize
+     * </pre>
+     * With an index on {@code keyColumn} every page costs the same, however
+     * deep into the table it is. Pages are read lazily, each with its own
+     * pooled connection, so nothing is held open between pages.
+     * <p>
+     * {@code keyColumn} must be unique, never {@code null} and selected by
+     * the query. Rows changed while paging are seen or not depending on
+     * their key, as with any keyset pagination.
+     * @param keyColumn the unique column to order and page by
+     * @param pageSize the most rows in a page
+     * @param params values for the {@code ?} placeholders, in order
+     * @return an iterator over the pages, none of them empty
+     * @throws InvalidQueryException if the query is not a {@code SELECT},
+     *      already has an order, limit or offset, or {@code pageSize}
+     *      is not positive
+     * @throws com.revature.javelin.exceptions.InvalidColumnsException
+     *      if {@code keyColumn} is invalid
+     */
+    public Iterator<List<T>> pages(String keyColumn, int pageSize, Object... params) {
+        if (!isQuery) {
+            throw new InvalidQueryException("Only a SELECT can be paged: " + sqlString);
+        }
+        if (!orderBy.isEmpty() || !limit.isEmpty() || !offset.isEmpty()) {
+            throw new InvalidQueryException("Pages are ordered and limited by their key, " +
+                "remove orderBy(), limit() and offset() from: " + sqlString);
+        }
+        if (pageSize <= 0) {
+            throw new InvalidQueryException("Page size must be positive: " + pageSize);
+        }
+        Query<T> firstPage = orderBy(keyColumn).limit(pageSize);
+        Query<T> nextPage = where(keyColumn + " > ?").orderBy(keyColumn).limit(pageSize);
+        return new KeysetPager<>(firstPage, nextPage, keyColumn, pageSize, params.clone());
+    }
+
+    /**
+     * Same as {@code execute()}, but runs the query on the executor set
+     * with {@code Setup.setExecutor()} and returns straight away.
+     * @param params values for the {@code ?} placeholders, in order
+     * @return a future holding the list of objects returned by query,
+     *      or an empty list. Completes exceptionally if the statement failed.
+     */
+    public CompletableFuture<List<T>> executeAsync(Object... params) {
+        List<Object> values = Arrays.asList(params.clone());
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return Model.run(tableName, sqlString, values, clazz, isQuery, forcePrimary);
+            } catch (SQLException e) {
+                throw new CompletionException(e);
+            }
+        }, Setup.getExecutor());
+    }
+
+    /**
+     * Runs the query and returns its rows one at a time as they are
+     * read from the database. See {@code Model.iterator()}.
+     * @param params values for the {@code ?} placeholders, in order
+     * @return an iterator over the rows, to be closed when done
+     * @throws ResourcePersistenceException if the query could not be run
+     */
+    public ResultIterator<T> iterator(Object... params) {
+        try {
+            return ResultIterator.open(tableName, sqlString, Arrays.asList(params), clazz, forcePrimary);
+        } catch (SQLException e) {
+            throw new ResourcePersistenceException("Could not run query: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Same as {@code iterator()}, but returns a sequential
+     * {@code Stream} that must be closed when done.
+     * @param params values for the {@code ?} placeholders, in order
+     * @return a lazily mapped stream of the rows
+     */
+    public Stream<T> stream(Object... params) {
+        return ResultIterator.stream(iterator(params));
+    }
+
+    /**
+     * Runs the query on the connection owned by {@code session}.
+     * @param session an open session
+     * @param params values for the {@code ?} placeholders, in order
+     * @return a list of objects returned by query, or an empty list
+     *      if the statement is not a {@code SELECT}
+     */
+    public List<T> execute(Session session, Object... params) {
+        return session.run(tableName, sqlString, Arrays.asList(params), clazz, keyColumn,
+            keyColumn != null && params.length == 1);
+    }
+
+    /**
+     * @return the SQL run by this query
+     */
+    public String getSql() { return sqlString; }
+
+    public Class<T> getModelClass() { return clazz; }
+
+    @Override
+    public String toString() {
+        return sqlString;
+    }
+
+    /**
+     * Reads the pages of {@code pages()} one query at a time.
+     */
+    private static final class KeysetPager<T extends Model> implements Iterator<List<T>> {
+
+        private final Query<T> firstPage;
+        private final Query<T> nextPage;
+        private final String keyColumn;
+        private final int pageSize;
+        private final Object[] params;
+
+        /** The page to be returned by {@code next()}, or {@code null} if not read yet. */
+        private List<T> page;
+        private Object lastKey;
+        private boolean done;
+
+        KeysetPager(Query<T> firstPage, Query<T> nextPage, String keyColumn, int pageSize, Object[] params) {
+            this.firstPage = firstPage;
+            this.nextPage = nextPage;
+            this.keyColumn = keyColumn;
+            this.pageSize = pageSize;
+            this.params = params;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (page == null && !done) {
+                page = read();
+                if (page.isEmpty()) {
+                    page = null;
+                    done = true;
+                }
+            }
+            return page != null;
+        }
+
+        @Override
+        public List<T> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            List<T> current = page;
+            page = null;
+            // A short page is the last one, no need to ask again
+            done = current.size() < pageSize;
+            lastKey = current.get(current.size() - 1).get(keyColumn);
+            if (lastKey == null && !done) {
+                throw new InvalidQueryException("Can not page by " + keyColumn +
+                    ", it is null or not selected by: " + firstPage.getSql());
+            }
+            return current;
+        }
+
+        private List<T> read() {
+            Query<T> query = firstPage;
+            List<Object> values = new ArrayList<>(params.length + 1);
+            values.addAll(Arrays.asList(params));
+            if (lastKey != null) {
+                query = nextPage;
+                values.add(lastKey);
+            }
+            try {
+                return Model.run(query.tableName, query.sqlString, values, query.clazz, true, query.forcePrimary);
+            } catch (SQLException e) {
+                throw new ResourcePersistenceException("Could not read page: " + e.getMessage(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.revature.javelin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * A cache of query results in memory, set with
+ * {@code Setup.setQueryCache()}. A {@code SELECT} run with
+ * {@code Model.execute()} or {@code Query.execute()} is answered from
+ * it when the same SQL was run with the same parameters before:
+ * <pre>
+ * Setup.setQueryCache(new QueryCache(1_000, 5_000));
+ * </pre>
+ * A result is stored with the version of every table the query reads,
+ * joined tables and tables in subqueries included. Every write to one
+ * of those tables through javelin moves the table to a new version, so
+ * results read before the write are never used again and age out.
+ * Writes made without javelin are not seen; the time to live bounds
+ * how long such results are used. Queries whose tables can not all be
+ * found, such as those reading a table function, are not cached.
+ * <p>
+ * Queries inside a transaction, on the primary with {@code onPrimary()}
+ * or run by a {@code Session} always read the database. Results read
+ * from a replica are not stored, as the replica may not have caught up
+ * with writes the table versions already count; with replicas set up,
+ * only reads sent to the primary, such as within the read-your-writes
+ * window, fill the cache. Results with more than
+ * {@code maxRowsPerQuery} rows are not stored.
+ */
+public final class QueryCache {
+
+    private static final int DEFAULT_STRIPES = 16;
+    private static final int DEFAULT_MAX_ROWS_PER_QUERY = 1000;
+
+    private final StripedLru<Key, List<Map<String, Object>>> results;
+    private final int maxRowsPerQuery;
+
+    /**
+     * Creates a cache storing results of up to 1000 rows.
+     * @param maxQueries the most results to hold; when full, the one
+     *      used least recently is dropped
+     * @param timeToLiveMillis how long a result is used after it was
+     *      read from the database, or 0 to keep it until it is dropped
+     *      to make room
+     * @throws IllegalArgumentException if {@code maxQueries} is less
+     *      than 1 or {@code timeToLiveMillis} is negative
+     */
+    public QueryCache(int maxQueries, long timeToLiveMillis) {
+        this(maxQueries, timeToLiveMillis, DEFAULT_MAX_ROWS_PER_QUERY);
+    }
+
+    /**
+     * @param maxQueries the most results to hold; when full, the one
+     *      used least recently is dropped
+     * @param timeToLiveMillis how long a result is used after it was
+     *      read from the database, or 0 to keep it until it is dropped
+     *      to make room
+     * @param maxRowsPerQuery the most rows a result may have to be stored
+     * @throws IllegalArgumentException if {@code maxQueries} or
+     *      {@code maxRowsPerQuery} is less than 1 or
+     *      {@code timeToLiveMillis} is negative
+     */
+    public QueryCache(int maxQueries, long timeToLiveMillis, int maxRowsPerQuery) {
+        if (maxRowsPerQuery < 1) {
+            throw new IllegalArgumentException("A query cache must store results of at least 1 row");
+        }
+        this.results = new StripedLru<>(maxQueries, timeToLiveMillis, DEFAULT_STRIPES);
+        this.maxRowsPerQuery = maxRowsPerQuery;
+    }
+
+    /**
+     * Drops every result.
+     */
+    public void clear() { results.clear(); }
+
+    /**
+     * @return the hits, misses and evictions since the cache was created
+     */
+    public CacheStats getStats() { return results.getStats(); }
+
+    /**
+     * @param sql a {@code SELECT}
+     * @param params the values for its placeholders
+     * @return the key of the result of {@code sql} with {@code params},
+     *      or {@code null} if a transaction is running on this thread
+     *      or the tables {@code sql} reads are not known
+     */
+    Key keyFor(String sql, List<Object> params) {
+        if (Transactions.boundConnection() != null) {
+            return null;
+        }
+        Set<String> tables = SqlBuilder.tablesRead(sql);
+        if (tables == null) {
+            // A write to a table left out would not be seen, so do not cache
+            return null;
+        }
+        long[] versions = new long[tables.size()];
+        int i = 0;
+        for (String table : tables) {
+            versions[i++] = TableVersions.current(table);
+        }
+        return new Key(sql, new ArrayList<>(params), versions);
+    }
+
+    /**
+     * @return a new object for every row stored under {@code key}, or
+     *      {@code null} if there is no result stored
+     */
+    @SuppressWarnings("unchecked")
+    <T extends Model> List<T> get(Key key, Class<T> clazz) {
+        List<Map<String, Object>> rows = results.get(key);
+        if (rows == null) {
+            return null;
+        }
+        List<T> models = new ArrayList<>(rows.size());
+        try {
+            for (Map<String, Object> row : rows) {
+                T model = (T) (Model) ModelMetadata.of(clazz).getConstructor().invokeExact();
+                model.loaded(new HashMap<>(row));
+                models.add(model);
+            }
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            // Read the database instead, which reports the error as usual
+            return null;
+        }
+        return models;
+    }
+
+    /**
+     * Stores the rows of {@code found} under {@code key}, unless there
+     * are too many.
+     */
+    void put(Key key, List<? extends Model> found) {
+        if (found.size() > maxRowsPerQuery) {
+            return;
+        }
+        List<Map<String, Object>> rows = new ArrayList<>(found.size());
+        for (Model model : found) {
+            rows.add(Collections.unmodifiableMap(model.copyOfValues()));
+        }
+        results.put(key, Collections.unmodifiableList(rows));
+    }
+
+    /**
+     * A query by its SQL, parameters and the versions of the tables it
+     * reads, in the order {@code SqlBuilder.tablesRead()} found them.
+     */
+    static final class Key {
+        private final String sql;
+        private final List<Object> params;
+        private final long[] versions;
+        private final int hash;
+
+        Key(String sql, List<Object> params, long[] versions) {
+            this.sql = sql;
+            this.params = params;
+            this.versions = versions;
+            this.hash = Objects.hash(sql, params, Arrays.hashCode(versions));
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash && sql.equals(other.sql) && params.equals(other.params)
+                && Arrays.equals(versions, other.versions);
+        }
+
+        @Override
+        public int hashCode() { return hash; }
+    }
+}
@@ -0,0 +1,97 @@
+package com.revature.javelin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.revature.javelin.annotations.NamedQuery;
+import com.revature.javelin.exceptions.InvalidQueryException;
+
+/**
+ * Holds the named queries of every {@code Model} class. The
+ * {@code @NamedQuery} annotations of a class are built into
+ * {@code Query} objects the first time the class is registered or
+ * one of its queries is looked up, so running a named query only
+ * costs a map lookup.
+ */
+final class QueryRegistry {
+
+    private static final Map<Class<?>, Map<String, Query<?>>> queries = new ConcurrentHashMap<>();
+
+    private QueryRegistry() {
+        super();
+    }
+
+    /**
+     * Builds and checks the {@code @NamedQuery} annotations of
+     * {@code clazz}, if that was not done yet.
+     * @param clazz a class inheriting from {@code Model}
+     * @throws InvalidQueryException if a query is invalid or two
+     *      queries share a name
+     * @throws com.revature.javelin.exceptions.InvalidColumnsException
+     *      if a column name is invalid
+     */
+    static void compile(Class<? extends Model> clazz) {
+        queriesOf(clazz);
+    }
+
+    /**
+     * Adds a named query to the class it runs on, replacing any
+     * query with the same name.
+     * @param name the name to run the query by
+     * @param query the query
+     */
+    static void register(String name, Query<?> query) {
+        queriesOf(query.getModelClass()).put(name, query);
+    }
+
+    /**
+     * @param clazz a class inheriting from {@code Model}
+     * @param name the name of the query
+     * @return the query registered as {@code name} on {@code clazz}
+     * @throws InvalidQueryException if there is none
+     */
+    @SuppressWarnings("unchecked")
+    static <T extends Model> Query<T> get(Class<T> clazz, String name) {
+        Query<?> query = queriesOf(clazz).get(name);
+        if (query == null) {
+            throw new InvalidQueryException("No query named " + name + " on " + clazz.getSimpleName() +
+                ". Declare it with @NamedQuery or Setup.registerQuery().");
+        }
+        return (Query<T>) query;
+    }
+
+    /**
+     * @param clazz a class inheriting from {@code Model}
+     * @return every named query of {@code clazz}
+     */
+    static List<Query<?>> all(Class<? extends Model> clazz) {
+        return new ArrayList<>(queriesOf(clazz).values());
+    }
+
+    private static Map<String, Query<?>> queriesOf(Class<? extends Model> clazz) {
+        Map<String, Query<?>> named = queries.get(clazz);
+        if (named == null) {
+            named = queries.computeIfAbsent(clazz, key -> build(clazz));
+        }
+        return named;
+    }
+
+    private static <T extends Model> Map<String, Query<?>> build(Class<T> clazz) {
+        Map<String, Query<?>> named = new ConcurrentHashMap<>();
+        for (NamedQuery annotation : ModelMetadata.of(clazz).getNamedQueries()) {
+            Query<T> query = annotation.columns().length == 0
+                ? Query.findAll(clazz)
+                : Query.findColumns(clazz, annotation.columns());
+            if (!annotation.where().isEmpty()) {
+                query = query.where(annotation.where());
+            }
+            if (named.putIfAbsent(annotation.name(), query) != null) {
+                throw new InvalidQueryException("Query " + annotation.name() +
+                    " is declared twice on " + clazz.getSimpleName());
+            }
+        }
+        return named;
+    }
+}
@@ -0,0 +1,185 @@
+package com.revature.javelin;
+
+import java.lang.reflect.InvocationTargetException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.revature.javelin.exceptions.InvalidQueryException;
+import com.revature.javelin.exceptions.ResourcePersistenceException;
+
+import static com.revature.javelin.AppState.logger;
+
+/**
+ * Walks through the result of a query one row at a time instead of
+ * loading it all into a list. Rows are fetched from the database in
+ * batches of {@code Setup.setFetchSize()} rows and mapped only when
+ * {@code next()} is called, so a query over a large table needs no
+ * more memory than one batch.
+ * <p>
+ * The iterator holds a connection from the pool until it is closed.
+ * It closes itself once the last row has been read; if you stop
+ * earlier, close it yourself, preferably with try-with-resources.
+ * @param <T> object inheriting from {@code Model}
+ */
+public final class ResultIterator<T extends Model> implements Iterator<T>, AutoCloseable {
+
+    private final Connection conn;
+    private final PreparedStatement pstmt;
+    private final ResultSet rs;
+    private final RowMapper<T> mapper;
+    private final int maxRows;
+    private int count = 0;
+    private boolean hasRow = false;
+    private boolean closed = false;
+
+    private ResultIterator(Connection conn, PreparedStatement pstmt, ResultSet rs, RowMapper<T> mapper, int maxRows) {
+        this.conn = conn;
+        this.pstmt = pstmt;
+        this.rs = rs;
+        this.mapper = mapper;
+        this.maxRows = maxRows;
+    }
+
+    /**
+     * Runs a {@code SELECT} with a connection borrowed from the pool
+     * and returns an iterator over its rows. Turns autocommit off on
+     * the connection so that PostgreSQL reads the result through a
+     * cursor instead of sending it all at once.
+     * @throws InvalidQueryException if {@code sqlString} is not a {@code SELECT}
+     * @throws SQLException if the query could not be run
+     */
+    static <T extends Model> ResultIterator<T> open(String tableName, String sqlString, List<Object> params,
+            Class<T> clazz, boolean forcePrimary) throws SQLException {
+        if (!SqlExecutor.isQuery(sqlString)) {
+            throw new InvalidQueryException("Only SELECT statements can be streamed");
+        }
+        logger.info("Streaming sql: " + sqlString);
+        int fetchSize = Setup.getFetchSize();
+        int maxRows = Setup.getMaxStreamRows();
+        Connection conn = Setup.borrowReadConnection(forcePrimary);
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            SqlExecutor.checkTable(conn, tableName);
+            if (conn.getAutoCommit()) {
+                // Given back with autocommit on by the pool
+                conn.setAutoCommit(false);
+            }
+            pstmt = conn.prepareStatement(sqlString, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            pstmt.setFetchSize(fetchSize);
+            if (maxRows > 0) {
+                // One more than allowed, so going over can be noticed
+                pstmt.setMaxRows(maxRows == Integer.MAX_VALUE ? maxRows : maxRows + 1);
+            }
+            for (int i = 0; i < params.size(); i++) {
+                pstmt.setObject(i + 1, params.get(i));
+            }
+            rs = pstmt.executeQuery();
+            return new ResultIterator<>(conn, pstmt, rs, RowMapper.of(clazz, rs.getMetaData()), maxRows);
+        } catch (SQLException e) {
+            Transactions.recordFailure(e);
+            close(rs, pstmt, conn);
+            throw e;
+        } catch (RuntimeException e) {
+            close(rs, pstmt, conn);
+            throw e;
+        } catch (NoSuchMethodException e) {
+            close(rs, pstmt, conn);
+            throw new SQLException(e);
+        }
+    }
+
+    /**
+     * Wraps {@code iterator} in a sequential stream that closes it
+     * when the stream is closed.
+     */
+    static <T extends Model> Stream<T> stream(ResultIterator<T> iterator) {
+        return StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+            .onClose(iterator::close);
+    }
+
+    /**
+     * @throws ResourcePersistenceException if reading the next row failed
+     * @throws InvalidQueryException if the query returned more rows
+     *      than {@code Setup.setMaxStreamRows()} allows
+     */
+    @Override
+    public boolean hasNext() {
+        if (hasRow) {
+            return true;
+        }
+        if (closed) {
+            return false;
+        }
+        try {
+            hasRow = rs.next();
+        } catch (SQLException e) {
+            close();
+            throw new ResourcePersistenceException("Could not read the next row: " + e.getMessage(), e);
+        }
+        if (!hasRow) {
+            close();
+        } else if (maxRows > 0 && count >= maxRows) {
+            close();
+            throw new InvalidQueryException("Query returned more than " + maxRows +
+                " rows. Narrow it down or raise the limit with Setup.setMaxStreamRows().");
+        }
+        return hasRow;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        hasRow = false;
+        count++;
+        try {
+            return mapper.map(rs);
+        } catch (SQLException | InvocationTargetException e) {
+            close();
+            throw new ResourcePersistenceException("Could not read row " + count + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Closes the result set and statement and gives the connection
+     * back to the pool. Safe to call more than once.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        hasRow = false;
+        close(rs, pstmt, conn);
+    }
+
+    public boolean isClosed() { return closed; }
+
+    private static void close(ResultSet rs, PreparedStatement pstmt, Connection conn) {
+        try {
+            if (rs != null) {
+                rs.close();
+            }
+            if (pstmt != null) {
+                pstmt.close();
+            }
+        } catch (SQLException e) {
+            logger.error("Error when closing result set: " + e.getMessage());
+        } finally {
+            Setup.releaseConnection(conn);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.revature.javelin;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.InvocationTargetException;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns rows of a {@code ResultSet} into {@code Model} objects. A
+ * mapper is compiled once per {@code Model} class and result set
+ * shape and kept in the class's {@code ModelMetadata}: the upper case
+ * key of every column is worked out up front and the constructor is
+ * a cached handle, so mapping a row only reads each column by
+ * position and fills a map of the right size.
+ * <p>
+ * If several columns share a name, as in some joins, the first one
+ * wins, just as with {@code ResultSet.getObject(String)}.
+ * @param <T> object inheriting from {@code Model}
+ */
+final class RowMapper<T extends Model> {
+
+    /**
+     * Result set shapes per class beyond this many are compiled
+     * every time instead of cached.
+     */
+    private static final int MAX_MAPPERS = 1024;
+
+    private final MethodHandle constructor;
+    /** Upper case column names by position; {@code null} for repeated names. */
+    private final String[] keys;
+    private final int capacity;
+
+    private RowMapper(MethodHandle constructor, String[] keys) {
+        this.constructor = constructor;
+        this.keys = keys;
+        // Size the map so it never has to grow
+        this.capacity = (int) (keys.length / 0.75f) + 1;
+    }
+
+    /**
+     * Returns the mapper for {@code clazz} and the columns described
+     * by {@code metaData}, compiling it the first time.
+     * @throws SQLException if the metadata could not be read
+     * @throws NoSuchMethodException if {@code clazz} has no public
+     *      no-argument constructor
+     */
+    @SuppressWarnings("unchecked")
+    static <T extends Model> RowMapper<T> of(Class<T> clazz, ResultSetMetaData metaData)
+            throws SQLException, NoSuchMethodException {
+        String[] columns = new String[metaData.getColumnCount()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = metaData.getColumnName(i + 1);
+        }
+        Map<List<String>, RowMapper<?>> mappers = ModelMetadata.of(clazz).getRowMappers();
+        List<String> shape = Arrays.asList(columns);
+        RowMapper<?> mapper = mappers.get(shape);
+        if (mapper == null) {
+            mapper = compile(clazz, columns);
+            if (mappers.size() < MAX_MAPPERS) {
+                mappers.putIfAbsent(shape, mapper);
+            }
+        }
+        return (RowMapper<T>) mapper;
+    }
+
+    private static <T extends Model> RowMapper<T> compile(Class<T> clazz, String[] columns)
+            throws NoSuchMethodException {
+        String[] keys = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            String key = columns[i].toUpperCase();
+            boolean repeated = false;
+            for (int j = 0; j < i && !repeated; j++) {
+                repeated = key.equals(keys[j]);
+            }
+            keys[i] = repeated ? null : key;
+        }
+        return new RowMapper<>(ModelMetadata.of(clazz).getConstructor(), keys);
+    }
+
+    /**
+     * Creates an object from the current row of {@code rs}.
+     * @param rs a result set of the shape this mapper was compiled for
+     * @return the new object
+     * @throws SQLException if a column could not be read
+     * @throws InvocationTargetException if the constructor threw
+     *      a checked exception
+     */
+    @SuppressWarnings("unchecked")
+    T map(ResultSet rs) throws SQLException, InvocationTargetException {
+        HashMap<String, Object> fieldMap = new HashMap<>(capacity);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                fieldMap.put(keys[i], rs.getObject(i + 1));
+            }
+        }
+        T model;
+        try {
+            model = (T) (Model) constructor.invokeExact();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new InvocationTargetException(e);
+        }
+        model.loaded(fieldMap);
+        return model;
+    }
+}
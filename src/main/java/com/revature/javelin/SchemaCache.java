@@ -0,0 +1,224 @@
+package com.revature.javelin;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.revature.javelin.exceptions.ResourcePersistenceException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Remembers which tables exist and what columns they have, so that
+ * checking a table before each statement does not cost a trip to
+ * {@code DatabaseMetaData}. Tables are looked up the first time they
+ * are used, or all at once with {@code loadAll()}, and kept until
+ * {@code invalidate()} is called or, if a time to live is set, until
+ * they are older than it. Tables that do not exist are not
+ * remembered, so creating one later is noticed right away.
+ * Safe to use from any number of threads.
+ */
+final class SchemaCache {
+
+    private static final Logger logger = LogManager.getLogger(SchemaCache.class);
+
+    /** Tables by upper case name. */
+    private final Map<String, TableInfo> tables = new ConcurrentHashMap<>();
+    private volatile long timeToLive = 0;
+
+    /**
+     * Sets how long a table stays cached before it is looked up again.
+     * @param millis the time to live in milliseconds, or 0 to keep
+     *      tables until they are invalidated
+     */
+    void setTimeToLive(long millis) { this.timeToLive = millis; }
+
+    long getTimeToLive() { return timeToLive; }
+
+    /**
+     * Checks that {@code tableName} exists, looking it up on
+     * {@code conn} if it is not cached.
+     * @throws ResourcePersistenceException if it does not exist
+     * @throws SQLException if a database access error occurs
+     */
+    void checkTable(Connection conn, String tableName) throws SQLException {
+        if (get(conn, tableName) == null) {
+            throw new ResourcePersistenceException("Table " +
+                tableName +
+                " could not be found, please create table and try again.");
+        }
+    }
+
+    /**
+     * Returns the columns of {@code tableName}, looking the table up
+     * on {@code conn} if it is not cached.
+     * @return the column names in table order, mapped to their
+     *      {@code java.sql.Types}, or an empty map if the table is unknown
+     * @throws SQLException if a database access error occurs
+     */
+    Map<String, Integer> columnsOf(Connection conn, String tableName) throws SQLException {
+        TableInfo table = get(conn, tableName);
+        return table == null ? Collections.<String, Integer>emptyMap() : table.columns;
+    }
+
+    /**
+     * Returns the columns of {@code tableName} if it is cached,
+     * without going to the database.
+     * @return the column names mapped to their {@code java.sql.Types},
+     *      or {@code null} if the table is not cached
+     */
+    Map<String, Integer> cachedColumnsOf(String tableName) {
+        TableInfo table = tables.get(tableName.toUpperCase());
+        long ttl = timeToLive;
+        if (table == null || (ttl > 0 && System.currentTimeMillis() - table.loadedAt >= ttl)) {
+            return null;
+        }
+        return table.columns;
+    }
+
+    /**
+     * Looks up every table in the current schema of {@code conn}
+     * with a single metadata call and caches them all.
+     * @throws SQLException if a database access error occurs
+     */
+    void loadAll(Connection conn) throws SQLException {
+        Map<String, Map<String, Integer>> found = new LinkedHashMap<>();
+        DatabaseMetaData metaData = conn.getMetaData();
+        try (ResultSet rs = metaData.getColumns(null, escape(metaData, conn.getSchema()), "%", null)) {
+            while (rs.next()) {
+                found.computeIfAbsent(rs.getString("TABLE_NAME").toUpperCase(), k -> new LinkedHashMap<>())
+                    .put(rs.getString("COLUMN_NAME"), rs.getInt("DATA_TYPE"));
+            }
+        }
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Map<String, Integer>> entry : found.entrySet()) {
+            tables.put(entry.getKey(), new TableInfo(entry.getValue(), now));
+        }
+        logger.info("Loaded " + found.size() + " tables into the schema cache");
+    }
+
+    /**
+     * Forgets {@code tableName}, so it is looked up again next time.
+     * Call after changing the table with DDL.
+     * @param tableName the table to forget
+     */
+    void invalidate(String tableName) {
+        tables.remove(tableName.toUpperCase());
+    }
+
+    /**
+     * Forgets every table.
+     */
+    void invalidateAll() {
+        tables.clear();
+    }
+
+    /**
+     * @return the number of tables currently cached
+     */
+    int size() { return tables.size(); }
+
+    private TableInfo get(Connection conn, String tableName) throws SQLException {
+        String key = tableName.toUpperCase();
+        TableInfo table = tables.get(key);
+        long ttl = timeToLive;
+        if (table != null && (ttl <= 0 || System.currentTimeMillis() - table.loadedAt < ttl)) {
+            return table;
+        }
+        table = load(conn, tableName);
+        if (table == null) {
+            tables.remove(key);
+        } else {
+            tables.put(key, table);
+        }
+        return table;
+    }
+
+    /**
+     * Looks up the columns of {@code tableName} in the schema it is
+     * qualified with, or else the current schema of {@code conn}, trying
+     * the name as given and in the upper and lower case most databases
+     * fold unquoted names to, then any table whose name matches ignoring
+     * case.
+     * @return the table, or {@code null} if it does not exist
+     */
+    private static TableInfo load(Connection conn, String tableName) throws SQLException {
+        DatabaseMetaData metaData = conn.getMetaData();
+        for (String qualified : new String[] { tableName, tableName.toUpperCase(), tableName.toLowerCase() }) {
+            TableInfo table = loadColumns(metaData, schemaOf(conn, qualified), nameOf(qualified));
+            if (table != null) {
+                return table;
+            }
+        }
+        String schema = schemaOf(conn, tableName);
+        String actualName = null;
+        try (ResultSet rs = metaData.getTables(null, schema, "%", null)) {
+            while (rs.next()) {
+                if (rs.getString(3).equalsIgnoreCase(nameOf(tableName))) {
+                    actualName = rs.getString(3);
+                    break;
+                }
+            }
+        }
+        return actualName == null ? null : loadColumns(metaData, schema, actualName);
+    }
+
+    /**
+     * @return the schema {@code tableName} is qualified with, or else
+     *      the current schema of {@code conn}, escaped for a metadata pattern
+     */
+    private static String schemaOf(Connection conn, String tableName) throws SQLException {
+        int dot = tableName.lastIndexOf('.');
+        return escape(conn.getMetaData(), dot < 0 ? conn.getSchema() : tableName.substring(0, dot));
+    }
+
+    /**
+     * @return {@code tableName} without the schema it is qualified with
+     */
+    private static String nameOf(String tableName) {
+        return tableName.substring(tableName.lastIndexOf('.') + 1);
+    }
+
+    private static TableInfo loadColumns(DatabaseMetaData metaData, String schema, String name)
+            throws SQLException {
+        Map<String, Integer> columns = new LinkedHashMap<>();
+        try (ResultSet rs = metaData.getColumns(null, schema, escape(metaData, name), null)) {
+            while (rs.next()) {
+                columns.put(rs.getString("COLUMN_NAME"), rs.getInt("DATA_TYPE"));
+            }
+        }
+        return columns.isEmpty() ? null : new TableInfo(columns, System.currentTimeMillis());
+    }
+
+    /**
+     * Escapes the {@code _} and {@code %} wildcards in {@code name}, so
+     * it only matches itself when passed as a metadata pattern.
+     * @return the escaped name, or {@code null} if {@code name} is {@code null}
+     */
+    private static String escape(DatabaseMetaData metaData, String name) throws SQLException {
+        String escape = metaData.getSearchStringEscape();
+        if (name == null || escape == null || escape.isEmpty()) {
+            return name;
+        }
+        return name.replace(escape, escape + escape).replace("_", escape + "_").replace("%", escape + "%");
+    }
+
+    /**
+     * The columns of one table and when they were looked up.
+     */
+    private static final class TableInfo {
+        final Map<String, Integer> columns;
+        final long loadedAt;
+
+        TableInfo(Map<String, Integer> columns, long loadedAt) {
+            this.columns = Collections.unmodifiableMap(columns);
+            this.loadedAt = loadedAt;
+        }
+    }
+}
@@ -0,0 +1,596 @@
+package com.revature.javelin;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import com.revature.javelin.exceptions.InvalidColumnsException;
+import com.revature.javelin.exceptions.InvalidQueryException;
+import com.revature.javelin.exceptions.ResourcePersistenceException;
+
+import static com.revature.javelin.AppState.logger;
+
+/**
+ * A unit of work against the database. A {@code Session} owns one
+ * connection from the {@code Setup} pool, its own settings and the
+ * state of every query started from it, so models passed to it are
+ * only read and written as plain data. Open one session per thread
+ * or request with {@code Setup.openSession()} and close it when done,
+ * preferably with try-with-resources:
+ * <pre>
+ * try (Session session = Setup.openSession()) {
+ *     List&lt;User&gt; users = session.findAll(User.class).where("age &gt; 20").execute();
+ * }
+ * </pre>
+ * Calls on one session from several threads are run one at a time.
+ * A statement that fails throws a {@code ResourcePersistenceException};
+ * inside a transaction that also rolls the transaction back.
+ */
+public final class Session implements AutoCloseable {
+
+    private final Connection conn;
+    private final boolean readOnly;
+    private volatile int queryTimeout = 0;
+    private volatile boolean closed = false;
+    /** The objects loaded by this session, or {@code null} if it keeps none. */
+    private IdentityMap identityMap = null;
+
+    /**
+     * Creates a session that owns {@code conn} until it is closed.
+     * @param conn a connection borrowed from the {@code Setup} pool
+     * @param readOnly whether the session only allows {@code SELECT}s
+     */
+    Session(Connection conn, boolean readOnly) {
+        this.conn = conn;
+        this.readOnly = readOnly;
+    }
+
+    // -------------------------------------------
+    // Settings
+
+    /**
+     * Sets the number of seconds any statement run by this session
+     * may take before it is cancelled.
+     * @param seconds the timeout, or 0 for no limit
+     */
+    public void setQueryTimeout(int seconds) { this.queryTimeout = seconds; }
+
+    public int getQueryTimeout() { return queryTimeout; }
+
+    public boolean isClosed() { return closed; }
+
+    /**
+     * Turns the identity map of this session on or off. With it on,
+     * every row of a model's table this session loads is kept by its
+     * key, and loading the same row again returns the object already
+     * loaded instead of a new one. Lookups by key, such as
+     * {@code findAllById()}, then cost no round trip at all.
+     * <p>
+     * A row's key is the primary key named in the {@code @Table}
+     * annotation of its class, or the column given to
+     * {@code findAllById()}. Only rows with every column of the table
+     * are kept, so objects from joins or {@code findColumns()} are
+     * never shared. A {@code DELETE} forgets the table's objects and
+     * a rolled back transaction forgets all of them. Off by default.
+     * @param enabled whether to keep loaded objects
+     */
+    public synchronized void setIdentityMap(boolean enabled) {
+        if (!enabled) {
+            identityMap = null;
+        } else if (identityMap == null) {
+            identityMap = new IdentityMap();
+        }
+    }
+
+    public synchronized boolean hasIdentityMap() { return identityMap != null; }
+
+    /**
+     * Forgets every object kept by the identity map, so the next
+     * lookups read the database again. Use it after rows were changed
+     * outside of this session.
+     */
+    public synchronized void clearIdentityMap() {
+        if (identityMap != null) {
+            identityMap.clear();
+        }
+    }
+
+    /**
+     * @return {@code true} if this session was opened with
+     *      {@code Setup.openReadOnlySession()} and may be
+     *      reading from a replica
+     */
+    public boolean isReadOnly() { return readOnly; }
+
+    // -------------------------------------------
+    // Starting operations
+
+    /**
+     * Starts a query to find all objects in the table of {@code clazz}.
+     * @param <T> object inheriting from {@code Model}
+     * @param clazz the {@code Class} of the objects to find
+     * @return a query to chain intermediary operations onto
+     */
+    public <T extends Model> SessionQuery<T> findAll(Class<T> clazz) {
+        String tableName = Model.tableNameOf(clazz);
+        return new SessionQuery<>(this, clazz, tableName, SqlBuilder.selectAll(tableName));
+    }
+
+    /**
+     * Starts a query to find objects by the given {@code id}.
+     * @param <T> object inheriting from {@code Model}
+     * @param clazz the {@code Class} of the objects to find
+     * @param idColumnName the name of the column with the id value
+     * @param id the id of the object to search for
+     * @return a query to chain intermediary operations onto
+     */
+    public <T extends Model> SessionQuery<T> findAllById(Class<T> clazz, String idColumnName, int id) {
+        return findAllByColumn(clazz, idColumnName, id).byKey(idColumnName);
+    }
+
+    /**
+     * Starts a query to find objects with the given {@code value}
+     * for {@code columnName}.
+     * @param <T> object inheriting from {@code Model}
+     * @param clazz the {@code Class} of the objects to find
+     * @param columnName the name of the column to be searched
+     * @param value the value to be searched for within {@code columnName}
+     * @return a query to chain intermediary operations onto
+     */
+    public <T extends Model> SessionQuery<T> findAllByColumn(Class<T> clazz, String columnName, Object value) {
+        String tableName = Model.tableNameOf(clazz);
+        SessionQuery<T> query = new SessionQuery<>(this, clazz, tableName,
+            SqlBuilder.selectWhere(tableName, columnName), value);
+        return columnName.equalsIgnoreCase(ModelMetadata.of(clazz).getPrimaryKey()) ? query.byKey(columnName) : query;
+    }
+
+    /**
+     * Starts a query to find specified columns of objects in the
+     * table of {@code clazz}.
+     * @param <T> object inheriting from {@code Model}
+     * @param clazz the {@code Class} of the objects to find
+     * @param columnList the name of columns for desired values
+     * @return a query to chain intermediary operations onto
+     */
+    public <T extends Model> SessionQuery<T> findColumns(Class<T> clazz, String... columnList) {
+        String tableName = Model.tableNameOf(clazz);
+        return new SessionQuery<>(this, clazz, tableName, SqlBuilder.selectColumns(tableName, columnList));
+    }
+
+    /**
+     * Starts a {@code DELETE} statement on the table of {@code clazz}.
+     * Use intermediary operations to specify what to delete.
+     * @param <T> object inheriting from {@code Model}
+     * @param clazz the {@code Class} of the objects to delete
+     * @return a query to chain intermediary operations onto
+     */
+    public <T extends Model> SessionQuery<T> delete(Class<T> clazz) {
+        String tableName = Model.tableNameOf(clazz);
+        return new SessionQuery<>(this, clazz, tableName, SqlBuilder.delete(tableName));
+    }
+
+    // -------------------------------------------
+    // Terminal operations
+
+    /**
+     * Creates a new record from all fields and values in {@code model}.
+     * @param <T> object inheriting from {@code Model}
+     * @param model the object to insert
+     * @throws InvalidColumnsException if no fields are set
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Model> void create(T model) {
+        HashMap<String, Object> fieldsAndValues = model.getFieldsAndValues();
+        if (fieldsAndValues.isEmpty()) {
+            throw new InvalidColumnsException("No columns are set");
+        }
+        SqlTemplates.Template template = SqlTemplates.insert(model.getTableName(), fieldsAndValues.keySet());
+        logger.info("Creating object in table " + model.getTableName());
+        run(model.getTableName(), template.sql, template.params(fieldsAndValues), (Class<T>) model.getClass());
+        written(model, null);
+    }
+
+    /**
+     * Creates a new record from all fields and values in {@code model}
+     * and adds the primary key column and value to {@code model}
+     * afterwards. The key is returned by the {@code INSERT} itself, so
+     * this costs one round trip. If the driver returns no key,
+     * {@code model} keeps the value it had.
+     * @param <T> object inheriting from {@code Model}
+     * @param model the object to insert
+     * @param primaryKeyColumnName the name of the primary key column
+     * @throws InvalidColumnsException if no fields are set
+     * @throws ResourcePersistenceException if the insert failed
+     */
+    public synchronized <T extends Model> void create(T model, String primaryKeyColumnName) {
+        SqlBuilder.sanitizeColumn(primaryKeyColumnName);
+        HashMap<String, Object> fieldsAndValues = model.getFieldsAndValues();
+        if (fieldsAndValues.isEmpty()) {
+            throw new InvalidColumnsException("No columns are set");
+        }
+        checkOpen();
+        if (readOnly) {
+            throw new InvalidQueryException("Read-only sessions can only run SELECT statements");
+        }
+        SqlTemplates.Template template = SqlTemplates.insert(model.getTableName(), fieldsAndValues.keySet());
+        logger.info("Creating object in table " + model.getTableName());
+        Object primaryKeyValue = SqlExecutor.insert(conn, model.getTableName(), template.sql,
+            template.params(fieldsAndValues), primaryKeyColumnName);
+        Setup.markWrite();
+        if (primaryKeyValue != null) {
+            fieldsAndValues.put(primaryKeyColumnName.toUpperCase(), primaryKeyValue);
+        }
+        written(model, primaryKeyColumnName);
+    }
+
+    /**
+     * Creates a new record for every object in {@code models}, sending
+     * the inserts to the database in batches of {@code Setup.setBatchSize()}
+     * rows instead of one round trip each. Objects are grouped by table
+     * and set of columns, and each group is sent as its own batches, so
+     * objects do not need to share their columns. Groups are inserted in
+     * the order their first object appears in {@code models}.
+     * <p>
+     * Unless the session is in a transaction, every batch is committed
+     * on its own. Use {@code Model.createAll()} or {@code inTransaction()}
+     * to create all of the objects or none.
+     * @param <T> object inheriting from {@code Model}
+     * @param models the objects to insert
+     * @throws InvalidColumnsException if an object has no fields set
+     * @throws ResourcePersistenceException if a batch failed
+     */
+    public <T extends Model> void createAll(List<T> models) {
+        insertAll(models, null);
+        written(models, null);
+    }
+
+    /**
+     * Same as {@code createAll(List)}, but also adds the key generated
+     * for each record to its object, as {@code create(model, column)}
+     * does. Keys are set only if the driver returns a key for every row
+     * of a batch, as PostgreSQL does; otherwise a warning is logged.
+     * @param <T> object inheriting from {@code Model}
+     * @param models the objects to insert
+     * @param primaryKeyColumnName the name of the generated key column
+     * @throws InvalidColumnsException if an object has no fields set
+     * @throws ResourcePersistenceException if a batch failed
+     */
+    public <T extends Model> void createAll(List<T> models, String primaryKeyColumnName) {
+        SqlBuilder.sanitizeColumn(primaryKeyColumnName);
+        insertAll(models, primaryKeyColumnName);
+        written(models, primaryKeyColumnName);
+    }
+
+    private <T extends Model> void insertAll(List<T> models, String keyColumn) {
+        logger.info("Creating " + models.size() + " objects");
+        writeAll(models, model -> SqlTemplates.insert(model.getTableName(), model.getFieldsAndValues().keySet()),
+            keyColumn);
+    }
+
+    /**
+     * Sends the statement {@code templateOf} gives for every object in
+     * {@code models} as batches, one statement per table and set of
+     * columns.
+     * @param templateOf the statement writing an object
+     * @param keyColumn the generated column to set on inserted
+     *      objects, or {@code null}
+     * @return the number of rows each object changed, in order
+     */
+    private synchronized <T extends Model> int[] writeAll(List<T> models,
+            Function<Model, SqlTemplates.Template> templateOf, String keyColumn) {
+        checkOpen();
+        if (readOnly) {
+            throw new InvalidQueryException("Read-only sessions can only run SELECT statements");
+        }
+        // Group by statement, keeping the order of first appearance
+        Map<String, BatchGroup> groups = new LinkedHashMap<>();
+        for (int i = 0; i < models.size(); i++) {
+            Model model = models.get(i);
+            HashMap<String, Object> fieldsAndValues = model.getFieldsAndValues();
+            if (fieldsAndValues.isEmpty()) {
+                throw new InvalidColumnsException("No columns are set");
+            }
+            SqlTemplates.Template template = templateOf.apply(model);
+            BatchGroup group = groups.get(template.sql);
+            if (group == null) {
+                group = new BatchGroup(model.getTableName(), template);
+                groups.put(template.sql, group);
+            }
+            group.indexes.add(i);
+            group.rows.add(template.params(fieldsAndValues));
+        }
+
+        int[] counts = new int[models.size()];
+        try {
+            for (BatchGroup group : groups.values()) {
+                List<Object> keys = keyColumn == null ? null : new ArrayList<>(group.rows.size());
+                int[] groupCounts = SqlExecutor.executeBatch(conn, group.tableName, group.template.sql,
+                    group.rows, keyColumn, keys);
+                for (int i = 0; i < groupCounts.length; i++) {
+                    counts[group.indexes.get(i)] = groupCounts[i];
+                }
+                if (keys != null) {
+                    setKeys(models, group, keyColumn, keys);
+                }
+            }
+        } catch (SQLException e) {
+            throw new ResourcePersistenceException("Could not write objects: " + e.getMessage(), e);
+        } finally {
+            Setup.markWrite();
+        }
+        return counts;
+    }
+
+    private static <T extends Model> void setKeys(List<T> models, BatchGroup group, String keyColumn,
+            List<Object> keys) {
+        if (keys.size() != group.rows.size()) {
+            logger.warn("The driver returned " + keys.size() + " generated keys for " + group.rows.size() +
+                " rows, keys are not set");
+            return;
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            models.get(group.indexes.get(i)).getFieldsAndValues().put(keyColumn.toUpperCase(), keys.get(i));
+        }
+    }
+
+    /**
+     * Objects of one table and set of columns, by their position in
+     * the list written, and their values.
+     */
+    private static final class BatchGroup {
+        final String tableName;
+        final SqlTemplates.Template template;
+        final List<Integer> indexes = new ArrayList<>();
+        final List<List<Object>> rows = new ArrayList<>();
+
+        BatchGroup(String tableName, SqlTemplates.Template template) {
+            this.tableName = tableName;
+            this.template = template;
+        }
+    }
+
+    /**
+     * Updates the record with the same primary key value as
+     * {@code model} to the fields and values in {@code model}. As with
+     * {@code Model.update()}, if {@code model} was read or written
+     * before, only the columns changed since are written, and nothing
+     * is sent at all if none changed.
+     * @param <T> object inheriting from {@code Model}
+     * @param model the object to update
+     * @param primaryKeyColumn the name of the primary key column in the table
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Model> void update(T model, String primaryKeyColumn) {
+        SqlTemplates.Template template = model.updateTemplate(primaryKeyColumn);
+        if (template == null) {
+            logger.info("Nothing changed, not updating object: " + model.toString());
+            return;
+        }
+        logger.info("Updating object: " + model.toString());
+        run(model.getTableName(), template.sql, template.params(model.getFieldsAndValues()),
+            (Class<T>) model.getClass());
+        written(model, primaryKeyColumn);
+    }
+
+    /**
+     * Updates the record of every object in {@code models}, matched by
+     * {@code primaryKeyColumn}, to all fields and values in the object.
+     * The updates are sent in batches of {@code Setup.setBatchSize()}
+     * rows, grouped by table and set of columns like {@code createAll()}.
+     * An object with no record is not an error: its count is 0 and the
+     * other objects are still updated.
+     * <p>
+     * Unless the session is in a transaction, every batch is committed
+     * on its own. Use {@code Model.updateAll()} or {@code inTransaction()}
+     * to update all of the objects or none.
+     * @param <T> object inheriting from {@code Model}
+     * @param models the objects to update
+     * @param primaryKeyColumn the name of the primary key column in the table
+     * @return the number of rows updated for each object, in order, or
+     *      {@code Statement.SUCCESS_NO_INFO} where the driver does not know
+     * @throws InvalidColumnsException if an object has no fields set or
+     *      {@code primaryKeyColumn} is invalid
+     * @throws ResourcePersistenceException if a batch failed
+     */
+    public <T extends Model> int[] updateAll(List<T> models, String primaryKeyColumn) {
+        SqlBuilder.sanitizeColumn(primaryKeyColumn);
+        logger.info("Updating " + models.size() + " objects");
+        int[] counts = writeAll(models,
+            model -> SqlTemplates.update(model.getTableName(), model.getFieldsAndValues().keySet(), primaryKeyColumn),
+            null);
+        written(models, primaryKeyColumn);
+        return counts;
+    }
+
+    /**
+     * Inserts {@code model}, or updates the record with the same values
+     * in {@code conflictColumns} if there is one, in a single statement:
+     * {@code INSERT ... ON CONFLICT ... DO UPDATE} on PostgreSQL and
+     * {@code MERGE ... KEY} on H2. The conflict columns must be set in
+     * {@code model} and, on PostgreSQL, be covered by a unique index.
+     * @param <T> object inheriting from {@code Model}
+     * @param model the object to write
+     * @param conflictColumns the columns identifying an existing record
+     * @throws InvalidColumnsException if no fields are set or a conflict
+     *      column is invalid or not set
+     * @throws InvalidQueryException if the database has no upsert
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Model> void upsert(T model, String... conflictColumns) {
+        HashMap<String, Object> fieldsAndValues = model.getFieldsAndValues();
+        if (fieldsAndValues.isEmpty()) {
+            throw new InvalidColumnsException("No columns are set");
+        }
+        SqlTemplates.Template template = SqlTemplates.upsert(Setup.getDialect(), model.getTableName(),
+            fieldsAndValues.keySet(), conflictColumns);
+        logger.info("Upserting object: " + model.toString());
+        run(model.getTableName(), template.sql, template.params(fieldsAndValues), (Class<T>) model.getClass());
+        written(model, conflictColumns.length == 1 ? conflictColumns[0] : null);
+    }
+
+    /**
+     * Same as {@code upsert()} for every object in {@code models}, sent
+     * in batches like {@code createAll()}.
+     * <p>
+     * Unless the session is in a transaction, every batch is committed
+     * on its own. Use {@code Model.upsertAll()} or {@code inTransaction()}
+     * to write all of the objects or none.
+     * @param <T> object inheriting from {@code Model}
+     * @param models the objects to write
+     * @param conflictColumns the columns identifying an existing record
+     * @throws InvalidColumnsException if an object has no fields set or
+     *      a conflict column is invalid or not set
+     * @throws InvalidQueryException if the database has no upsert
+     * @throws ResourcePersistenceException if a batch failed
+     */
+    public <T extends Model> void upsertAll(List<T> models, String... conflictColumns) {
+        Dialect dialect = Setup.getDialect();
+        logger.info("Upserting " + models.size() + " objects");
+        writeAll(models, model -> SqlTemplates.upsert(dialect, model.getTableName(),
+            model.getFieldsAndValues().keySet(), conflictColumns), null);
+        written(models, conflictColumns.length == 1 ? conflictColumns[0] : null);
+    }
+
+    /**
+     * Runs {@code work} in a single transaction on this session's
+     * connection. See {@code Setup.inTransaction(TransactionWork)}.
+     * @param work the operations to run
+     * @throws SQLException if the transaction could not be committed
+     *      or it was rolled back
+     */
+    public void inTransaction(TransactionWork work) throws SQLException {
+        inTransaction(-1, false, work);
+    }
+
+    /**
+     * Runs {@code work} in a single transaction on this session's
+     * connection with the given isolation level and read-only hint.
+     * See {@code Setup.inTransaction(int, boolean, TransactionWork)}.
+     * @param isolation one of the {@code Connection.TRANSACTION_*} levels,
+     *      or -1 for the database default
+     * @param readOnly tells the database nothing will be written
+     * @param work the operations to run
+     * @throws SQLException if the transaction could not be committed
+     *      or it was rolled back
+     */
+    public synchronized void inTransaction(int isolation, boolean readOnly, TransactionWork work) throws SQLException {
+        checkOpen();
+        try {
+            Transactions.run(this, isolation, readOnly, work);
+        } catch (SQLException | RuntimeException e) {
+            // Objects loaded or written in the transaction may hold rolled back values
+            clearIdentityMap();
+            throw e;
+        }
+    }
+
+    /**
+     * Gives the connection back to the pool. The session can not
+     * be used afterwards.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        Setup.releaseConnection(conn);
+    }
+
+    /**
+     * Runs a statement on the connection owned by this session.
+     * @throws ResourcePersistenceException if the statement failed
+     */
+    <T extends Model> List<T> run(String tableName, String sqlString, List<Object> params, Class<T> clazz) {
+        return run(tableName, sqlString, params, clazz, null, false);
+    }
+
+    /**
+     * Runs a statement on the connection owned by this session and
+     * swaps rows already in the identity map for the kept objects.
+     * A lookup by primary key is answered from the entity cache if
+     * the row is there.
+     * @param keyColumn the column identifying the rows found, or
+     *      {@code null} for the primary key of {@code clazz}
+     * @param byKey whether the statement finds the rows with
+     *      {@code keyColumn} equal to its only parameter
+     * @throws ResourcePersistenceException if the statement failed
+     */
+    synchronized <T extends Model> List<T> run(String tableName, String sqlString, List<Object> params,
+            Class<T> clazz, String keyColumn, boolean byKey) {
+        checkOpen();
+        boolean isQuery = SqlExecutor.isQuery(sqlString);
+        if (readOnly && !isQuery) {
+            throw new InvalidQueryException("Read-only sessions can only run SELECT statements");
+        }
+        EntityCache.Key key = byKey ? EntityCaching.keyFor(clazz, tableName, keyColumn, params.get(0)) : null;
+        List<T> result = key == null ? null : EntityCaching.get(key, clazz);
+        if (result == null) {
+            try {
+                result = SqlExecutor.executeOrThrow(conn, tableName, sqlString, params, clazz, queryTimeout);
+            } catch (SQLException e) {
+                throw new ResourcePersistenceException("Could not run statement: " + e.getMessage(), e);
+            }
+            // A replica may not have the writes the table version in the key already counts
+            if (key != null && !Setup.isReplica(conn)) {
+                EntityCaching.put(key, result);
+            }
+        }
+        if (!isQuery) {
+            Setup.markWrite();
+            if (identityMap != null && sqlString.startsWith("DELETE")) {
+                identityMap.evict(tableName);
+            }
+        } else if (identityMap != null) {
+            identityMap.resolve(result, clazz, tableName, keyColumn);
+        }
+        return result;
+    }
+
+    /**
+     * @return the object kept by the identity map for the row of
+     *      {@code tableName} with {@code value} in {@code keyColumn},
+     *      or {@code null} if there is none or no identity map
+     */
+    @SuppressWarnings("unchecked")
+    synchronized <T extends Model> T known(Class<T> clazz, String tableName, String keyColumn, Object value) {
+        checkOpen();
+        if (identityMap == null) {
+            return null;
+        }
+        Model kept = identityMap.get(tableName, keyColumn != null ? keyColumn : ModelMetadata.of(clazz).getPrimaryKey(),
+            value);
+        return kept != null && kept.getClass() == clazz ? (T) kept : null;
+    }
+
+    /**
+     * Remembers the values of {@code model} as the ones in the database,
+     * so a later update only writes what changes, and tells the identity
+     * map it was written.
+     */
+    private synchronized void written(Model model, String keyColumn) {
+        model.markClean();
+        if (identityMap != null) {
+            identityMap.written(model, keyColumn);
+        }
+    }
+
+    private synchronized void written(List<? extends Model> models, String keyColumn) {
+        for (Model model : models) {
+            written(model, keyColumn);
+        }
+    }
+
+    Connection getConnection() { return conn; }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new InvalidQueryException("Session is closed");
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.revature.javelin;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.revature.javelin.AppState.logger;
+
+/**
+ * A query started from a {@link Session}. Holds the SQL and parameters
+ * being built, so every query has its own state and nothing is kept
+ * on the models involved. Intermediary operations return {@code this}
+ * and {@code execute()} runs the query on the session's connection.
+ * @param <T> object inheriting from {@code Model}
+ */
+public final class SessionQuery<T extends Model> {
+
+    private final Session session;
+    private final Class<T> clazz;
+    private final String tableName;
+    private final StringBuilder sqlString;
+    private final List<Object> params = new ArrayList<>();
+    private boolean hasWhere = false;
+    /** The column identifying the rows found, or {@code null} for the primary key. */
+    private String keyColumn = null;
+    /** Whether the query still only asks for the row with {@code keyColumn} = its parameter. */
+    private boolean byKey = false;
+
+    SessionQuery(Session session, Class<T> clazz, String tableName, String startingSql, Object... startingParams) {
+        this.session = session;
+        this.clazz = clazz;
+        this.tableName = tableName;
+        this.sqlString = new StringBuilder(startingSql);
+        this.hasWhere = startingSql.contains(" WHERE ");
+        for (Object param : startingParams) {
+            params.add(param);
+        }
+    }
+
+    /**
+     * Starts or continues a {@code WHERE} clause. The first call adds
+     * {@code WHERE}, later calls add {@code AND}.
+     * @param query SQL condition, may use {@code ?} placeholders
+     * @param values values for the placeholders in {@code query}
+     * @return {@code this} to allow for method chaining
+     */
+    public SessionQuery<T> where(String query, Object... values) {
+        byKey = false;
+        sqlString.append(hasWhere ? SqlBuilder.and(query) : SqlBuilder.where(query));
+        hasWhere = true;
+        for (Object value : values) {
+            params.add(value);
+        }
+        logger.info("Continuing where clause: " + sqlString);
+        return this;
+    }
+
+    /**
+     * Same as {@code where()}, kept for symmetry with {@code Model}.
+     * @param query SQL condition, may use {@code ?} placeholders
+     * @param values values for the placeholders in {@code query}
+     * @return {@code this} to allow for method chaining
+     */
+    public SessionQuery<T> whereAnd(String query, Object... values) {
+        return where(query, values);
+    }
+
+    /**
+     * Adds a {@code JOIN...USING} clause.
+     * @param other class of the table to join with
+     * @param columnName name of shared column to use in join
+     * @return {@code this} to allow for method chaining
+     */
+    public SessionQuery<T> joinUsing(Class<? extends Model> other, String columnName) {
+        byKey = false;
+        sqlString.append(SqlBuilder.joinUsing(Model.tableNameOf(other), columnName));
+        return this;
+    }
+
+    /**
+     * Adds a {@code JOIN...ON} clause between this table and {@code other}.
+     * @param other class of the table to join with
+     * @param otherColumnName name of column in other table to use in join
+     * @param thisColumnName name of column in this table to use in join
+     * @return {@code this} to allow for method chaining
+     */
+    public SessionQuery<T> joinOn(Class<? extends Model> other, String otherColumnName, String thisColumnName) {
+        byKey = false;
+        sqlString.append(SqlBuilder.joinOn(Model.tableNameOf(other), otherColumnName, tableName, thisColumnName));
+        return this;
+    }
+
+    /**
+     * Runs the query on the session's connection. If the session keeps
+     * an identity map and the query only looks up a row by its key, an
+     * object the session already loaded is returned without a query.
+     * @return a list of objects returned by query, or an empty list
+     *      if the statement is not a {@code SELECT}
+     */
+    public List<T> execute() {
+        if (byKey) {
+            T known = session.known(clazz, tableName, keyColumn, params.get(0));
+            if (known != null) {
+                List<T> result = new ArrayList<>(1);
+                result.add(known);
+                return result;
+            }
+        }
+        return session.run(tableName, sqlString.toString(), params, clazz, keyColumn, byKey);
+    }
+
+    /**
+     * Marks this query as finding the row with {@code keyColumn} equal
+     * to its only parameter, until another clause is added.
+     */
+    SessionQuery<T> byKey(String keyColumn) {
+        this.keyColumn = keyColumn;
+        this.byKey = true;
+        return this;
+    }
+
+    String getSql() { return sqlString.toString(); }
+
+    List<Object> getParams() { return params; }
+}
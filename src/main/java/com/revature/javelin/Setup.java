@@ -5,20 +5,71 @@ import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import com.revature.javelin.exceptions.ResourcePersistenceException;
 
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 
 /**
  * This class provides a simple interface to
- * initialize a {@code Connection} to a database.
+ * initialize a pool of {@code Connection}s to a database.
+ * {@code Model} operations borrow a connection from the pool
+ * for each call and give it back when they are done, so
+ * several threads can talk to the database at once.
+ * <p>
+ * Read replicas can be added with {@code addReplica()}. {@code SELECT}
+ * statements are then spread across the replicas in turn while every
+ * write goes to the primary database given to {@code open()}.
  */
 public final class Setup {
 
+    private static ConnectionPool pool = null;
     private static Connection conn = null;
+    // The schema set with open() or setSchema(), applied to replicas added later
+    private static volatile String schema = null;
     private static final Logger logger = LogManager.getLogger(Setup.class);
 
+    private static int minPoolSize = 1;
+    private static int maxPoolSize = 10;
+    private static long borrowTimeout = 30000;
+    private static long idleTimeout = 600000;
+    private static int validationTimeout = 5;
+    private static int statementCacheSize = 64;
+    private static int fetchSize = 1000;
+    private static int maxStreamRows = 0;
+    private static int batchSize = 500;
+    private static volatile Dialect dialect = Dialect.OTHER;
+
+    private static final List<ConnectionPool> replicas = new CopyOnWriteArrayList<>();
+    private static final AtomicInteger nextReplica = new AtomicInteger();
+    private static long readYourWritesWindow = 0;
+    private static final ThreadLocal<Long> lastWrite = new ThreadLocal<>();
+
+    private static final Set<Class<? extends Model>> registered = new CopyOnWriteArraySet<>();
+    private static final SchemaCache schemaCache = new SchemaCache();
+    private static volatile EntityCache entityCache = null;
+    private static volatile QueryCache queryCache = null;
+
+    private static Executor executor = null;
+    private static ExecutorService defaultExecutor = null;
+    private static Executor boundedDefaultExecutor = null;
+    private static boolean virtualThreads = false;
+
     private Setup() {
         super();
     }
@@ -37,7 +88,7 @@ public final class Setup {
     }
 
     /**
-     * Opens a connection to database with given parameters.
+     * Opens a pool of connections to database with given parameters.
      * Default schema is Public
      * @param url database url of the form {@code jdbc:subprotocol:subname}
      * @param user the database user on whose behalf the connection is being made
@@ -45,14 +96,38 @@ public final class Setup {
      * @throws SQLException - if a database access error occurs or the url is {@code null}
      */
     public static void open(String url, String user, String password) throws SQLException {
-        if (conn != null) {
-            logger.info("Closing open connection" + conn.toString());
+        open(() -> DriverManager.getConnection(url, user, password));
+    }
+
+    /**
+     * Opens a pool of connections taken from {@code dataSource}. Use
+     * this to plug in connections configured by a container or by
+     * a driver specific {@code DataSource}.
+     * @param dataSource the source of new physical connections
+     * @throws SQLException - if a database access error occurs
+     */
+    public static void open(DataSource dataSource) throws SQLException {
+        open(dataSource::getConnection);
+    }
+
+    private static void open(ConnectionPool.ConnectionFactory factory) throws SQLException {
+        if (pool != null) {
+            logger.info("Closing open connection pool");
             close();
         }
         try {
-            conn = DriverManager.getConnection(url, user, password);
+            pool = newPool(factory);
+            pool.fill();
+            // Kept outside the pool so that all of its connections stay free for Model
+            conn = factory.create();
+            dialect = Dialect.of(conn);
         } catch (SQLException e) {
-            logger.error(e.getStackTrace());
+            logger.error("Could not open connection pool: " + e.getMessage());
+            if (pool != null) {
+                pool.close();
+            }
+            closeDirectConnection();
+            pool = null;
             conn = null;
             throw new SQLException(e);
         }
@@ -60,7 +135,7 @@ public final class Setup {
     }
 
     /**
-     * Opens a connection to database with given parameters.
+     * Opens a pool of connections to database with given parameters.
      * Sets the schema of database.
      * @param url database url of the form {@code jdbc:subprotocol:subname}
      * @param user the database user on whose behalf the connection is being made
@@ -71,8 +146,13 @@ public final class Setup {
     public static void open(String url, String user, String password, String schema) throws SQLException {
         try {
             open(url, user, password);
-            conn.setSchema(schema);
+            applySchema(schema);
         } catch (SQLException e) {
+            if (pool != null) {
+                pool.close();
+            }
+            closeDirectConnection();
+            pool = null;
             conn = null;
             logger.error(e.getStackTrace());
             throw new SQLException(e);
@@ -80,9 +160,11 @@ public final class Setup {
     }
 
     /**
-     * Opens a connection to database with details found
+     * Opens a pool of connections to database with details found
      * in the .properties file given. Will try to retrieve
-     * "url", "username" and "password".
+     * "url", "username" and "password". The optional keys
+     * "pool.minSize", "pool.maxSize", "pool.borrowTimeout",
+     * "pool.idleTimeout" and "pool.statementCacheSize" configure the pool.
      * Uses default schema of Public
      * @param location
      *      the location of .properties file holding database information.
@@ -92,22 +174,34 @@ public final class Setup {
         Properties props = new Properties();
         try {
             props.load(new FileReader(location));
+            minPoolSize = Integer.parseInt(props.getProperty("pool.minSize", String.valueOf(minPoolSize)));
+            maxPoolSize = Integer.parseInt(props.getProperty("pool.maxSize", String.valueOf(maxPoolSize)));
+            borrowTimeout = Long.parseLong(props.getProperty("pool.borrowTimeout", String.valueOf(borrowTimeout)));
+            idleTimeout = Long.parseLong(props.getProperty("pool.idleTimeout", String.valueOf(idleTimeout)));
+            statementCacheSize = Integer.parseInt(
+                props.getProperty("pool.statementCacheSize", String.valueOf(statementCacheSize)));
             open(props.getProperty("url"), props.getProperty("username"), props.getProperty("password"));
         } catch (IOException e) {
             logger.error(e.getStackTrace());
             logger.error("File not found at path specified: " + location);
+            close();
+            conn = null;
         }
     }
 
     /**
-     * Allows user to change the schema for the database
+     * Allows user to change the schema for the database. Applies to
+     * the primary, every replica and replicas added afterwards.
      * @param schemaName the name of the schema in which to work
      * @throws SQLException - if a database access error occurs
      */
     public static void setSchema(String schemaName) throws SQLException {
+        schemaCache.invalidateAll();
         try {
-            conn.setSchema(schemaName);
+            applySchema(schemaName);
         } catch (SQLException e) {
+            close();
+            pool = null;
             conn = null;
             logger.error(e.getStackTrace());
             throw new SQLException(e);
@@ -116,32 +210,734 @@ public final class Setup {
     }
 
     /**
-     * Closes the connection to the PostgreSQL database.
+     * Sets {@code schemaName} on the primary pool, every replica pool
+     * and the direct connection.
+     */
+    private static void applySchema(String schemaName) throws SQLException {
+        schema = schemaName;
+        pool.setSchema(schemaName);
+        for (ConnectionPool replica : replicas) {
+            replica.setSchema(schemaName);
+        }
+        conn.setSchema(schemaName);
+    }
+
+    /**
+     * Adds a read replica of the primary database. {@code SELECT}
+     * statements run through {@code Model} are load balanced across
+     * all replicas. Must be called after {@code open()}; replicas are
+     * dropped by {@code close()}. Each replica gets its own pool with
+     * the same settings and schema as the primary.
+     * @param url database url of the form {@code jdbc:subprotocol:subname}
+     * @param user the database user on whose behalf the connection is being made
+     * @param password the user's password
+     * @throws SQLException - if a database access error occurs or the url is {@code null}
+     */
+    public static void addReplica(String url, String user, String password) throws SQLException {
+        addReplica(() -> DriverManager.getConnection(url, user, password));
+        logger.info("Added read replica " + url);
+    }
+
+    /**
+     * Adds a read replica whose connections are taken from
+     * {@code dataSource}. See {@code addReplica(String, String, String)}.
+     * @param dataSource the source of new physical connections to the replica
+     * @throws SQLException - if a database access error occurs
+     */
+    public static void addReplica(DataSource dataSource) throws SQLException {
+        addReplica(dataSource::getConnection);
+    }
+
+    private static void addReplica(ConnectionPool.ConnectionFactory factory) throws SQLException {
+        if (pool == null) {
+            throw new SQLException("Open the primary database with Setup.open() before adding replicas");
+        }
+        ConnectionPool replica = newPool(factory);
+        try {
+            replica.setSchema(schema);
+            replica.fill();
+        } catch (SQLException e) {
+            replica.close();
+            logger.error("Could not open read replica: " + e.getMessage());
+            throw new SQLException(e);
+        }
+        replicas.add(replica);
+    }
+
+    /**
+     * Registers {@code Model} classes to be prepared by {@code warmUp()}
+     * and builds their {@code @NamedQuery} queries, so mistakes in
+     * them show up here.
+     * @param classes classes inheriting from {@code Model}
+     * @throws com.revature.javelin.exceptions.InvalidQueryException if
+     *      a named query is invalid
+     */
+    @SafeVarargs
+    public static void register(Class<? extends Model>... classes) {
+        for (Class<? extends Model> clazz : classes) {
+            QueryRegistry.compile(clazz);
+            registered.add(clazz);
+        }
+    }
+
+    /**
+     * Adds {@code query} to the named queries of the class it runs on,
+     * so it can be run with {@code Query.named()}. Replaces any query
+     * of that class with the same name.
+     * @param name the name to run the query by
+     * @param query the query
+     */
+    public static void registerQuery(String name, Query<?> query) {
+        QueryRegistry.register(name, query);
+    }
+
+    /**
+     * Stops preparing {@code Model} classes in {@code warmUp()}.
+     * @param classes classes passed to {@code register()} before
+     */
+    @SafeVarargs
+    public static void unregister(Class<? extends Model>... classes) {
+        for (Class<? extends Model> clazz : classes) {
+            registered.remove(clazz);
+        }
+    }
+
+    /**
+     * Does the work that would otherwise slow down the first requests
+     * after startup. Opens {@code connections} connections to the
+     * primary and to each replica, loads the tables of the current
+     * schema into the schema cache and checks that the table of every
+     * registered {@code Model} class exists, so bad mappings fail here
+     * instead of on live traffic. Then prepares, on each warmed
+     * connection of the primary, the statements of every registered
+     * class:
+     * <ul>
+     * <li>the {@code INSERT} of {@code create()} with every column set;
+     * <li>if {@code @Table} names a primary key, the {@code INSERT} of
+     * {@code create(clazz, primaryKey)} with every other column set, as
+     * for a generated key, and the select-by-id of {@code findAllById()};
+     * <li>its named queries.
+     * </ul>
+     * The {@code SELECT} statements among them are also prepared on each
+     * warmed connection of every replica. The prepared statements stay in
+     * each connection's statement cache.
+     * @param connections number of connections to open in each pool
+     * @throws SQLException if a database access error occurs or a
+     *      statement could not be prepared
+     * @throws ResourcePersistenceException if a registered table does not exist
+     */
+    public static void warmUp(int connections) throws SQLException {
+        ConnectionPool current = pool;
+        if (current == null) {
+            throw new SQLException("No connection has been opened, call Setup.open() first");
+        }
+        long start = System.currentTimeMillis();
+        current.fill(connections);
+        for (ConnectionPool replica : replicas) {
+            replica.fill(connections);
+        }
+
+        // Work out the statements once, then prepare them on each connection,
+        // each mapped to the generated key column it returns or null
+        Map<String, String> statements = new LinkedHashMap<>();
+        Connection first = current.borrow();
+        try {
+            schemaCache.loadAll(first);
+            for (Class<? extends Model> clazz : registered) {
+                String tableName = Model.tableNameOf(clazz);
+                SqlExecutor.checkTable(first, tableName);
+                String primaryKey = ModelMetadata.of(clazz).getPrimaryKey();
+                // Models keep upper case column names, so match the INSERT create() will build
+                List<String> columns = new ArrayList<>();
+                List<String> columnsButKey = new ArrayList<>();
+                for (String column : schemaCache.columnsOf(first, tableName).keySet()) {
+                    columns.add(column.toUpperCase());
+                    if (!column.equalsIgnoreCase(primaryKey)) {
+                        columnsButKey.add(column.toUpperCase());
+                    }
+                }
+                if (!columns.isEmpty()) {
+                    statements.put(SqlTemplates.insert(tableName, columns).sql, null);
+                }
+                if (!primaryKey.isEmpty()) {
+                    if (!columnsButKey.isEmpty()) {
+                        statements.put(SqlTemplates.insert(tableName, columnsButKey).sql, primaryKey);
+                    }
+                    statements.put(SqlBuilder.selectWhere(tableName, primaryKey), null);
+                }
+                for (Query<?> query : QueryRegistry.all(clazz)) {
+                    statements.put(query.getSql(), null);
+                }
+            }
+        } finally {
+            current.release(first);
+        }
+
+        Map<String, String> reads = new LinkedHashMap<>();
+        for (Map.Entry<String, String> statement : statements.entrySet()) {
+            if (SqlExecutor.isQuery(statement.getKey())) {
+                reads.put(statement.getKey(), statement.getValue());
+            }
+        }
+        int warmed = prepare(current, connections, statements);
+        for (ConnectionPool replica : replicas) {
+            warmed += prepare(replica, connections, reads);
+        }
+        logger.info("Warmed up " + warmed + " connections and " + registered.size() +
+            " models in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Prepares {@code statements} on up to {@code connections} idle
+     * connections of {@code target}, leaving them in each connection's
+     * statement cache.
+     * @param statements SQL mapped to the generated key column it
+     *      returns, or {@code null}
+     * @return the number of connections prepared
+     */
+    private static int prepare(ConnectionPool target, int connections, Map<String, String> statements)
+            throws SQLException {
+        List<Connection> warmed = new ArrayList<>();
+        try {
+            int available = Math.min(connections, target.idleCount());
+            for (int i = 0; i < available; i++) {
+                warmed.add(target.borrow());
+            }
+            for (Connection connection : warmed) {
+                StatementCache cache = target.statementCache(connection);
+                for (Map.Entry<String, String> statement : statements.entrySet()) {
+                    String sql = statement.getKey();
+                    String keyColumn = statement.getValue();
+                    if (cache != null) {
+                        cache.release(cache.prepare(sql, keyColumn));
+                    } else if (keyColumn == null) {
+                        connection.prepareStatement(sql).close();
+                    } else {
+                        connection.prepareStatement(sql, new String[] { keyColumn }).close();
+                    }
+                }
+            }
+        } finally {
+            for (Connection connection : warmed) {
+                target.release(connection);
+            }
+        }
+        return warmed.size();
+    }
+
+    /**
+     * Sends reads from a thread to the primary database for
+     * {@code millis} milliseconds after that thread wrote through
+     * {@code Model}, so it always sees its own writes even when the
+     * replicas lag behind. Defaults to 0, which turns this off.
+     * @param millis how long reads stay on the primary after a write
+     */
+    public static void setReadYourWrites(long millis) { readYourWritesWindow = millis; }
+
+    /**
+     * Sets the number of connections the pool keeps open while idle
+     * and the most it will ever open. The connection returned by
+     * {@code getConnection()} is not one of them. Takes effect on the next
+     * call to {@code open()}. Defaults to 1 and 10.
+     * @param min the number of connections kept open
+     * @param max the maximum number of open connections
+     */
+    public static void setPoolSize(int min, int max) {
+        if (min < 0 || max < 1 || min > max) {
+            throw new IllegalArgumentException("Invalid pool size: min " + min + ", max " + max);
+        }
+        minPoolSize = min;
+        maxPoolSize = max;
+    }
+
+    /**
+     * Sets how long an operation waits for a free connection before
+     * failing. Takes effect on the next call to {@code open()}.
+     * Defaults to 30 seconds.
+     * @param millis the time to wait in milliseconds
+     */
+    public static void setBorrowTimeout(long millis) { borrowTimeout = millis; }
+
+    /**
+     * Sets how long a connection above the minimum pool size may
+     * sit unused before it is closed. Takes effect on the next
+     * call to {@code open()}. Defaults to 10 minutes.
+     * @param millis the idle time in milliseconds
+     */
+    public static void setIdleTimeout(long millis) { idleTimeout = millis; }
+
+    /**
+     * Sets how long the pool waits when checking that an idle
+     * connection is still alive. Takes effect on the next call
+     * to {@code open()}. Defaults to 5 seconds.
+     * @param seconds the validation timeout in seconds
+     */
+    public static void setValidationTimeout(int seconds) { validationTimeout = seconds; }
+
+    /**
+     * Sets how many prepared statements each pooled connection keeps
+     * open for reuse. Running the same SQL again then skips parsing
+     * it. Takes effect on the next call to {@code open()}. Defaults
+     * to 64; 0 prepares and closes a statement on every call.
+     * @param size the most statements cached per connection
+     */
+    public static void setStatementCacheSize(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Invalid statement cache size: " + size);
+        }
+        statementCacheSize = size;
+    }
+
+    /**
+     * Sets how many rows {@code stream()} and {@code iterator()} fetch
+     * from the database at a time. Larger batches mean fewer round
+     * trips, smaller ones less memory. Defaults to 1000.
+     * @param rows the number of rows per batch
+     */
+    public static void setFetchSize(int rows) {
+        if (rows < 1) {
+            throw new IllegalArgumentException("Invalid fetch size: " + rows);
+        }
+        fetchSize = rows;
+    }
+
+    static int getFetchSize() { return fetchSize; }
+
+    /**
+     * Sets the most rows {@code stream()} and {@code iterator()} will
+     * read. Going over throws an {@code InvalidQueryException}, which
+     * guards against queries that unexpectedly walk a whole table.
+     * Defaults to 0, which allows any number of rows.
+     * @param rows the most rows allowed, or 0 for no limit
+     */
+    public static void setMaxStreamRows(int rows) {
+        if (rows < 0) {
+            throw new IllegalArgumentException("Invalid row limit: " + rows);
+        }
+        maxStreamRows = rows;
+    }
+
+    static int getMaxStreamRows() { return maxStreamRows; }
+
+    /**
+     * Sets how many rows {@code createAll()} sends to the database in
+     * one batch. Larger batches mean fewer round trips, smaller ones
+     * less memory held by the driver. Defaults to 500.
+     * @param rows the number of rows per batch
+     */
+    public static void setBatchSize(int rows) {
+        if (rows < 1) {
+            throw new IllegalArgumentException("Invalid batch size: " + rows);
+        }
+        batchSize = rows;
+    }
+
+    static int getBatchSize() { return batchSize; }
+
+    /**
+     * @return the dialect of the database opened last
+     */
+    static Dialect getDialect() { return dialect; }
+
+    /**
+     * @return the number of times a cached prepared statement was
+     *      reused since the application started
+     */
+    public static long getStatementCacheHits() { return StatementCache.totalHits(); }
+
+    /**
+     * @return the number of times a statement was not cached yet and
+     *      had to be prepared since the application started
+     */
+    public static long getStatementCacheMisses() { return StatementCache.totalMisses(); }
+
+    /**
+     * Sets how long the schema cache trusts what it knows about a
+     * table before looking it up again. Tables are otherwise looked
+     * up once, the first time they are used. Defaults to 0, which
+     * keeps them until {@code invalidateSchema()} or {@code close()}.
+     * @param millis the time to live in milliseconds
+     */
+    public static void setSchemaCacheTtl(long millis) { schemaCache.setTimeToLive(millis); }
+
+    /**
+     * Makes the schema cache look up every table again the next time
+     * it is used. Call after changing tables with DDL while running.
+     */
+    public static void invalidateSchema() { schemaCache.invalidateAll(); }
+
+    /**
+     * Makes the schema cache look up {@code tableName} again the next
+     * time it is used. Call after changing that table with DDL.
+     * @param tableName the table that changed
+     */
+    public static void invalidateSchema(String tableName) { schemaCache.invalidate(tableName); }
+
+    /**
+     * Sets the cache of rows shared by every thread. Lookups of one row
+     * by the primary key named in {@code @Table}, with
+     * {@code findAllById()}, {@code findAllByColumn()} or a
+     * {@code Query} made by {@code Query.findAllByColumn()}, are then
+     * answered from it when the row is there. Every write through
+     * javelin to a table makes its cached rows unused. The cache is
+     * cleared by {@code close()}. Defaults to {@code null}, no cache.
+     * @param cache the cache to use, such as an {@code LruEntityCache},
+     *      or {@code null} to read every row from the database
+     */
+    public static void setEntityCache(EntityCache cache) { entityCache = cache; }
+
+    /**
+     * @return the cache of rows, to read its statistics, or
+     *      {@code null} if there is none
+     */
+    public static EntityCache getEntityCache() { return entityCache; }
+
+    /**
+     * Sets the cache of query results shared by every thread. A
+     * {@code SELECT} run again with the same SQL and parameters by
+     * {@code Model.execute()} or a {@code Query} is then answered from
+     * it, until a table the query reads is written to through javelin.
+     * The cache is cleared by {@code close()}. Defaults to {@code null},
+     * no cache.
+     * @param cache the cache to use, or {@code null} to run every query
+     */
+    public static void setQueryCache(QueryCache cache) { queryCache = cache; }
+
+    /**
+     * @return the cache of query results, to read its statistics, or
+     *      {@code null} if there is none
+     */
+    public static QueryCache getQueryCache() { return queryCache; }
+
+    /**
+     * Sets the executor that runs {@code executeAsync()},
+     * {@code createAsync()} and {@code updateAsync()}. Each task
+     * borrows a connection from the pool while it runs, so an
+     * executor with more threads than {@code maxPoolSize} only adds
+     * threads waiting for a connection. By default a fixed pool of
+     * {@code maxPoolSize} daemon threads is created when first needed.
+     * @param asyncExecutor the executor to use, or {@code null} for the default
+     */
+    public static synchronized void setExecutor(Executor asyncExecutor) {
+        executor = asyncExecutor;
+    }
+
+    /**
+     * @return the executor for asynchronous operations
+     */
+    static synchronized Executor getExecutor() {
+        if (executor != null) {
+            return executor;
+        }
+        if (defaultExecutor == null && virtualThreads) {
+            defaultExecutor = VirtualThreads.newPerTaskExecutor();
+            if (defaultExecutor != null) {
+                boundedDefaultExecutor = VirtualThreads.bounded(defaultExecutor, maxPoolSize);
+            }
+        }
+        if (defaultExecutor == null) {
+            AtomicInteger count = new AtomicInteger();
+            defaultExecutor = Executors.newFixedThreadPool(maxPoolSize, r -> {
+                Thread t = new Thread(r, "javelin-async-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            boundedDefaultExecutor = defaultExecutor;
+        }
+        return boundedDefaultExecutor;
+    }
+
+    /**
+     * Runs every asynchronous operation on its own virtual thread
+     * instead of the default fixed thread pool. A semaphore sized to
+     * {@code maxPoolSize} caps how many of them talk to the database
+     * at once, so any number of requests can be in flight without an
+     * OS thread each. Needs Java 21 or later; on older runtimes this
+     * logs a warning, keeps the fixed thread pool and returns
+     * {@code false}. Has no effect while an executor is set with
+     * {@code setExecutor()}.
+     * @param enabled whether to use virtual threads
+     * @return {@code true} if virtual threads will be used
+     */
+    public static synchronized boolean setVirtualThreads(boolean enabled) {
+        if (enabled && !VirtualThreads.isSupported()) {
+            logger.warn("Virtual threads need Java 21 or later, using platform threads");
+            enabled = false;
+        }
+        if (enabled != virtualThreads) {
+            virtualThreads = enabled;
+            shutdownDefaultExecutor();
+        }
+        return virtualThreads;
+    }
+
+    private static synchronized void shutdownDefaultExecutor() {
+        if (defaultExecutor != null) {
+            defaultExecutor.shutdown();
+            defaultExecutor = null;
+            boundedDefaultExecutor = null;
+        }
+    }
+
+    /**
+     * Closes every connection to the PostgreSQL database.
      */
     public static void close() {
+        shutdownDefaultExecutor();
+        schemaCache.invalidateAll();
+        if (entityCache != null) {
+            entityCache.clear();
+        }
+        if (queryCache != null) {
+            queryCache.clear();
+        }
+        for (ConnectionPool replica : replicas) {
+            replica.close();
+        }
+        replicas.clear();
+        schema = null;
+        closeDirectConnection();
+        if (pool == null) {
+            return;
+        }
+        pool.close();
+        pool = null;
+    }
+
+    private static void closeDirectConnection() {
         if (conn == null) {
             return;
         }
-        // Can't use try-with-resources
         try {
             conn.close();
         } catch (SQLException e) {
             logger.error("Error when closing connection: " + e.getMessage());
-        } finally {
-            try {
-                conn.close();
-            } catch (SQLException e) {
-                logger.fatal("Error when closing connection: " + e.getMessage());
-            }
         }
     }
 
     /**
-     * Returns the instace of {@code Connection}
+     * Returns the connection reserved for direct use outside
+     * of {@code Model} operations. It is opened besides the pool and
+     * does not count towards its maximum size; {@code Model} borrows
+     * its own connections from the pool instead.
      * @return the connection to the PostgreSQL database
      */
     protected static Connection getConnection() {
         return conn;
     }
+
+    /**
+     * Takes a connection out of the pool for a single operation.
+     * It must be given back with {@code releaseConnection()}.
+     * @return a connection from the pool
+     * @throws SQLException if no connection has been opened or none
+     *      became free in time
+     */
+    static Connection borrowConnection() throws SQLException {
+        Connection bound = Transactions.boundConnection();
+        if (bound != null) {
+            return bound;
+        }
+        ConnectionPool current = pool;
+        if (current == null) {
+            throw new SQLException("No connection has been opened, call Setup.open() first");
+        }
+        return current.borrow();
+    }
+
+    /**
+     * Takes a connection for a single read. Uses the next replica in
+     * turn, unless there are none, the current thread is in a
+     * transaction or wrote within the read-your-writes window, or
+     * {@code forcePrimary} is set. Falls
+     * back to the primary if no replica can give out a connection.
+     * @param forcePrimary always read from the primary database
+     * @return a connection that must be given back with {@code releaseConnection()}
+     * @throws SQLException if no connection has been opened or none
+     *      became free in time
+     */
+    static Connection borrowReadConnection(boolean forcePrimary) throws SQLException {
+        if (forcePrimary || replicas.isEmpty() || Transactions.boundConnection() != null || wroteRecently()) {
+            return borrowConnection();
+        }
+        int start = nextReplica.getAndIncrement() & Integer.MAX_VALUE;
+        for (int i = 0; i < replicas.size(); i++) {
+            ConnectionPool replica;
+            try {
+                replica = replicas.get((start + i) % replicas.size());
+            } catch (IndexOutOfBoundsException e) {
+                // Replicas were dropped by close() while reading
+                break;
+            }
+            try {
+                return replica.borrow();
+            } catch (SQLException e) {
+                logger.warn("Replica unavailable, trying the next one: " + e.getMessage());
+            }
+        }
+        return borrowConnection();
+    }
+
+    /**
+     * @param connection a connection taken with {@code borrowReadConnection()}
+     * @return {@code true} if {@code connection} came from a read
+     *      replica, which may not have caught up with the primary yet
+     */
+    static boolean isReplica(Connection connection) {
+        for (ConnectionPool replica : replicas) {
+            if (replica.owns(connection)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Records that the current thread just wrote to the primary
+     * database, for read-your-writes routing.
+     */
+    static void markWrite() {
+        if (readYourWritesWindow > 0 && !replicas.isEmpty()) {
+            lastWrite.set(System.currentTimeMillis());
+        }
+    }
+
+    private static boolean wroteRecently() {
+        Long last = lastWrite.get();
+        if (last == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() - last < readYourWritesWindow) {
+            return true;
+        }
+        lastWrite.remove();
+        return false;
+    }
+
+    /**
+     * Gives a connection taken with {@code borrowConnection()} or
+     * {@code borrowReadConnection()} back to the pool it came from.
+     * @param connection the borrowed connection
+     */
+    static void releaseConnection(Connection connection) {
+        if (connection == null || connection == Transactions.boundConnection()) {
+            // Transaction connections go back when the transaction ends
+            return;
+        }
+        for (ConnectionPool replica : replicas) {
+            if (replica.owns(connection)) {
+                replica.release(connection);
+                return;
+            }
+        }
+        ConnectionPool current = pool;
+        if (current != null) {
+            current.release(connection);
+        } else {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                logger.error("Error when closing connection: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Finds the statement cache of a connection taken with
+     * {@code borrowConnection()} or {@code borrowReadConnection()}.
+     * @param connection the borrowed connection
+     * @return its statement cache, or {@code null} if it has none
+     */
+    static StatementCache statementCache(Connection connection) {
+        for (ConnectionPool replica : replicas) {
+            StatementCache cache = replica.statementCache(connection);
+            if (cache != null) {
+                return cache;
+            }
+        }
+        ConnectionPool current = pool;
+        return current == null ? null : current.statementCache(connection);
+    }
+
+    /**
+     * Opens a {@link Session} that owns one connection from the pool
+     * until it is closed. Each thread should open its own session.
+     * @return a new session
+     * @throws SQLException if no connection has been opened or none
+     *      became free in time
+     */
+    public static Session openSession() throws SQLException {
+        return new Session(borrowConnection(), false);
+    }
+
+    /**
+     * Opens a read-only {@link Session} on the next read replica, or
+     * on the primary if there are no replicas. The session rejects
+     * anything but {@code SELECT} statements.
+     * @return a new read-only session
+     * @throws SQLException if no connection has been opened or none
+     *      became free in time
+     */
+    public static Session openReadOnlySession() throws SQLException {
+        return new Session(borrowReadConnection(false), true);
+    }
+
+    /**
+     * Runs {@code work} in a single transaction, so all of its
+     * operations cost one commit. Every {@code Model} operation run by
+     * this thread inside {@code work} joins the transaction; operations
+     * handed to other threads, such as {@code executeAsync()}, do not.
+     * The transaction is rolled back if {@code work} throws or any of
+     * its statements fails. Calls inside a running transaction join it.
+     * <pre>
+     * Setup.inTransaction(session -&gt; {
+     *     from.setColumn("balance", 0).update("id", Account.class);
+     *     to.setColumn("balance", 100).update("id", Account.class);
+     * });
+     * </pre>
+     * @param work the operations to run
+     * @throws SQLException if no connection could be borrowed, the
+     *      transaction could not be committed or it was rolled back
+     */
+    public static void inTransaction(TransactionWork work) throws SQLException {
+        inTransaction(-1, false, work);
+    }
+
+    /**
+     * Runs {@code work} in a single transaction with the given isolation
+     * level and read-only hint. See {@code inTransaction(TransactionWork)}.
+     * @param isolation one of the {@code Connection.TRANSACTION_*} levels,
+     *      or -1 for the database default
+     * @param readOnly tells the database nothing will be written, which
+     *      lets some databases skip work
+     * @param work the operations to run
+     * @throws SQLException if no connection could be borrowed, the
+     *      transaction could not be committed or it was rolled back
+     */
+    public static void inTransaction(int isolation, boolean readOnly, TransactionWork work) throws SQLException {
+        try (Session session = openSession()) {
+            session.inTransaction(isolation, readOnly, work);
+        }
+    }
+
+    /**
+     * @return the tables and columns known to this class
+     */
+    static SchemaCache getSchemaCache() {
+        return schemaCache;
+    }
+
+    /**
+     * @return the pool behind this class, or {@code null} if
+     *      no connection has been opened
+     */
+    static ConnectionPool getPool() {
+        return pool;
+    }
+
+    private static ConnectionPool newPool(ConnectionPool.ConnectionFactory factory) {
+        return new ConnectionPool(factory, minPoolSize, maxPoolSize, borrowTimeout, idleTimeout, validationTimeout,
+            statementCacheSize);
+    }
     
 }
@@ -0,0 +1,321 @@
+package com.revature.javelin;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.revature.javelin.exceptions.InvalidColumnsException;
+import com.revature.javelin.exceptions.InvalidQueryException;
+
+import static com.revature.javelin.AppState.logger;
+
+/**
+ * Builds the SQL text used by {@code Model} and {@code Session}.
+ * Every method is a pure function of its arguments, so it can
+ * be called from any thread.
+ */
+final class SqlBuilder {
+
+    /** Names, quoted names, string literals and the punctuation {@code tablesRead()} cares about. */
+    private static final Pattern TOKEN = Pattern.compile(
+        "(?:[A-Za-z_][A-Za-z_0-9$]*|\"[^\"]*\")(?:\\.(?:[A-Za-z_][A-Za-z_0-9$]*|\"[^\"]*\"))*|'(?:[^']|'')*'|[(),]");
+
+    /** Words ending the list of tables after {@code FROM}. */
+    private static final Set<String> CLAUSES = new HashSet<>(Arrays.asList("WHERE", "ORDER", "GROUP", "HAVING",
+        "LIMIT", "OFFSET", "UNION", "EXCEPT", "INTERSECT", "FETCH", "FOR", "WINDOW"));
+
+    private SqlBuilder() {
+        super();
+    }
+
+    /**
+     * Checks user-given column names to make sure they are in a good format
+     * @param columnName
+     * @throws InvalidColumnsException
+     */
+    static void sanitizeColumn(String columnName) throws InvalidColumnsException {
+        logger.info("Running basic sanitation on column name: " + columnName);
+        if (!columnName.matches("([A-Za-z_][A-Za-z_0-9$]*)|\".*\"")) {
+            logger.warn("Column not accepted");
+            throw new InvalidColumnsException("Invalid name for a column, " +
+                "please ensure that your column only contains alphabetic characters and underscores");
+        }
+    }
+
+    /**
+     * Checks user-given queries to make sure they are in a good format.
+     * Only does basic checking to make sure there aren't semicolons
+     * @param query
+     * @throws InvalidQueryException
+     */
+    static void sanitizeQuery(String query) throws InvalidQueryException {
+        logger.info("Running basic sanitation on query: " + query);
+        if (!query.matches("[^;]+")) {
+            logger.warn("Query not accepted");
+            throw new InvalidQueryException("Invalid query, " +
+                "please ensure that your query only contains alphabetic characters, underscores and whitespace");
+        }
+    }
+
+    /**
+     * @param tableName the table to insert into
+     * @param columns the columns given a value, in parameter order
+     * @return an {@code INSERT} statement with one parameter per column
+     */
+    static String insert(String tableName, String[] columns) {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(tableName).append(" (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(columns[i]).append(i != columns.length - 1 ? ", " : ") ");
+        }
+        sql.append("VALUES (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i != columns.length - 1 ? "?, " : "?) ");
+        }
+        return sql.toString();
+    }
+
+    /**
+     * @param dialect the database the statement runs on
+     * @param tableName the table to write to
+     * @param columns the columns given a value, in parameter order
+     * @param conflictColumns the columns identifying an existing row
+     * @return a statement that inserts a row, or updates the row with
+     *      the same {@code conflictColumns} if there is one
+     * @throws InvalidQueryException if {@code dialect} has no upsert
+     */
+    static String upsert(Dialect dialect, String tableName, String[] columns, String[] conflictColumns) {
+        String keys = String.join(", ", conflictColumns);
+        switch (dialect) {
+            case POSTGRESQL:
+                StringBuilder sql = new StringBuilder(insert(tableName, columns))
+                    .append("ON CONFLICT (").append(keys).append(") DO UPDATE SET ");
+                boolean first = true;
+                for (String column : columns) {
+                    if (!containsIgnoreCase(conflictColumns, column)) {
+                        sql.append(first ? "" : ", ").append(column).append(" = EXCLUDED.").append(column);
+                        first = false;
+                    }
+                }
+                if (first) {
+                    // Nothing else to set, but DO NOTHING would report 0 rows
+                    sql.append(conflictColumns[0]).append(" = EXCLUDED.").append(conflictColumns[0]);
+                }
+                return sql.append(" ").toString();
+            case H2:
+                String insert = insert(tableName, columns);
+                return "MERGE" + insert.substring("INSERT".length(), insert.indexOf("VALUES")) +
+                    "KEY (" + keys + ") " + insert.substring(insert.indexOf("VALUES"));
+            default:
+                throw new InvalidQueryException("Upsert is not supported by this database");
+        }
+    }
+
+    private static boolean containsIgnoreCase(String[] names, String name) {
+        for (String n : names) {
+            if (n.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param tableName the table to insert into
+     * @param columns the columns given a value, in parameter order
+     * @param rows the number of rows to insert
+     * @return an {@code INSERT} statement with one {@code VALUES} list
+     *      per row
+     */
+    static String insertRows(String tableName, String[] columns, int rows) {
+        StringBuilder sql = new StringBuilder(insert(tableName, columns));
+        // insert() ends with the first row followed by a space
+        sql.setLength(sql.length() - 1);
+        for (int row = 1; row < rows; row++) {
+            sql.append(", (");
+            for (int i = 0; i < columns.length; i++) {
+                sql.append(i != columns.length - 1 ? "?, " : "?)");
+            }
+        }
+        return sql.append(" ").toString();
+    }
+
+    /**
+     * @param tableName the table to load
+     * @param columns the columns of each row, in order
+     * @return a PostgreSQL {@code COPY} reading CSV rows from the client
+     */
+    static String copyIn(String tableName, String[] columns) {
+        StringBuilder sql = new StringBuilder("COPY ").append(tableName).append(" (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(columns[i]).append(i != columns.length - 1 ? ", " : ") ");
+        }
+        return sql.append("FROM STDIN WITH (FORMAT csv)").toString();
+    }
+
+    /**
+     * @param tableName the table to update
+     * @param columns the columns to set, in parameter order
+     * @param primaryKeyColumn the column matched by the last parameter
+     * @return an {@code UPDATE} statement with one parameter per column
+     *      followed by one for the primary key
+     */
+    static String update(String tableName, String[] columns, String primaryKeyColumn) {
+        sanitizeColumn(primaryKeyColumn);
+        StringBuilder sql = new StringBuilder("UPDATE ").append(tableName).append(" SET ");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(columns[i]).append("=?").append(i != columns.length - 1 ? ", " : " ");
+        }
+        return sql.append("WHERE ").append(primaryKeyColumn).append("=? ").toString();
+    }
+
+    static String selectAll(String tableName) {
+        return "SELECT * FROM " + tableName + " ";
+    }
+
+    static String selectWhere(String tableName, String columnName) {
+        sanitizeColumn(columnName);
+        return "SELECT * FROM " + tableName + " WHERE " + columnName + "=? ";
+    }
+
+    static String selectColumns(String tableName, String... columnList) {
+        StringBuilder sql = new StringBuilder("SELECT ");
+        for (int i = 0; i < columnList.length; i++) {
+            sanitizeColumn(columnList[i]);
+            sql.append(columnList[i]).append(i != columnList.length - 1 ? ", " : " ");
+        }
+        return sql.append("FROM ").append(tableName).append(" ").toString();
+    }
+
+    static String delete(String tableName) {
+        return "DELETE FROM " + tableName + " ";
+    }
+
+    static String where(String query) {
+        sanitizeQuery(query);
+        return "WHERE " + query + " ";
+    }
+
+    static String and(String query) {
+        sanitizeQuery(query);
+        return "AND " + query + " ";
+    }
+
+    /**
+     * @param columns column names, each optionally followed by
+     *      {@code ASC} or {@code DESC}
+     * @return an {@code ORDER BY} clause
+     * @throws InvalidColumnsException if a column or direction is invalid
+     */
+    static String orderBy(String... columns) {
+        if (columns.length == 0) {
+            throw new InvalidColumnsException("No columns to order by");
+        }
+        StringBuilder sql = new StringBuilder("ORDER BY ");
+        for (int i = 0; i < columns.length; i++) {
+            String[] parts = columns[i].trim().split("\\s+");
+            sanitizeColumn(parts[0]);
+            sql.append(parts[0]);
+            if (parts.length == 2 && (parts[1].equalsIgnoreCase("ASC") || parts[1].equalsIgnoreCase("DESC"))) {
+                sql.append(' ').append(parts[1].toUpperCase());
+            } else if (parts.length != 1) {
+                throw new InvalidColumnsException("Invalid order " + columns[i] +
+                    ", use a column name optionally followed by ASC or DESC");
+            }
+            sql.append(i != columns.length - 1 ? ", " : " ");
+        }
+        return sql.toString();
+    }
+
+    static String limit(int rows) {
+        if (rows < 0) {
+            throw new InvalidQueryException("Limit can not be negative: " + rows);
+        }
+        return "LIMIT " + rows + " ";
+    }
+
+    static String offset(int rows) {
+        if (rows < 0) {
+            throw new InvalidQueryException("Offset can not be negative: " + rows);
+        }
+        return "OFFSET " + rows + " ";
+    }
+
+    static String joinUsing(String otherTable, String columnName) {
+        sanitizeColumn(columnName);
+        return "JOIN " + otherTable + " USING (" + columnName.toUpperCase() + ") ";
+    }
+
+    /**
+     * @return a {@code JOIN otherTable ON (leftTable.leftColumn = otherTable.otherColumn)} clause
+     */
+    static String joinOn(String otherTable, String otherColumnName, String leftTable, String leftColumnName) {
+        sanitizeColumn(leftColumnName);
+        sanitizeColumn(otherColumnName);
+        return "JOIN " + otherTable +
+            " ON (" + leftTable + "." + leftColumnName.toUpperCase() +
+            " = " + otherTable + "." + otherColumnName.toUpperCase() + ") ";
+    }
+
+    /**
+     * Finds the tables a statement reads: every table named after
+     * {@code FROM}, in a list after {@code FROM} or after {@code JOIN},
+     * including in subqueries. Names are given as
+     * {@code TableVersions.versionedName()} gives them, so schema names
+     * and quotes are left off.
+     * @param sql the statement
+     * @return the names of the tables in upper case, or {@code null} if
+     *      they can not all be found, such as when a table function is
+     *      read or the parentheses do not match
+     */
+    static Set<String> tablesRead(String sql) {
+        Set<String> tables = new LinkedHashSet<>();
+        // Whether each enclosing level of parentheses is in a list of tables
+        Deque<Boolean> outer = new ArrayDeque<>();
+        Matcher tokens = TOKEN.matcher(sql);
+        boolean expectTable = false;
+        boolean inFromList = false;
+        boolean afterTable = false;
+        while (tokens.find()) {
+            String token = tokens.group();
+            String word = token.toUpperCase();
+            if (afterTable && token.equals("(")) {
+                // A table function, which may read anything
+                return null;
+            }
+            afterTable = false;
+            if (expectTable) {
+                expectTable = false;
+                if (Character.isLetter(token.charAt(0)) || token.charAt(0) == '_' || token.charAt(0) == '"') {
+                    tables.add(TableVersions.versionedName(token));
+                    afterTable = true;
+                    continue;
+                }
+                if (!token.equals("(")) {
+                    return null;
+                }
+            }
+            if (word.equals("FROM") || word.equals("JOIN")) {
+                expectTable = true;
+                inFromList = word.equals("FROM") || inFromList;
+            } else if (token.equals(",")) {
+                expectTable = inFromList;
+            } else if (token.equals("(")) {
+                outer.push(inFromList);
+                inFromList = false;
+            } else if (token.equals(")")) {
+                if (outer.isEmpty()) {
+                    return null;
+                }
+                inFromList = outer.pop();
+            } else if (CLAUSES.contains(word)) {
+                inFromList = false;
+            }
+        }
+        return outer.isEmpty() && !expectTable ? tables : null;
+    }
+}
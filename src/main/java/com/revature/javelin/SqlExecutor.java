@@ -0,0 +1,341 @@
+package com.revature.javelin;
+
+import java.lang.reflect.InvocationTargetException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.revature.javelin.exceptions.InvalidQueryException;
+import com.revature.javelin.exceptions.ResourcePersistenceException;
+
+import static com.revature.javelin.AppState.logger;
+
+/**
+ * Runs SQL built by {@code Model} or {@code Session} on a given
+ * {@code Connection} and maps query results to model objects.
+ * Holds no state of its own, so any number of threads can use
+ * it at once as long as each uses its own connection. Statements
+ * are taken from the connection's {@code StatementCache} and result
+ * sets are always closed before returning.
+ */
+final class SqlExecutor {
+
+    private SqlExecutor() {
+        super();
+    }
+
+    /**
+     * Checks that {@code sqlString} was started by a starting operation.
+     * @param sqlString the SQL to be run
+     * @return {@code true} for a {@code SELECT}, {@code false} for
+     *      {@code INSERT}, {@code UPDATE}, {@code DELETE} or {@code MERGE}
+     * @throws InvalidQueryException for anything else
+     */
+    static boolean isQuery(String sqlString) {
+        if (sqlString.startsWith("SELECT")) {
+            return true;
+        } else if (sqlString.startsWith("INSERT") || sqlString.startsWith("UPDATE") || sqlString.startsWith("DELETE")
+                || sqlString.startsWith("MERGE")) {
+            return false;
+        }
+        throw new InvalidQueryException(
+                "A starting operation was not used. Start a query by using methods like delete() or find()." +
+                " Your query was: `" + sqlString + "`");
+    }
+
+    /**
+     * Checks if {@code tableName} exists, adds all {@code params} into
+     * a {@code PreparedStatement} and executes {@code sqlString} on
+     * {@code conn}. Returns an empty list if the command is not a
+     * {@code SELECT} statement, otherwise a list of <T> objects given
+     * by the {@code SELECT} statement.
+     * @param <T> object inheriting from {@code Model}
+     * @param conn the connection to run the statement on
+     * @param tableName the table the statement works on
+     * @param sqlString the SQL to run
+     * @param params the values for each {@code ?} in {@code sqlString}
+     * @param clazz the {@code Class} of the returned objects
+     * @param queryTimeout seconds before the statement is cancelled,
+     *      or 0 for no limit
+     * @return a list of objects returned by query, or empty list.
+     * @throws SQLException if the statement failed or the objects
+     *      could not be created
+     * @throws ResourcePersistenceException if the table does not exist
+     *      or a write changed no rows
+     */
+    static <T extends Model> List<T> executeOrThrow(Connection conn, String tableName, String sqlString,
+            List<Object> params, Class<T> clazz, int queryTimeout) throws SQLException {
+        boolean isQuery = isQuery(sqlString);
+        logger.info("Executing sql: " + sqlString);
+        List<T> newModelList = new ArrayList<>();
+
+        try {
+            checkTable(conn, tableName);
+            StatementCache cache = Setup.statementCache(conn);
+            PreparedStatement pstmt = prepare(conn, cache, sqlString);
+            try {
+                pstmt.setQueryTimeout(queryTimeout);
+                for (int i = 0; i < params.size(); i++) {
+                    pstmt.setObject(i + 1, params.get(i));
+                }
+                // If the sqlString is a SELECT query, get all objects from the resultSet
+                if (isQuery) {
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        RowMapper<T> mapper = RowMapper.of(clazz, rs.getMetaData());
+                        while (rs.next()) {
+                            newModelList.add(mapper.map(rs));
+                        }
+                    }
+                } else if (pstmt.executeUpdate() == 0) {
+                    throwNoRowsChanged(sqlString);
+                }
+            } catch (SQLException e) {
+                discard(cache, pstmt);
+                throw e;
+            } finally {
+                release(cache, pstmt);
+            }
+        } catch (SQLException e) {
+            Transactions.recordFailure(e);
+            recheckTable(conn, tableName);
+            throw e;
+        } catch (InvocationTargetException | NoSuchMethodException e) {
+            throw new SQLException("Could not create " + clazz.getName() + ": " + e.getMessage(), e);
+        } finally {
+            if (!isQuery) {
+                TableVersions.written(tableName);
+            }
+        }
+        return newModelList;
+    }
+
+    /**
+     * Runs {@code sqlString} once for every list of values in
+     * {@code rows}, sending them to the database in batches of
+     * {@code Setup.getBatchSize()} rows. If {@code keyColumn} is given,
+     * the statement is prepared to return the key generated for each
+     * row. A row that changes nothing is not an error; its count is 0.
+     * @param conn the connection to run the statements on
+     * @param tableName the table the statement works on
+     * @param sqlString the SQL to run
+     * @param rows the values for each {@code ?} in {@code sqlString},
+     *      one list per row
+     * @param keyColumn the generated column to return, or {@code null}
+     * @param keys receives the generated keys in order if
+     *      {@code keyColumn} is given; drivers may return fewer keys
+     *      than rows
+     * @return the number of rows changed by each row of {@code rows},
+     *      or {@code Statement.SUCCESS_NO_INFO} where the driver does
+     *      not know
+     * @throws SQLException if a batch failed
+     * @throws ResourcePersistenceException if the table does not exist
+     */
+    static int[] executeBatch(Connection conn, String tableName, String sqlString,
+            List<List<Object>> rows, String keyColumn, List<Object> keys) throws SQLException {
+        logger.info("Executing batch of " + rows.size() + ": " + sqlString);
+        StatementCache cache = Setup.statementCache(conn);
+        int[] counts = new int[rows.size()];
+        int batchSize = Setup.getBatchSize();
+        try {
+            checkTable(conn, tableName);
+            PreparedStatement pstmt = prepare(conn, cache, sqlString, keyColumn);
+            try {
+                for (int row = 0; row < rows.size(); row++) {
+                    List<Object> params = rows.get(row);
+                    for (int i = 0; i < params.size(); i++) {
+                        pstmt.setObject(i + 1, params.get(i));
+                    }
+                    pstmt.addBatch();
+                    if ((row + 1) % batchSize == 0 || row == rows.size() - 1) {
+                        int[] batch = pstmt.executeBatch();
+                        System.arraycopy(batch, 0, counts, row + 1 - batch.length, batch.length);
+                        if (keyColumn != null) {
+                            readKeys(pstmt, keys);
+                        }
+                    }
+                }
+            } catch (SQLException e) {
+                discard(cache, pstmt);
+                throw e;
+            } finally {
+                release(cache, pstmt);
+            }
+        } catch (SQLException e) {
+            Transactions.recordFailure(e);
+            recheckTable(conn, tableName);
+            throw e;
+        } finally {
+            // Batches before a failed one may have been written
+            TableVersions.written(tableName);
+        }
+        return counts;
+    }
+
+    /**
+     * Runs a statement that returns no rows with a cached statement.
+     * Unlike {@code executeOrThrow()}, the table is not checked and
+     * changing no rows is left to the caller.
+     * @return the number of rows changed
+     * @throws SQLException if the statement failed
+     */
+    static int executeUpdate(Connection conn, String sqlString, List<Object> params) throws SQLException {
+        logger.info("Executing sql: " + sqlString);
+        StatementCache cache = Setup.statementCache(conn);
+        PreparedStatement pstmt = prepare(conn, cache, sqlString);
+        try {
+            for (int i = 0; i < params.size(); i++) {
+                pstmt.setObject(i + 1, params.get(i));
+            }
+            return pstmt.executeUpdate();
+        } catch (SQLException e) {
+            discard(cache, pstmt);
+            throw e;
+        } finally {
+            release(cache, pstmt);
+        }
+    }
+
+    private static void readKeys(PreparedStatement pstmt, List<Object> keys) throws SQLException {
+        try (ResultSet rs = pstmt.getGeneratedKeys()) {
+            while (rs != null && rs.next()) {
+                keys.add(rs.getObject(1));
+            }
+        }
+    }
+
+    /**
+     * Runs an {@code INSERT} built by {@code SqlTemplates} and returns
+     * the value the database generated for {@code keyColumn}, read with
+     * {@code getGeneratedKeys()} in the same round trip.
+     * @param conn the connection to run the statement on
+     * @param tableName the table to insert into
+     * @param sqlString the {@code INSERT} to run
+     * @param params the values for each {@code ?} in {@code sqlString}
+     * @param keyColumn the generated column to return
+     * @return the generated key, or {@code null} if the driver returned
+     *      none
+     * @throws ResourcePersistenceException if the table does not exist,
+     *      the insert failed or no row was inserted
+     */
+    static Object insert(Connection conn, String tableName, String sqlString,
+            List<Object> params, String keyColumn) {
+        logger.info("Executing sql: " + sqlString);
+        try {
+            checkTable(conn, tableName);
+            StatementCache cache = Setup.statementCache(conn);
+            PreparedStatement pstmt = prepare(conn, cache, sqlString, keyColumn);
+            try {
+                for (int i = 0; i < params.size(); i++) {
+                    pstmt.setObject(i + 1, params.get(i));
+                }
+                if (pstmt.executeUpdate() == 0) {
+                    throwNoRowsChanged(sqlString);
+                }
+                try (ResultSet rs = pstmt.getGeneratedKeys()) {
+                    return rs != null && rs.next() ? rs.getObject(1) : null;
+                }
+            } catch (SQLException e) {
+                discard(cache, pstmt);
+                throw e;
+            } finally {
+                release(cache, pstmt);
+            }
+        } catch (SQLException e) {
+            Transactions.recordFailure(e);
+            recheckTable(conn, tableName);
+            throw new ResourcePersistenceException("Could not insert into " + tableName + ": " + e.getMessage(), e);
+        } finally {
+            TableVersions.written(tableName);
+        }
+    }
+
+    /**
+     * Takes the statement for {@code sqlString} from {@code cache}, or
+     * prepares a new one if {@code conn} has no cache.
+     */
+    private static PreparedStatement prepare(Connection conn, StatementCache cache, String sqlString)
+            throws SQLException {
+        return prepare(conn, cache, sqlString, null);
+    }
+
+    /**
+     * Same as {@code prepare()}, for a statement returning the key
+     * generated for {@code keyColumn}, if not {@code null}.
+     */
+    private static PreparedStatement prepare(Connection conn, StatementCache cache, String sqlString,
+            String keyColumn) throws SQLException {
+        if (cache != null) {
+            return cache.prepare(sqlString, keyColumn);
+        }
+        return keyColumn == null
+            ? conn.prepareStatement(sqlString)
+            : conn.prepareStatement(sqlString, new String[] { keyColumn });
+    }
+
+    /**
+     * Gives a statement from {@code prepare()} back to its cache,
+     * or closes it if it is not cached.
+     */
+    private static void release(StatementCache cache, PreparedStatement pstmt) throws SQLException {
+        if (cache == null) {
+            pstmt.close();
+        } else {
+            cache.release(pstmt);
+        }
+    }
+
+    /**
+     * Drops a statement that failed from {@code cache}, so it is
+     * prepared again the next time. The {@code release()} that follows
+     * then does nothing.
+     */
+    private static void discard(StatementCache cache, PreparedStatement pstmt) {
+        if (cache != null) {
+            cache.discard(pstmt);
+        }
+    }
+
+    /**
+     * Checks if the table already exists in database. Uses the
+     * schema cache, so this only reaches the database the first
+     * time a table is used.
+     * @throws ResourcePersistenceException if it does not
+     */
+    static void checkTable(Connection conn, String tableName) throws SQLException {
+        Setup.getSchemaCache().checkTable(conn, tableName);
+    }
+
+    /**
+     * Called after a statement failed. The table may have been
+     * dropped or changed since it was cached, so it is looked up
+     * again.
+     * @throws ResourcePersistenceException if it no longer exists
+     */
+    private static void recheckTable(Connection conn, String tableName) {
+        Setup.getSchemaCache().invalidate(tableName);
+        try {
+            checkTable(conn, tableName);
+        } catch (SQLException e) {
+            // The connection is unusable, e.g. an aborted transaction; the table is checked next time
+            logger.warn("Could not recheck table " + tableName + ": " + e.getMessage());
+        }
+    }
+
+    private static void throwNoRowsChanged(String sqlString) {
+        if (sqlString.startsWith("INSERT")) {
+            throw new ResourcePersistenceException("Insert function failed, please please make sure columns " +
+            "and values are valid.");
+        }
+        else if (sqlString.startsWith("UPDATE")) {
+            throw new ResourcePersistenceException("Update function failed, please please make sure that an object " +
+            "with given primary key column and value exists in table to be updated.");
+        }
+        else if (sqlString.startsWith("DELETE")) {
+            throw new ResourcePersistenceException("Delete function failed, please make sure that an object " +
+                    "with given columns and values exists in table to be deleted.");
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.revature.javelin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.revature.javelin.exceptions.InvalidColumnsException;
+
+/**
+ * Caches the {@code INSERT}, {@code UPDATE} and upsert statements built
+ * for {@code create()}, {@code update()} and {@code upsert()}. A statement is built once per
+ * table and set of columns, with the columns sorted, so objects with
+ * the same columns always produce the same SQL text and parameter
+ * order. That also lets them share one cached prepared statement per
+ * connection.
+ */
+final class SqlTemplates {
+
+    /**
+     * Column sets beyond this many are built every time instead of
+     * cached, so code that writes ever changing columns can not fill
+     * up memory.
+     */
+    private static final int MAX_TEMPLATES = 1024;
+
+    private static final Map<Key, Template> templates = new ConcurrentHashMap<>();
+
+    private SqlTemplates() {
+        super();
+    }
+
+    /**
+     * @param tableName the table to insert into
+     * @param columns the columns given a value
+     * @return the {@code INSERT} statement for these columns
+     */
+    static Template insert(String tableName, Collection<String> columns) {
+        return get(new Key(Kind.INSERT, tableName, sorted(columns), null, null));
+    }
+
+    /**
+     * @param tableName the table to update
+     * @param columns the columns to set
+     * @param primaryKeyColumn the column matched by the last parameter
+     * @return the {@code UPDATE} statement for these columns
+     */
+    static Template update(String tableName, Collection<String> columns, String primaryKeyColumn) {
+        return get(new Key(Kind.UPDATE, tableName, sorted(columns), new String[] { primaryKeyColumn }, null));
+    }
+
+    /**
+     * @param dialect the database the statement runs on
+     * @param tableName the table to write to
+     * @param columns the columns given a value
+     * @param conflictColumns the columns identifying an existing row
+     * @return the upsert statement for these columns
+     * @throws InvalidColumnsException if no conflict column is given, or
+     *      one is invalid or not among {@code columns}
+     * @throws com.revature.javelin.exceptions.InvalidQueryException if
+     *      {@code dialect} has no upsert
+     */
+    static Template upsert(Dialect dialect, String tableName, Collection<String> columns, String[] conflictColumns) {
+        if (conflictColumns.length == 0) {
+            throw new InvalidColumnsException("No conflict columns given");
+        }
+        for (String column : conflictColumns) {
+            SqlBuilder.sanitizeColumn(column);
+            if (!columns.contains(column.toUpperCase())) {
+                throw new InvalidColumnsException("Conflict column " + column + " is not set");
+            }
+        }
+        return get(new Key(Kind.UPSERT, tableName, sorted(columns), conflictColumns.clone(), dialect));
+    }
+
+    static int size() { return templates.size(); }
+
+    private static String[] sorted(Collection<String> columns) {
+        String[] array = columns.toArray(new String[0]);
+        Arrays.sort(array);
+        return array;
+    }
+
+    private static Template get(Key key) {
+        Template template = templates.get(key);
+        if (template != null) {
+            return template;
+        }
+        template = build(key);
+        if (templates.size() < MAX_TEMPLATES) {
+            templates.putIfAbsent(key, template);
+        }
+        return template;
+    }
+
+    private static Template build(Key key) {
+        switch (key.kind) {
+            case UPDATE:
+                String[] params = Arrays.copyOf(key.columns, key.columns.length + 1);
+                params[key.columns.length] = key.keyColumns[0].toUpperCase();
+                return new Template(SqlBuilder.update(key.tableName, key.columns, key.keyColumns[0]), params);
+            case UPSERT:
+                return new Template(SqlBuilder.upsert(key.dialect, key.tableName, key.columns, key.keyColumns),
+                    key.columns);
+            default:
+                return new Template(SqlBuilder.insert(key.tableName, key.columns), key.columns);
+        }
+    }
+
+    private enum Kind {
+        INSERT,
+        UPDATE,
+        UPSERT
+    }
+
+    /**
+     * A statement and the columns whose values fill its parameters,
+     * in order.
+     */
+    static final class Template {
+        final String sql;
+        private final String[] columns;
+
+        private Template(String sql, String[] columns) {
+            this.sql = sql;
+            this.columns = columns;
+        }
+
+        /**
+         * @param values column names mapped to values
+         * @return the values of the template's columns, in parameter
+         *      order, ending with the primary key for an {@code UPDATE}
+         */
+        List<Object> params(Map<String, Object> values) {
+            List<Object> params = new ArrayList<>(columns.length);
+            for (String column : columns) {
+                params.add(values.get(column));
+            }
+            return params;
+        }
+    }
+
+    private static final class Key {
+        final Kind kind;
+        final String tableName;
+        final String[] columns;
+        /** The primary key of an {@code UPDATE} or conflict columns of an upsert. */
+        final String[] keyColumns;
+        final Dialect dialect;
+        final int hash;
+
+        Key(Kind kind, String tableName, String[] columns, String[] keyColumns, Dialect dialect) {
+            this.kind = kind;
+            this.tableName = tableName;
+            this.columns = columns;
+            this.keyColumns = keyColumns;
+            this.dialect = dialect;
+            int h = kind.hashCode();
+            h = 31 * h + tableName.hashCode();
+            h = 31 * h + Arrays.hashCode(columns);
+            h = 31 * h + Arrays.hashCode(keyColumns);
+            h = 31 * h + (dialect == null ? 0 : dialect.hashCode());
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key) obj;
+            return hash == other.hash
+                && kind == other.kind
+                && dialect == other.dialect
+                && tableName.equals(other.tableName)
+                && Arrays.equals(columns, other.columns)
+                && Arrays.equals(keyColumns, other.keyColumns);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.revature.javelin;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The {@code PreparedStatement}s of one pooled connection, keyed by
+ * their SQL text and the generated key column they return, if any.
+ * Running the same SQL again reuses the statement
+ * instead of parsing it again. Holds at most {@code maxSize}
+ * statements and closes the least recently used one to make room.
+ * <p>
+ * A statement handed out is taken out of the cache until it is given
+ * back with {@code release()}, so it is never closed to make room
+ * while in use, and running the same SQL again before then, such as
+ * from a row mapper, prepares a second statement instead of sharing
+ * the first. Callers must give statements back instead of closing them.
+ */
+final class StatementCache {
+
+    private static final Logger logger = LogManager.getLogger(StatementCache.class);
+
+    private static final AtomicLong totalHits = new AtomicLong();
+    private static final AtomicLong totalMisses = new AtomicLong();
+
+    private final Connection conn;
+    private final int maxSize;
+    /** Statements not in use, least recently used first. */
+    private final LinkedHashMap<String, PreparedStatement> statements;
+    /** Statements handed out and not given back yet, with their keys. */
+    private final Map<PreparedStatement, String> inUse = new IdentityHashMap<>();
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param conn the connection the statements are prepared on
+     * @param maxSize the most statements kept open at once
+     */
+    StatementCache(Connection conn, int maxSize) {
+        this.conn = conn;
+        this.maxSize = maxSize;
+        this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() > StatementCache.this.maxSize) {
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Takes the cached statement for {@code sql} out of the cache,
+     * preparing a new one if there is none or it is in use.
+     * @param sql the SQL text of the statement
+     * @return a statement that must be given back with {@code release()}
+     * @throws SQLException if the statement could not be prepared
+     */
+    synchronized PreparedStatement prepare(String sql) throws SQLException {
+        return prepare(sql, null);
+    }
+
+    /**
+     * Same as {@code prepare(String)}, but the statement returns the
+     * value generated for {@code keyColumn} by each row it inserts,
+     * read with {@code getGeneratedKeys()}.
+     * @param sql the SQL text of the statement
+     * @param keyColumn the generated column to return, or {@code null}
+     * @return a statement that must be given back with {@code release()}
+     * @throws SQLException if the statement could not be prepared
+     */
+    synchronized PreparedStatement prepare(String sql, String keyColumn) throws SQLException {
+        String key = keyOf(sql, keyColumn);
+        PreparedStatement pstmt = statements.remove(key);
+        if (pstmt != null && !pstmt.isClosed()) {
+            hits++;
+            totalHits.incrementAndGet();
+        } else {
+            misses++;
+            totalMisses.incrementAndGet();
+            pstmt = keyColumn == null
+                ? conn.prepareStatement(sql)
+                : conn.prepareStatement(sql, new String[] { keyColumn });
+        }
+        inUse.put(pstmt, key);
+        return pstmt;
+    }
+
+    /**
+     * Clears the parameters of a statement returned by {@code prepare()}
+     * and puts it back in the cache for its next use. If another
+     * statement for the same SQL was given back first, this one is
+     * closed instead.
+     * @param pstmt the statement to give back
+     */
+    synchronized void release(PreparedStatement pstmt) {
+        String key = inUse.remove(pstmt);
+        if (key == null) {
+            // Discarded, or the cache was closed while it was in use
+            closeQuietly(pstmt);
+            return;
+        }
+        try {
+            if (pstmt.isClosed()) {
+                return;
+            }
+            pstmt.clearParameters();
+        } catch (SQLException e) {
+            logger.warn("Could not reset cached statement: " + e.getMessage());
+            closeQuietly(pstmt);
+            return;
+        }
+        if (statements.containsKey(key)) {
+            closeQuietly(pstmt);
+        } else {
+            statements.put(key, pstmt);
+        }
+    }
+
+    /**
+     * Closes a statement returned by {@code prepare()} instead of giving
+     * it back, so a statement that failed is prepared again next time.
+     * @param pstmt the statement to close
+     */
+    synchronized void discard(PreparedStatement pstmt) {
+        inUse.remove(pstmt);
+        closeQuietly(pstmt);
+    }
+
+    /**
+     * Closes every statement, including those in use.
+     */
+    synchronized void close() {
+        Iterator<PreparedStatement> it = statements.values().iterator();
+        while (it.hasNext()) {
+            closeQuietly(it.next());
+            it.remove();
+        }
+        for (PreparedStatement pstmt : inUse.keySet()) {
+            closeQuietly(pstmt);
+        }
+        inUse.clear();
+    }
+
+    /**
+     * @return the number of statements waiting in the cache, not
+     *      counting those in use
+     */
+    synchronized int size() { return statements.size(); }
+
+    synchronized long getHits() { return hits; }
+
+    synchronized long getMisses() { return misses; }
+
+    /**
+     * @return the number of statements reused by every cache so far
+     */
+    static long totalHits() { return totalHits.get(); }
+
+    /**
+     * @return the number of statements every cache had to prepare so far
+     */
+    static long totalMisses() { return totalMisses.get(); }
+
+    /**
+     * A line break can not end a statement built by {@code SqlBuilder},
+     * so keys of statements returning a column never clash with SQL.
+     */
+    private static String keyOf(String sql, String keyColumn) {
+        return keyColumn == null ? sql : sql + "\nRETURNING " + keyColumn;
+    }
+
+    private static void closeQuietly(PreparedStatement pstmt) {
+        try {
+            pstmt.close();
+        } catch (SQLException e) {
+            logger.error("Error when closing statement: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.revature.javelin;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A map holding at most a given number of entries, split over stripes
+ * by key, each with its own lock, so threads using different keys
+ * rarely wait for each other. When a stripe is full, its entry used
+ * least recently is dropped; entries older than the time to live are
+ * dropped when next asked for. Counts hits, misses and evictions.
+ * @param <K> the keys
+ * @param <V> the values
+ */
+final class StripedLru<K, V> {
+
+    private final Stripe<K, V>[] stripes;
+    private final int mask;
+    private final long timeToLive;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxEntries the most entries to hold
+     * @param timeToLiveMillis how long an entry is used after it was
+     *      put, or 0 to keep it until it is dropped to make room
+     * @param stripes the number of locks to spread the entries over,
+     *      rounded up to a power of two and to at most one per entry
+     * @throws IllegalArgumentException if {@code maxEntries} or
+     *      {@code stripes} is less than 1 or {@code timeToLiveMillis}
+     *      is negative
+     */
+    @SuppressWarnings("unchecked")
+    StripedLru(int maxEntries, long timeToLiveMillis, int stripes) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("A cache must hold at least 1 entry");
+        }
+        if (stripes < 1) {
+            throw new IllegalArgumentException("A cache needs at least 1 stripe");
+        }
+        if (timeToLiveMillis < 0) {
+            throw new IllegalArgumentException("The time to live can not be negative");
+        }
+        int count = 1;
+        while (count < stripes && count * 2 <= maxEntries) {
+            count *= 2;
+        }
+        this.stripes = new Stripe[count];
+        int capacity = (maxEntries + count - 1) / count;
+        for (int i = 0; i < count; i++) {
+            this.stripes[i] = new Stripe<>(capacity, evictions);
+        }
+        this.mask = count - 1;
+        this.timeToLive = TimeUnit.MILLISECONDS.toNanos(timeToLiveMillis);
+    }
+
+    /**
+     * @return the value put for {@code key}, or {@code null} if there
+     *      is none or it is too old
+     */
+    V get(K key) {
+        Stripe<K, V> stripe = stripeOf(key);
+        synchronized (stripe) {
+            Entry<V> entry = stripe.get(key);
+            if (entry != null && timeToLive > 0 && System.nanoTime() - entry.storedAt >= timeToLive) {
+                stripe.remove(key);
+                evictions.increment();
+                entry = null;
+            }
+            if (entry == null) {
+                misses.increment();
+                return null;
+            }
+            hits.increment();
+            return entry.value;
+        }
+    }
+
+    void put(K key, V value) {
+        Stripe<K, V> stripe = stripeOf(key);
+        synchronized (stripe) {
+            stripe.put(key, new Entry<>(value, System.nanoTime()));
+        }
+    }
+
+    void clear() {
+        for (Stripe<K, V> stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    CacheStats getStats() {
+        long size = 0;
+        for (Stripe<K, V> stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return new CacheStats(hits.sum(), misses.sum(), evictions.sum(), size);
+    }
+
+    private Stripe<K, V> stripeOf(K key) {
+        int h = key.hashCode();
+        return stripes[(h ^ (h >>> 16)) & mask];
+    }
+
+    /**
+     * The entries of one stripe, from least to most recently used.
+     */
+    private static final class Stripe<K, V> extends LinkedHashMap<K, Entry<V>> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+        private final LongAdder evictions;
+
+        Stripe(int capacity, LongAdder evictions) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+            this.evictions = evictions;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+            if (size() > capacity) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private static final class Entry<V> {
+        final V value;
+        final long storedAt;
+
+        Entry(V value, long storedAt) {
+            this.value = value;
+            this.storedAt = storedAt;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.revature.javelin;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A version for every table, moved on by each write to it, that is
+ * part of the keys of the entity and query caches. A cached result is
+ * stored under the versions its lookup saw before reading the database,
+ * so once a table is written to, results read from it before are never
+ * asked for again and only need to age out of the cache. This also
+ * covers a read that finishes after a write it started before.
+ * <p>
+ * Tables are versioned by name without their schema, so a write through
+ * {@code @Table("MYSCHEMA.USERS")} moves the version seen by a query on
+ * {@code USERS} and the other way around. Tables of the same name in
+ * other schemas share the version, which only drops results early.
+ * <p>
+ * Writes in a transaction move the version again when it ends, as
+ * other connections only see them from then on.
+ */
+final class TableVersions {
+
+    private static final Map<String, AtomicLong> versions = new ConcurrentHashMap<>();
+
+    private TableVersions() {
+        super();
+    }
+
+    /**
+     * @param tableName a table, in any case
+     * @return the current version of {@code tableName}
+     */
+    static long current(String tableName) {
+        return versionOf(tableName).get();
+    }
+
+    /**
+     * Called after a statement wrote to {@code tableName}, whether it
+     * succeeded or not.
+     */
+    static void written(String tableName) {
+        String table = tableName.toUpperCase();
+        versionOf(table).incrementAndGet();
+        Transactions.recordWrite(table);
+        EntityCache cache = Setup.getEntityCache();
+        if (cache != null) {
+            cache.invalidateTable(table);
+        }
+    }
+
+    /**
+     * @param tableName a table, in any case, optionally quoted or
+     *      qualified by its schema
+     * @return the name {@code tableName} is versioned under: in upper
+     *      case, without schema or quotes
+     */
+    static String versionedName(String tableName) {
+        String name = tableName.substring(tableName.lastIndexOf('.') + 1);
+        if (name.length() > 1 && name.startsWith("\"") && name.endsWith("\"")) {
+            name = name.substring(1, name.length() - 1);
+        }
+        return name.toUpperCase();
+    }
+
+    private static AtomicLong versionOf(String tableName) {
+        return versions.computeIfAbsent(versionedName(tableName), table -> new AtomicLong());
+    }
+}
@@ -0,0 +1,16 @@
+package com.revature.javelin;
+
+/**
+ * The body of a transaction started with {@code Setup.inTransaction()}
+ * or {@code Session.inTransaction()}. Every {@code Model} operation run
+ * by this thread inside {@code run()} joins the transaction.
+ */
+@FunctionalInterface
+public interface TransactionWork {
+
+    /**
+     * @param session a session on the transaction's connection
+     * @throws Exception to roll the transaction back
+     */
+    void run(Session session) throws Exception;
+}
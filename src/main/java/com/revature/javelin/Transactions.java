@@ -0,0 +1,157 @@
+package com.revature.javelin;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Keeps track of the transaction running on each thread. While a
+ * transaction runs, its connection is bound to the thread, so
+ * {@code Setup.borrowConnection()} hands out that connection instead
+ * of a pooled one and every {@code Model} operation on the thread
+ * joins the transaction.
+ */
+final class Transactions {
+
+    private static final Logger logger = LogManager.getLogger(Transactions.class);
+
+    private static final ThreadLocal<Bound> current = new ThreadLocal<>();
+
+    private Transactions() {
+        super();
+    }
+
+    /**
+     * @return the connection of the transaction running on this
+     *      thread, or {@code null} if there is none
+     */
+    static Connection boundConnection() {
+        Bound bound = current.get();
+        return bound == null ? null : bound.conn;
+    }
+
+    /**
+     * Marks the transaction on this thread, if any, as failed so that
+     * it is rolled back even though the statement error was handled.
+     * @param e the error of the failed statement
+     */
+    static void recordFailure(SQLException e) {
+        Bound bound = current.get();
+        if (bound != null && bound.failure == null) {
+            bound.failure = e;
+        }
+    }
+
+    /**
+     * Remembers that the transaction on this thread, if any, wrote to
+     * {@code tableName}, so its version is moved on again once other
+     * connections can see the change.
+     * @param tableName the table written to
+     */
+    static void recordWrite(String tableName) {
+        Bound bound = current.get();
+        if (bound != null) {
+            bound.tables.add(tableName);
+        }
+    }
+
+    /**
+     * Runs {@code work} in one transaction on {@code session}'s
+     * connection and commits it, or rolls it back if {@code work}
+     * throws or any statement in it failed. If this thread is already
+     * in a transaction on the same connection, {@code work} simply
+     * joins it.
+     * @param session the session owning the connection
+     * @param isolation a {@code Connection.TRANSACTION_*} level, or
+     *      -1 to keep the connection's default
+     * @param readOnly hint to the driver that nothing will be written
+     * @param work the operations to run
+     * @throws SQLException if the transaction could not be committed,
+     *      or was rolled back because of a failed statement or a
+     *      checked exception thrown by {@code work}
+     */
+    static void run(Session session, int isolation, boolean readOnly, TransactionWork work) throws SQLException {
+        Connection conn = session.getConnection();
+        Bound outer = current.get();
+        if (outer != null) {
+            if (outer.conn != conn) {
+                throw new SQLException("Another transaction is already running on this thread");
+            }
+            runWork(work, session);
+            return;
+        }
+
+        int oldIsolation = conn.getTransactionIsolation();
+        boolean oldReadOnly = conn.isReadOnly();
+        Bound bound = new Bound(conn);
+        current.set(bound);
+        try {
+            if (isolation != -1) {
+                conn.setTransactionIsolation(isolation);
+            }
+            if (readOnly) {
+                conn.setReadOnly(true);
+            }
+            conn.setAutoCommit(false);
+            try {
+                runWork(work, session);
+            } catch (SQLException | RuntimeException e) {
+                rollback(conn);
+                throw e;
+            }
+            if (bound.failure != null) {
+                rollback(conn);
+                throw new SQLException("Transaction rolled back because a statement failed", bound.failure);
+            }
+            conn.commit();
+        } finally {
+            current.remove();
+            for (String table : bound.tables) {
+                TableVersions.written(table);
+            }
+            conn.setAutoCommit(true);
+            if (readOnly) {
+                conn.setReadOnly(oldReadOnly);
+            }
+            if (isolation != -1) {
+                conn.setTransactionIsolation(oldIsolation);
+            }
+        }
+    }
+
+    private static void runWork(TransactionWork work, Session session) throws SQLException {
+        try {
+            work.run(session);
+        } catch (SQLException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new SQLException("Transaction rolled back: " + e.getMessage(), e);
+        }
+    }
+
+    private static void rollback(Connection conn) {
+        try {
+            conn.rollback();
+        } catch (SQLException e) {
+            logger.error("Error when rolling back transaction: " + e.getMessage());
+        }
+    }
+
+    /**
+     * A transaction's connection, the first statement error in it and
+     * the tables it wrote to.
+     */
+    private static final class Bound {
+        final Connection conn;
+        SQLException failure = null;
+        final Set<String> tables = new HashSet<>();
+
+        Bound(Connection conn) {
+            this.conn = conn;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.revature.javelin;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Gives access to virtual threads on Java 21 and later while the
+ * library itself is still compiled for Java 8. The virtual thread
+ * executor is looked up by reflection once, so on older runtimes
+ * {@code isSupported()} simply returns {@code false}.
+ */
+final class VirtualThreads {
+
+    private static final Logger logger = LogManager.getLogger(VirtualThreads.class);
+
+    /**
+     * {@code Executors.newVirtualThreadPerTaskExecutor()}, or
+     * {@code null} if this runtime has no virtual threads.
+     */
+    private static final Method NEW_EXECUTOR = findFactory();
+
+    private VirtualThreads() {
+        super();
+    }
+
+    private static Method findFactory() {
+        try {
+            return java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return {@code true} if this runtime can start virtual threads
+     */
+    static boolean isSupported() {
+        return NEW_EXECUTOR != null;
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread per task.
+     * @return the executor, or {@code null} if this runtime has no
+     *      virtual threads
+     */
+    static ExecutorService newPerTaskExecutor() {
+        if (NEW_EXECUTOR == null) {
+            return null;
+        }
+        try {
+            return (ExecutorService) NEW_EXECUTOR.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            logger.warn("Could not create virtual thread executor: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Wraps {@code delegate} so that at most {@code maxConcurrency}
+     * tasks run at once. Extra tasks are started right away but wait
+     * on a semaphore inside their own thread, which costs next to
+     * nothing on a virtual thread, instead of queueing on the pool's
+     * borrow timeout.
+     * @param delegate the executor that starts the tasks
+     * @param maxConcurrency the most tasks allowed to run together,
+     *      usually the size of the connection pool
+     * @return the bounded executor
+     */
+    static Executor bounded(Executor delegate, int maxConcurrency) {
+        Semaphore permits = new Semaphore(maxConcurrency, true);
+        return task -> delegate.execute(() -> {
+            permits.acquireUninterruptibly();
+            try {
+                task.run();
+            } finally {
+                permits.release();
+            }
+        });
+    }
+}
@@ -0,0 +1,38 @@
+package com.revature.javelin.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Repeatable;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares a query on a {@code Model} class that is built and checked
+ * once and then run by name with {@code Query.named()}:
+ * <pre>
+ * &#64;NamedQuery(name = "byEmail", where = "email = ?")
+ * public class User extends Model { }
+ *
+ * User user = Query.named(User.class, "byEmail").execute("a@b.com").get(0);
+ * </pre>
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+@Repeatable(NamedQueries.class)
+public @interface NamedQuery {
+    /**
+     * The name the query is run by, unique per class.
+     */
+    public String name();
+
+    /**
+     * The {@code WHERE} condition, may use {@code ?} placeholders.
+     * Leave empty to find every row.
+     */
+    public String where() default "";
+
+    /**
+     * The columns to select. Leave empty to select all of them.
+     */
+    public String[] columns() default {};
+}
@@ -6,9 +6,25 @@ import java.lang.annotation.Target;
 import java.lang.annotation.RetentionPolicy;
 
 
+/**
+ * Names the table a {@code Model} class is stored in. Without it the
+ * simple name of the class is used.
+ */
 @Target(ElementType.TYPE)
 @Retention(RetentionPolicy.RUNTIME)
 public @interface Table {
     public String value() default "";
+
+    /**
+     * The primary key column of the table, if any. Declaring it lets
+     * {@code Setup.warmUp()} prepare lookups by id ahead of time, lets
+     * a {@code Session} identity map keep the rows it loads by this
+     * key, and lets lookups by this column be answered from the entity
+     * cache set with {@code Setup.setEntityCache()}. Without it, no
+     * lookup is prepared, the entity cache is never used for the class
+     * and the identity map only keeps rows found by a column named in
+     * the call itself.
+     */
+    public String primaryKey() default "";
     
 }
@@ -11,4 +11,8 @@ public class ResourcePersistenceException extends RuntimeException {
     public ResourcePersistenceException(String message) {
         super(message);
     }
+
+    public ResourcePersistenceException(String message, Throwable cause) {
+        super(message, cause);
+    }
 }
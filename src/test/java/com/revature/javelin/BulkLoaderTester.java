@@ -0,0 +1,93 @@
+package com.revature.javelin;
+
+import static org.junit.Assert.*;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import com.revature.javelin.exceptions.InvalidColumnsException;
+import com.revature.javelin.exceptions.ResourcePersistenceException;
+
+import org.junit.*;
+
+public class BulkLoaderTester {
+
+    private static final BulkLoader<ModelExtension> LOADER = BulkLoader.into(ModelExtension.class, "user_id", "age");
+
+    @Before
+    public void setup() {
+        Properties props = new Properties();
+        try {
+            props.load(new FileReader("src/main/resources/application.properties"));
+            Setup.open(props.getProperty("url"), props.getProperty("username"), props.getProperty("password"));
+            Setup.getConnection().createStatement().execute("DROP TABLE IF EXISTS ModelExtension");
+            Setup.getConnection().createStatement().execute("CREATE TABLE ModelExtension (user_id int NOT NULL, age int)");
+        } catch (IOException | SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @After
+    public void teardown() {
+        Setup.close();
+    }
+
+    private static List<ModelExtension> models(int count) {
+        return IntStream.range(0, count)
+            .mapToObj(i -> (ModelExtension) new ModelExtension().setColumn("user_id", i).setColumn("age", 20 + i))
+            .collect(Collectors.toList());
+    }
+
+    @Test
+    public void testLoad_withMultiRowInserts() {
+        Setup.setBatchSize(4);
+        try {
+            BulkLoader.Result result = LOADER.load(models(10));
+            assertEquals(10, result.getRows());
+            assertFalse(result.isCopy());
+            assertTrue(result.getRowsPerSecond() > 0);
+        } finally {
+            Setup.setBatchSize(500);
+        }
+        List<ModelExtension> loaded = Query.findAll(ModelExtension.class).orderBy("user_id").execute();
+        assertEquals(10, loaded.size());
+        assertEquals(29, loaded.get(9).get("age"));
+    }
+
+    @Test
+    public void testLoad_withMissingColumnAsNull() {
+        List<ModelExtension> models = new ArrayList<>();
+        models.add(new ModelExtension().setColumn("user_id", 1));
+        assertEquals(1, LOADER.load(models).getRows());
+        assertNull(Query.findAll(ModelExtension.class).first().get("age"));
+    }
+
+    @Test
+    public void testLoad_loadsNoneOnFailure() {
+        List<ModelExtension> models = models(5);
+        models.add(new ModelExtension().setColumn("age", 30));
+        try {
+            LOADER.load(models);
+            assertTrue(false);
+        } catch (ResourcePersistenceException e) {
+            // Yay
+        }
+        assertEquals(0, Query.findAll(ModelExtension.class).execute().size());
+    }
+
+    @Test
+    public void testInto_withInvalidColumn() {
+        try {
+            BulkLoader.into(ModelExtension.class, "age; DROP TABLE ModelExtension");
+            assertTrue(false);
+        } catch (InvalidColumnsException e) {
+            // Yay
+        }
+    }
+}
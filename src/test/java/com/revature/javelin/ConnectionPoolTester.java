@@ -0,0 +1,197 @@
+package com.revature.javelin;
+
+import static org.junit.Assert.*;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import org.junit.*;
+
+public class ConnectionPoolTester {
+    private static Properties props = new Properties();
+    private ConnectionPool pool;
+
+    @BeforeClass
+    public static void setupVariables() {
+        try {
+            props.load(new FileReader("src/main/resources/application.properties"));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @After
+    public void teardown() {
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    private ConnectionPool newPool(int min, int max, long borrowTimeout, long idleTimeout) {
+        return new ConnectionPool(
+            () -> DriverManager.getConnection(props.getProperty("url"),
+                props.getProperty("username"), props.getProperty("password")),
+            min, max, borrowTimeout, idleTimeout, 1, 4);
+    }
+
+    @Test
+    public void testFill_opensMinimumConnections() throws SQLException {
+        pool = newPool(2, 5, 1000, 60000);
+        pool.fill();
+        assertEquals(2, pool.size());
+        assertEquals(2, pool.idleCount());
+    }
+
+    @Test
+    public void testBorrow_afterRelease_reusesConnection() throws SQLException {
+        pool = newPool(0, 5, 1000, 60000);
+        Connection first = pool.borrow();
+        pool.release(first);
+        Connection second = pool.borrow();
+        assertSame(first, second);
+        assertEquals(1, pool.size());
+        pool.release(second);
+    }
+
+    @Test
+    public void testBorrow_withExhaustedPool() throws SQLException {
+        pool = newPool(0, 1, 100, 60000);
+        Connection conn = pool.borrow();
+        try {
+            pool.borrow();
+            // Should time out and never get here
+            assertTrue(false);
+        } catch (SQLException e) {
+            // Yay
+        }
+        pool.release(conn);
+        assertNotNull(pool.borrow());
+    }
+
+    @Test
+    public void testBorrow_withClosedIdleConnection() throws SQLException {
+        pool = newPool(0, 2, 1000, 60000);
+        Connection conn = pool.borrow();
+        pool.release(conn);
+        conn.close();
+        Connection other = pool.borrow();
+        assertNotSame(conn, other);
+        assertFalse(other.isClosed());
+    }
+
+    @Test
+    public void testRelease_resetsAutoCommit() throws SQLException {
+        pool = newPool(0, 1, 1000, 60000);
+        Connection conn = pool.borrow();
+        conn.setAutoCommit(false);
+        pool.release(conn);
+        assertTrue(pool.borrow().getAutoCommit());
+    }
+
+    @Test
+    public void testEvict_closesIdleConnectionsAboveMinimum() throws SQLException, InterruptedException {
+        pool = newPool(1, 5, 1000, 0);
+        Connection conn0 = pool.borrow();
+        Connection conn1 = pool.borrow();
+        Connection conn2 = pool.borrow();
+        pool.release(conn0);
+        pool.release(conn1);
+        pool.release(conn2);
+        assertEquals(3, pool.size());
+        Thread.sleep(10);
+        pool.evict();
+        assertEquals(1, pool.size());
+    }
+
+    @Test
+    public void testClose_closesBorrowedConnections() throws SQLException {
+        pool = newPool(0, 2, 1000, 60000);
+        Connection conn = pool.borrow();
+        pool.close();
+        assertTrue(conn.isClosed());
+        try {
+            pool.borrow();
+            assertTrue(false);
+        } catch (SQLException e) {
+            // Yay
+        }
+    }
+
+    @Test
+    public void testStatementCache_reusesStatements() throws SQLException {
+        pool = newPool(0, 1, 1000, 60000);
+        Connection conn = pool.borrow();
+        StatementCache cache = pool.statementCache(conn);
+        PreparedStatement first = cache.prepare("SELECT 1");
+        cache.release(first);
+        PreparedStatement second = cache.prepare("SELECT 1");
+        assertSame(first, second);
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        pool.release(conn);
+
+        // The cache stays with the connection between borrows
+        assertSame(cache, pool.statementCache(pool.borrow()));
+    }
+
+    @Test
+    public void testStatementCache_closesLeastRecentlyUsed() throws SQLException {
+        pool = newPool(0, 1, 1000, 60000);
+        StatementCache cache = pool.statementCache(pool.borrow());
+        PreparedStatement eldest = cache.prepare("SELECT 0");
+        cache.release(eldest);
+        for (int i = 1; i <= 4; i++) {
+            cache.release(cache.prepare("SELECT " + i));
+        }
+        assertEquals(4, cache.size());
+        assertTrue(eldest.isClosed());
+    }
+
+    @Test
+    public void testStatementCache_keepsStatementsInUseOpen() throws SQLException {
+        pool = newPool(0, 1, 1000, 60000);
+        StatementCache cache = pool.statementCache(pool.borrow());
+        PreparedStatement inUse = cache.prepare("SELECT 0");
+        for (int i = 1; i <= 5; i++) {
+            cache.release(cache.prepare("SELECT " + i));
+        }
+        assertFalse(inUse.isClosed());
+        cache.release(inUse);
+        assertEquals(4, cache.size());
+    }
+
+    @Test
+    public void testStatementCache_withNestedUseOfSameSql() throws SQLException {
+        pool = newPool(0, 1, 1000, 60000);
+        StatementCache cache = pool.statementCache(pool.borrow());
+        PreparedStatement outer = cache.prepare("SELECT ?");
+        outer.setInt(1, 1);
+        PreparedStatement inner = cache.prepare("SELECT ?");
+        assertNotSame(outer, inner);
+        inner.setInt(1, 2);
+        cache.release(inner);
+        try (ResultSet rs = outer.executeQuery()) {
+            assertTrue(rs.next());
+            assertEquals(1, rs.getInt(1));
+        }
+        cache.release(outer);
+        // Only one of the two is kept
+        assertEquals(1, cache.size());
+        assertTrue(outer.isClosed());
+        assertSame(inner, cache.prepare("SELECT ?"));
+    }
+
+    @Test
+    public void testClose_closesCachedStatements() throws SQLException {
+        pool = newPool(0, 1, 1000, 60000);
+        PreparedStatement pstmt = pool.statementCache(pool.borrow()).prepare("SELECT 1");
+        pool.close();
+        assertTrue(pstmt.isClosed());
+    }
+}
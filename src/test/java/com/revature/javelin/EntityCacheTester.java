@@ -0,0 +1,182 @@
+package com.revature.javelin;
+
+import static org.junit.Assert.*;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.*;
+
+public class EntityCacheTester {
+
+    private static final String REPLICA_URL = "jdbc:h2:mem:javelin_replica;DB_CLOSE_DELAY=-1";
+
+    private LruEntityCache cache;
+    private Properties props = new Properties();
+
+    @Before
+    public void setup() {
+        try {
+            props.load(new FileReader("src/main/resources/application.properties"));
+            Setup.open(props.getProperty("url"), props.getProperty("username"), props.getProperty("password"));
+            Setup.getConnection().createStatement().execute("DROP TABLE IF EXISTS ModelExtension");
+            Setup.getConnection().createStatement().execute("CREATE TABLE ModelExtension (user_id int, age int)");
+            PreparedStatement pstmt = Setup.getConnection().prepareStatement("INSERT INTO ModelExtension VALUES (?, ?)");
+            for (int i = 0; i < 3; i++) {
+                pstmt.setInt(1, i);
+                pstmt.setInt(2, 20 + i);
+                pstmt.executeUpdate();
+            }
+        } catch (IOException | SQLException e) {
+            e.printStackTrace();
+        }
+        cache = new LruEntityCache(100, 0);
+        Setup.setEntityCache(cache);
+    }
+
+    @After
+    public void teardown() {
+        Setup.close();
+        Setup.setEntityCache(null);
+    }
+
+    private static ModelExtensionWithKey byId(int id) {
+        List<ModelExtensionWithKey> found =
+            new ModelExtensionWithKey().findAllById("user_id", id).execute(ModelExtensionWithKey.class);
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    /** Changes a row without javelin, so the cache does not know. */
+    private static void changeBehindCache(int id, int age) throws SQLException {
+        PreparedStatement pstmt = Setup.getConnection().prepareStatement("UPDATE ModelExtension SET age = ? WHERE user_id = ?");
+        pstmt.setInt(1, age);
+        pstmt.setInt(2, id);
+        pstmt.executeUpdate();
+    }
+
+    @Test
+    public void testFindAllById_answeredFromCache() throws SQLException {
+        assertEquals(21, byId(1).get("age"));
+        changeBehindCache(1, 99);
+        assertEquals(21, byId(1).get("age"));
+        assertEquals(21, Query.findAllByColumn(ModelExtensionWithKey.class, "user_id").execute(1).get(0).get("age"));
+        try (Session session = Setup.openSession()) {
+            assertEquals(21, session.findAllById(ModelExtensionWithKey.class, "user_id", 1).execute().get(0).get("age"));
+        }
+        CacheStats stats = cache.getStats();
+        assertEquals(3, stats.getHits());
+        assertEquals(1, stats.getMisses());
+        assertEquals(1, stats.getSize());
+
+        // Each lookup gets its own object
+        assertNotSame(byId(1), byId(1));
+        byId(1).setColumn("age", 50);
+        assertEquals(21, byId(1).get("age"));
+    }
+
+    @Test
+    public void testFindAllById_withoutPrimaryKeyIsNotCached() {
+        new ModelExtension().findAllById("user_id", 1).execute(ModelExtension.class);
+        new ModelExtensionWithKey().findAllByColumn("age", 21).execute(ModelExtensionWithKey.class);
+        new ModelExtensionWithKey().findAllById("user_id", 1).whereAnd("age > 0").execute(ModelExtensionWithKey.class);
+        assertEquals(0, cache.getStats().getMisses() + cache.getStats().getHits());
+    }
+
+    @Test
+    public void testWrites_invalidateCache() throws SQLException {
+        ModelExtensionWithKey model = byId(1);
+        model.setColumn("age", 30);
+        model.update("user_id", ModelExtensionWithKey.class);
+        assertEquals(30, byId(1).get("age"));
+
+        byId(2);
+        new ModelExtensionWithKey().delete().where("user_id = 2").execute(ModelExtensionWithKey.class);
+        assertNull(byId(2));
+
+        new ModelExtensionWithKey().setColumn("user_id", 2).setColumn("age", 40).create(ModelExtensionWithKey.class);
+        assertEquals(40, byId(2).get("age"));
+    }
+
+    @Test
+    public void testFindAllById_onLaggingReplicaNotCached() throws SQLException {
+        String replicaUrl = props.getProperty("replicaUrl", REPLICA_URL);
+        try (Connection replica = DriverManager.getConnection(replicaUrl,
+                props.getProperty("username"), props.getProperty("password"))) {
+            Statement stmt = replica.createStatement();
+            stmt.execute("DROP TABLE IF EXISTS ModelExtension");
+            stmt.execute("CREATE TABLE ModelExtension (user_id int, age int)");
+            stmt.execute("INSERT INTO ModelExtension VALUES (1, 21)");
+            Setup.addReplica(replicaUrl, props.getProperty("username"), props.getProperty("password"));
+
+            // The replica has not seen the update yet
+            new ModelExtensionWithKey().setColumn("user_id", 1).setColumn("age", 30)
+                .update("user_id", ModelExtensionWithKey.class);
+            assertEquals(21, byId(1).get("age"));
+            try (Session session = Setup.openReadOnlySession()) {
+                assertEquals(21, session.findAllById(ModelExtensionWithKey.class, "user_id", 1).execute().get(0).get("age"));
+            }
+
+            // Once it catches up, it is read again
+            stmt.execute("UPDATE ModelExtension SET age = 30 WHERE user_id = 1");
+            assertEquals(30, byId(1).get("age"));
+            assertEquals(0, cache.getStats().getHits());
+            assertEquals(0, cache.getStats().getSize());
+        }
+    }
+
+    @Test
+    public void testTransaction_invalidatesAfterCommit() throws SQLException {
+        byId(1);
+        Setup.inTransaction(session -> {
+            session.update(new ModelExtensionWithKey().setColumn("user_id", 1).setColumn("age", 31), "user_id");
+            // Not answered from the cache inside the transaction
+            assertEquals(31, session.findAllById(ModelExtensionWithKey.class, "user_id", 1).execute().get(0).get("age"));
+        });
+        assertEquals(31, byId(1).get("age"));
+    }
+
+    @Test
+    public void testLru_evictsLeastRecentlyUsed() {
+        LruEntityCache lru = new LruEntityCache(2, 0, 1);
+        EntityCache.Key first = new EntityCache.Key("t", 0, 1);
+        EntityCache.Key second = new EntityCache.Key("t", 0, 2L);
+        lru.put(first, new HashMap<>());
+        lru.put(second, new HashMap<>());
+        assertNotNull(lru.get(new EntityCache.Key("T", 0, 1L)));
+        lru.put(new EntityCache.Key("t", 0, 3), new HashMap<>());
+        assertNull(lru.get(second));
+        assertNotNull(lru.get(first));
+        assertNull(lru.get(new EntityCache.Key("t", 1, 1)));
+        assertEquals(1, lru.getStats().getEvictions());
+        assertEquals(2, lru.getStats().getSize());
+    }
+
+    @Test
+    public void testLru_withTimeToLive() throws InterruptedException {
+        LruEntityCache lru = new LruEntityCache(10, 1);
+        EntityCache.Key key = new EntityCache.Key("t", 0, 1);
+        lru.put(key, new HashMap<>());
+        Thread.sleep(5);
+        assertNull(lru.get(key));
+        assertEquals(1, lru.getStats().getEvictions());
+        assertEquals(0, lru.getStats().getSize());
+    }
+
+    @Test
+    public void testLru_withInvalidSize() {
+        try {
+            new LruEntityCache(0, 0);
+            assertTrue(false);
+        } catch (IllegalArgumentException e) {
+            // Yay
+        }
+    }
+}
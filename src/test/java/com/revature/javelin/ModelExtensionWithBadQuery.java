@@ -0,0 +1,10 @@
+package com.revature.javelin;
+
+import com.revature.javelin.annotations.NamedQuery;
+import com.revature.javelin.annotations.Table;
+
+@Table("ModelExtension")
+@NamedQuery(name = "bad", where = "age = 1; DROP TABLE ModelExtension")
+public class ModelExtensionWithBadQuery extends Model {
+
+}
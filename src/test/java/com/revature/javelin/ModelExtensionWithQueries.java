@@ -0,0 +1,11 @@
+package com.revature.javelin;
+
+import com.revature.javelin.annotations.NamedQuery;
+import com.revature.javelin.annotations.Table;
+
+@Table("ModelExtension")
+@NamedQuery(name = "byAge", where = "age = ?")
+@NamedQuery(name = "idsOlderThan", where = "age > ?", columns = { "user_id" })
+public class ModelExtensionWithQueries extends Model {
+
+}
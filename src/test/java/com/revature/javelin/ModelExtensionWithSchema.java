@@ -0,0 +1,8 @@
+package com.revature.javelin;
+
+import com.revature.javelin.annotations.Table;
+
+@Table(value = "PUBLIC.ModelExtension", primaryKey = "user_id")
+public class ModelExtensionWithSchema extends Model {
+
+}
@@ -7,9 +7,15 @@ import java.io.IOException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import com.revature.javelin.exceptions.InvalidColumnsException;
 import com.revature.javelin.exceptions.InvalidQueryException;
@@ -199,6 +205,329 @@ public class ModelTester {
         }
     }
 
+    @Test
+    public void testCreate_withSameColumnsInAnyOrder_reusesStatement() throws SQLException {
+        Setup.getConnection().prepareStatement("CREATE TABLE ModelExtension (user_id int, age int, name varchar(25))")
+            .execute();
+        new ModelExtension().setColumn("user_id", 1).setColumn("age", 30).setColumn("name", "a")
+            .create(ModelExtension.class);
+        int templates = SqlTemplates.size();
+        long hits = Setup.getStatementCacheHits();
+        new ModelExtension().setColumn("name", "b").setColumn("age", 31).setColumn("user_id", 2)
+            .create(ModelExtension.class);
+        assertEquals(templates, SqlTemplates.size());
+        assertEquals(hits + 1, Setup.getStatementCacheHits());
+        assertEquals(2, new ModelExtension().findAll().execute(ModelExtension.class).size());
+    }
+
+    public static class ModelWithoutDefaultConstructor extends Model {
+        public ModelWithoutDefaultConstructor(int unused) {
+            super();
+        }
+    }
+
+    @Test
+    public void testMetadata_resolvedOncePerClass() {
+        ModelMetadata metadata = ModelMetadata.of(ModelExtensionWithQueries.class);
+        assertSame(metadata, ModelMetadata.of(ModelExtensionWithQueries.class));
+        assertEquals("ModelExtension", metadata.getTableName());
+        assertEquals(2, metadata.getNamedQueries().length);
+        assertEquals("Test", new ModelExtensionWithAnnotation().getTableName());
+    }
+
+    @Test
+    public void testMetadata_withoutDefaultConstructor() {
+        try {
+            ModelMetadata.of(ModelWithoutDefaultConstructor.class).getConstructor();
+            assertTrue(false);
+        } catch (NoSuchMethodException e) {
+            // Yay
+        }
+    }
+
+    @Test
+    public void testStream_withWhere() throws SQLException {
+        Setup.getConnection().prepareStatement("CREATE TABLE ModelExtension (user_id int, age int)").execute();
+        for (int i = 0; i < 20; i++) {
+            new ModelExtension().setColumn("user_id", i).setColumn("age", i % 2).create(ModelExtension.class);
+        }
+        try (java.util.stream.Stream<ModelExtension> models = child.findAll().where("age = 1").stream(ModelExtension.class)) {
+            assertEquals(10, models.filter(m -> ((Integer) m.get("user_id")) % 2 == 1).count());
+        }
+        // The query was taken off the model
+        assertEquals(20, child.findAll().execute(ModelExtension.class).size());
+    }
+
+    @Test
+    public void testFirst_withOrderByAndOffset() throws SQLException {
+        Setup.getConnection().prepareStatement("CREATE TABLE ModelExtension (user_id int, age int)").execute();
+        for (int i = 0; i < 5; i++) {
+            new ModelExtension().setColumn("user_id", i).setColumn("age", 30 - i).create(ModelExtension.class);
+        }
+        ModelExtension youngest = child.findAll().orderBy("age").first(ModelExtension.class);
+        assertEquals(4, youngest.get("user_id"));
+        assertEquals(26, child.get("age"));
+
+        List<ModelExtension> models = child.findAll().orderBy("user_id DESC").limit(2).offset(1).execute(ModelExtension.class);
+        assertEquals(2, models.size());
+        assertEquals(3, models.get(0).get("user_id"));
+        assertEquals(2, models.get(1).get("user_id"));
+
+        assertNull(child.findAll().where("age > 100").first(ModelExtension.class));
+    }
+
+    @Test
+    public void testOrderBy_withInvalidDirection() {
+        try {
+            child.findAll().orderBy("age SIDEWAYS");
+            assertTrue(false);
+        } catch (InvalidColumnsException e) {
+            // Yay
+        }
+    }
+
+    @Test
+    public void testCreateAll_withMixedColumns() throws SQLException {
+        Setup.getConnection().prepareStatement("CREATE TABLE ModelExtension (user_id int, age int)").execute();
+        Setup.setBatchSize(3);
+        try {
+            List<ModelExtension> models = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                ModelExtension model = new ModelExtension().setColumn("user_id", i);
+                models.add(i % 2 == 0 ? model.setColumn("age", 20 + i) : model);
+            }
+            Model.createAll(models);
+        } finally {
+            Setup.setBatchSize(500);
+        }
+        assertEquals(10, child.findAll().execute(ModelExtension.class).size());
+        assertEquals(5, child.findAll().where("age IS NULL").execute(ModelExtension.class).size());
+    }
+
+    @Test
+    public void testCreateAll_createsNoneOnFailure() throws SQLException {
+        Setup.getConnection().prepareStatement("CREATE TABLE ModelExtension (user_id int NOT NULL, age int)").execute();
+        List<ModelExtension> models = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            models.add(new ModelExtension().setColumn("user_id", i).setColumn("age", 20));
+        }
+        models.add(new ModelExtension().setColumn("age", 30));
+        try {
+            Model.createAll(models);
+            assertTrue(false);
+        } catch (ResourcePersistenceException e) {
+            // Yay
+        }
+        assertEquals(0, child.findAll().execute(ModelExtension.class).size());
+    }
+
+    @Test
+    public void testCreateAll_withGeneratedKeys() throws SQLException {
+        Setup.getConnection().prepareStatement("CREATE TABLE ModelExtension (user_id int AUTO_INCREMENT, age int)").execute();
+        List<ModelExtension> models = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            models.add(new ModelExtension().setColumn("age", 20 + i));
+        }
+        Model.createAll(models, "user_id");
+        assertEquals(3, child.findAll().execute(ModelExtension.class).size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i + 1, ((Number) models.get(i).get("user_id")).intValue());
+        }
+    }
+
+    @Test
+    public void testCreate_withGeneratedPrimaryKey() throws SQLException {
+        Setup.getConnection().prepareStatement("CREATE TABLE ModelExtension (user_id int AUTO_INCREMENT, age int)").execute();
+        new ModelExtension().setColumn("age", 20).create(ModelExtension.class, "user_id");
+        child.setColumn("age", 21).create(ModelExtension.class, "user_id");
+        assertEquals(2, ((Number) child.get("user_id")).intValue());
+        // A row with a larger key inserted elsewhere does not confuse the next insert
+        Setup.getConnection().prepareStatement("INSERT INTO ModelExtension VALUES (100, 50)").execute();
+        Setup.getConnection().prepareStatement("ALTER TABLE ModelExtension ALTER COLUMN user_id RESTART WITH 3").execute();
+        ModelExtension next = new ModelExtension().setColumn("age", 22);
+        next.create(ModelExtension.class, "user_id");
+        assertEquals(3, ((Number) next.get("user_id")).intValue());
+    }
+
+    @Test
+    public void testCreate_withGivenPrimaryKey() throws SQLException {
+        Setup.getConnection().prepareStatement("CREATE TABLE ModelExtension (user_id int, age int)").execute();
+        child.setColumn("user_id", 7).setColumn("age", 21).create(ModelExtension.class, "user_id");
+        assertEquals(7, ((Number) child.get("user_id")).intValue());
+    }
+
+    @Test
+    public void testCreate_withPrimaryKey_andDuplicateKey() throws SQLException {
+        Setup.getConnection().prepareStatement("CREATE TABLE ModelExtension (user_id int PRIMARY KEY, age int)").execute();
+        new ModelExtension().setColumn("user_id", 7).setColumn("age", 21).create(ModelExtension.class, "user_id");
+        try {
+            child.setColumn("user_id", 7).setColumn("age", 22).create(ModelExtension.class, "user_id");
+            // Should throw an error and never get here
+            assertTrue(false);
+        } catch (ResourcePersistenceException e) {
+            assertTrue(e.getCause() instanceof SQLException);
+        }
+        assertEquals(1, child.findAll().execute(ModelExtension.class).size());
+    }
+
+    @Test
+    public void testExecute_withFailingStatement() throws SQLException {
+        Setup.getConnection().prepareStatement("CREATE TABLE ModelExtension (user_id int, age int)").execute();
+        Setup.getConnection().prepareStatement("INSERT INTO ModelExtension VALUES (1, 21)").execute();
+        try {
+            child.findAllByColumn("age", "not a number").execute(ModelExtension.class);
+            // Should throw an error and never get here
+            assertTrue(false);
+        } catch (ResourcePersistenceException e) {
+            assertTrue(e.getCause() instanceof SQLException);
+        }
+        // The failed query is not kept on the object
+        assertEquals(1, child.findAll().execute(ModelExtension.class).size());
+    }
+
+    @Test
+    public void testUpdateAll_withMissingRecords() throws SQLException {
+        Setup.getConnection().prepareStatement("CREATE TABLE ModelExtension (user_id int, age int)").execute();
+        List<ModelExtension> models = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            models.add(new ModelExtension().setColumn("user_id", i).setColumn("age", 20));
+        }
+        Model.createAll(models.subList(0, 3));
+        for (ModelExtension model : models) {
+            model.changeColumn("age", 40);
+        }
+        Setup.setBatchSize(2);
+        int[] counts;
+        try {
+            counts = Model.updateAll(models, "user_id");
+        } finally {
+            Setup.setBatchSize(500);
+        }
+        assertArrayEquals(new int[] { 1, 1, 1, 0 }, counts);
+        assertEquals(3, child.findAll().where("age = 40").execute(ModelExtension.class).size());
+    }
+
+    @Test
+    public void testUpsert_insertsThenUpdates() throws SQLException {
+        Setup.getConnection().prepareStatement("CREATE TABLE ModelExtension (user_id int PRIMARY KEY, age int)").execute();
+        new ModelExtension().setColumn("user_id", 1).setColumn("age", 20).upsert(ModelExtension.class, "user_id");
+        new ModelExtension().setColumn("user_id", 1).setColumn("age", 21).upsert(ModelExtension.class, "user_id");
+        List<ModelExtension> models = child.findAll().execute(ModelExtension.class);
+        assertEquals(1, models.size());
+        assertEquals(21, models.get(0).get("age"));
+
+        List<ModelExtension> batch = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            batch.add(new ModelExtension().setColumn("user_id", i).setColumn("age", 30 + i));
+        }
+        Model.upsertAll(batch, "user_id");
+        models = child.findAll().orderBy("user_id").execute(ModelExtension.class);
+        assertEquals(3, models.size());
+        assertEquals(31, models.get(1).get("age"));
+    }
+
+    @Test
+    public void testUpsert_withConflictColumnNotSet() {
+        try {
+            child.setColumn("age", 20).upsert(ModelExtension.class, "user_id");
+            assertTrue(false);
+        } catch (InvalidColumnsException e) {
+            // Yay
+        }
+    }
+
+    @Test
+    public void testUpsert_sqlForPostgres() {
+        Set<String> columns = new HashSet<>(Arrays.asList("AGE", "USER_ID"));
+        assertEquals("INSERT INTO ModelExtension (AGE, USER_ID) VALUES (?, ?) " +
+            "ON CONFLICT (user_id) DO UPDATE SET AGE = EXCLUDED.AGE ",
+            SqlTemplates.upsert(Dialect.POSTGRESQL, "ModelExtension", columns, new String[] { "user_id" }).sql);
+        assertEquals("MERGE INTO ModelExtension (AGE, USER_ID) KEY (user_id) VALUES (?, ?) ",
+            SqlTemplates.upsert(Dialect.H2, "ModelExtension", columns, new String[] { "user_id" }).sql);
+    }
+
+    @Test
+    public void testUpdate_writesOnlyChangedColumns() throws SQLException {
+        Setup.getConnection().prepareStatement("CREATE TABLE ModelExtension (user_id int, age int, name varchar(20))").execute();
+        Setup.getConnection().prepareStatement("INSERT INTO ModelExtension VALUES (1, 20, 'before')").execute();
+        ModelExtension loaded = Query.findAll(ModelExtension.class).first();
+
+        // Another writer changes a column this object does not touch
+        Setup.getConnection().prepareStatement("UPDATE ModelExtension SET name = 'after'").execute();
+        loaded.setColumn("age", 21).update("user_id", ModelExtension.class);
+
+        ModelExtension found = Query.findAll(ModelExtension.class).first();
+        assertEquals(21, found.get("age"));
+        assertEquals("after", found.get("name"));
+    }
+
+    @Test
+    public void testUpdate_afterCreateAsync_writesOnlyChangedColumns() throws Exception {
+        Setup.getConnection().prepareStatement("CREATE TABLE ModelExtension (user_id int, age int, name varchar(20))").execute();
+        child.setColumn("user_id", 1).setColumn("age", 20).setColumn("name", "before")
+            .createAsync(ModelExtension.class).get();
+
+        // Another writer changes a column this object does not touch
+        Setup.getConnection().prepareStatement("UPDATE ModelExtension SET name = 'after'").execute();
+        child.setColumn("age", 21).update("user_id", ModelExtension.class);
+
+        ModelExtension found = Query.findAll(ModelExtension.class).first();
+        assertEquals(21, found.get("age"));
+        assertEquals("after", found.get("name"));
+    }
+
+    @Test
+    public void testUpdate_withFailedUpdate_keepsChanges() throws SQLException {
+        Setup.getConnection().prepareStatement("CREATE TABLE ModelExtension (user_id int, age int CHECK (age < 100))")
+            .execute();
+        child.setColumn("user_id", 1).setColumn("age", 10).create(ModelExtension.class);
+        try {
+            child.setColumn("age", 500).update("user_id", ModelExtension.class);
+            // Should throw an error and never get here
+            assertTrue(false);
+        } catch (ResourcePersistenceException e) {
+            assertTrue(e.getCause() instanceof SQLException);
+        }
+        assertEquals(new HashSet<>(Arrays.asList("AGE")), child.changedColumns());
+        assertEquals(10, Query.findAll(ModelExtension.class).first().get("age"));
+
+        // Retrying sends the change again
+        child.setColumn("age", 50).update("user_id", ModelExtension.class);
+        assertEquals(50, Query.findAll(ModelExtension.class).first().get("age"));
+        assertTrue(child.changedColumns().isEmpty());
+    }
+
+    @Test
+    public void testCreate_withDuplicateKey_keepsChanges() throws SQLException {
+        Setup.getConnection().prepareStatement("CREATE TABLE ModelExtension (user_id int PRIMARY KEY, age int)").execute();
+        new ModelExtension().setColumn("user_id", 1).setColumn("age", 10).create(ModelExtension.class);
+        try {
+            child.setColumn("user_id", 1).setColumn("age", 20).create(ModelExtension.class);
+            // Should throw an error and never get here
+            assertTrue(false);
+        } catch (ResourcePersistenceException e) {
+            assertTrue(e.getCause() instanceof SQLException);
+        }
+        assertEquals(new HashSet<>(Arrays.asList("USER_ID", "AGE")), child.changedColumns());
+    }
+
+    @Test
+    public void testUpdate_withNothingChanged() throws SQLException {
+        Setup.getConnection().prepareStatement("CREATE TABLE ModelExtension (user_id int, age int)").execute();
+        Setup.getConnection().prepareStatement("INSERT INTO ModelExtension VALUES (1, 20)").execute();
+        ModelExtension loaded = Query.findAll(ModelExtension.class).first();
+        Setup.getConnection().prepareStatement("DELETE FROM ModelExtension").execute();
+
+        // Would throw for a missing record if it reached the database
+        loaded.setColumn("age", 20).update("user_id", ModelExtension.class);
+        try {
+            loaded.setColumn("age", 22).update("user_id", ModelExtension.class);
+            assertTrue(false);
+        } catch (ResourcePersistenceException e) {
+            // Yay
+        }
+    }
+
     @Test
     public void testCreate_withColumnsInModel_andNoExistingTable() {
         String column0 = "string_column";
@@ -1126,4 +1455,79 @@ public class ModelTester {
         }
         assertNull(models);
     }
+
+    @Test
+    public void testExecuteAsync_withTwoQueriesInFlight() throws Exception {
+        String column0 = "user_id";
+        String column1 = "age";
+        try {
+            String sql = "CREATE TABLE ModelExtension (" +
+            column0 + " int, " +
+            column1 + " int)";
+            PreparedStatement pstmt = Setup.getConnection().prepareStatement(sql);
+            pstmt.execute();
+            sql = "INSERT INTO ModelExtension (" +
+            column0 + ", " +
+            column1 + ") VALUES (0, 23), (1, 22), (2, 18)";
+            pstmt = Setup.getConnection().prepareStatement(sql);
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            assertTrue(false);
+        }
+
+        CompletableFuture<List<ModelExtension>> adults = child.findAll().where(column1 + ">20").executeAsync(ModelExtension.class);
+        CompletableFuture<List<ModelExtension>> everyone = child.findAll().executeAsync(ModelExtension.class);
+
+        assertEquals(2, adults.get().size());
+        assertEquals(3, everyone.get().size());
+        // Async queries don't copy results into the model
+        assertTrue(child.getFieldsAndValues().isEmpty());
+    }
+
+    @Test
+    public void testCreateAsync_andUpdateAsync() throws Exception {
+        String column0 = "user_id";
+        String column1 = "age";
+        try {
+            String sql = "CREATE TABLE ModelExtension (" +
+            column0 + " int, " +
+            column1 + " int)";
+            PreparedStatement pstmt = Setup.getConnection().prepareStatement(sql);
+            pstmt.execute();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            assertTrue(false);
+        }
+
+        child.setColumn(column0, 0).setColumn(column1, 22).createAsync(ModelExtension.class).get();
+        child.setColumn(column1, 23).updateAsync(column0, ModelExtension.class).get();
+
+        List<ModelExtension> models = new ModelExtension().findAll().execute(ModelExtension.class);
+        assertEquals(1, models.size());
+        assertEquals(23, models.get(0).get(column1));
+    }
+
+    @Test
+    public void testUpdateAsync_withNoObjectInTable() throws InterruptedException {
+        String column0 = "user_id";
+        String column1 = "age";
+        try {
+            String sql = "CREATE TABLE ModelExtension (" +
+            column0 + " int, " +
+            column1 + " int)";
+            PreparedStatement pstmt = Setup.getConnection().prepareStatement(sql);
+            pstmt.execute();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            assertTrue(false);
+        }
+
+        try {
+            child.setColumn(column0, 0).setColumn(column1, 22).updateAsync(column0, ModelExtension.class).get();
+            assertTrue(false);
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ResourcePersistenceException);
+        }
+    }
 }
@@ -0,0 +1,179 @@
+package com.revature.javelin;
+
+import static org.junit.Assert.*;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.*;
+
+public class QueryCacheTester {
+
+    private static final Query<ModelExtension> OLDER_THAN = Query.findAll(ModelExtension.class).where("age > ?");
+
+    private static final String REPLICA_URL = "jdbc:h2:mem:javelin_replica;DB_CLOSE_DELAY=-1";
+
+    private QueryCache cache;
+    private Properties props = new Properties();
+
+    @Before
+    public void setup() {
+        try {
+            props.load(new FileReader("src/main/resources/application.properties"));
+            Setup.open(props.getProperty("url"), props.getProperty("username"), props.getProperty("password"));
+            Statement stmt = Setup.getConnection().createStatement();
+            stmt.execute("DROP TABLE IF EXISTS ModelExtension");
+            stmt.execute("CREATE TABLE ModelExtension (user_id int, age int)");
+            stmt.execute("INSERT INTO ModelExtension VALUES (0, 20), (1, 21), (2, 22)");
+            stmt.execute("DROP TABLE IF EXISTS Test");
+            stmt.execute("CREATE TABLE Test (user_id int, name varchar(20))");
+            stmt.execute("INSERT INTO Test VALUES (1, 'one')");
+        } catch (IOException | SQLException e) {
+            e.printStackTrace();
+        }
+        cache = new QueryCache(100, 0);
+        Setup.setQueryCache(cache);
+    }
+
+    @After
+    public void teardown() {
+        Setup.close();
+        Setup.setQueryCache(null);
+    }
+
+    private static int inserted = 0;
+
+    /** Adds a row without javelin, so the cache does not know. */
+    private static void insertBehindCache() throws SQLException {
+        Setup.getConnection().createStatement().execute("INSERT INTO ModelExtension VALUES (" + (10 + inserted++) + ", 30)");
+    }
+
+    @Test
+    public void testExecute_answeredFromCache() throws SQLException {
+        assertEquals(2, OLDER_THAN.execute(20).size());
+        insertBehindCache();
+        List<ModelExtension> cached = OLDER_THAN.execute(20);
+        assertEquals(2, cached.size());
+        // Other parameters are another query
+        assertEquals(4, OLDER_THAN.execute(19).size());
+
+        // Queries built on a model are cached the same way
+        assertEquals(3, new ModelExtension().findAll().where("age > 20").execute(ModelExtension.class).size());
+        insertBehindCache();
+        assertEquals(3, new ModelExtension().findAll().where("age > 20").execute(ModelExtension.class).size());
+        CacheStats stats = cache.getStats();
+        assertEquals(2, stats.getHits());
+        assertEquals(3, stats.getMisses());
+        assertEquals(3, stats.getSize());
+
+        // Each run gets its own objects
+        cached.get(0).setColumn("age", 99);
+        assertEquals(21, OLDER_THAN.execute(20).get(0).get("age"));
+    }
+
+    @Test
+    public void testWrite_evictsQueriesOnTable() {
+        assertEquals(2, OLDER_THAN.execute(20).size());
+        new ModelExtension().setColumn("user_id", 3).setColumn("age", 23).create(ModelExtension.class);
+        assertEquals(3, OLDER_THAN.execute(20).size());
+
+        ModelExtension model = new ModelExtension().findAllById("user_id", 3).execute(ModelExtension.class).get(0);
+        model.setColumn("age", 10);
+        model.update("user_id", ModelExtension.class);
+        assertEquals(2, OLDER_THAN.execute(20).size());
+
+        new ModelExtension().delete().where("user_id = 2").execute(ModelExtension.class);
+        assertEquals(1, OLDER_THAN.execute(20).size());
+    }
+
+    @Test
+    public void testJoin_evictedByWriteToJoinedTable() {
+        Query<ModelExtension> joined =
+            Query.findAll(ModelExtension.class).joinOn(ModelExtensionWithAnnotation.class, "user_id", "user_id");
+        assertEquals(1, joined.execute().size());
+        assertEquals(1, joined.execute().size());
+        assertEquals(1, cache.getStats().getHits());
+
+        new ModelExtensionWithAnnotation().setColumn("user_id", 2).setColumn("name", "two")
+            .create(ModelExtensionWithAnnotation.class);
+        assertEquals(2, joined.execute().size());
+    }
+
+    @Test
+    public void testExecute_inTransactionNotCached() throws SQLException {
+        Setup.inTransaction(session -> {
+            OLDER_THAN.execute(20);
+            OLDER_THAN.execute(20);
+        });
+        assertEquals(0, cache.getStats().getHits() + cache.getStats().getMisses());
+    }
+
+    @Test
+    public void testExecute_onLaggingReplicaNotCached() throws SQLException {
+        String replicaUrl = props.getProperty("replicaUrl", REPLICA_URL);
+        try (Connection replica = DriverManager.getConnection(replicaUrl,
+                props.getProperty("username"), props.getProperty("password"))) {
+            // A replica that has not seen the last rows written to the primary
+            Statement stmt = replica.createStatement();
+            stmt.execute("DROP TABLE IF EXISTS ModelExtension");
+            stmt.execute("CREATE TABLE ModelExtension (user_id int, age int)");
+            stmt.execute("INSERT INTO ModelExtension VALUES (0, 20)");
+            Setup.addReplica(replicaUrl, props.getProperty("username"), props.getProperty("password"));
+
+            new ModelExtension().setColumn("user_id", 3).setColumn("age", 23).create(ModelExtension.class);
+            assertEquals(0, OLDER_THAN.execute(20).size());
+
+            // Once the replica catches up, it is read again
+            stmt.execute("INSERT INTO ModelExtension VALUES (1, 21), (2, 22), (3, 23)");
+            assertEquals(3, OLDER_THAN.execute(20).size());
+            assertEquals(0, cache.getStats().getHits());
+        }
+    }
+
+    @Test
+    public void testExecute_withSchemaInTableName() {
+        Query<ModelExtensionWithSchema> qualified = Query.findAll(ModelExtensionWithSchema.class).where("age > ?");
+        assertEquals(2, qualified.execute(20).size());
+        assertEquals(2, OLDER_THAN.execute(20).size());
+
+        new ModelExtensionWithSchema().setColumn("user_id", 3).setColumn("age", 23).create(ModelExtensionWithSchema.class);
+        assertEquals(3, qualified.execute(20).size());
+        // The same table named without its schema
+        assertEquals(3, OLDER_THAN.execute(20).size());
+
+        new ModelExtension().setColumn("user_id", 4).setColumn("age", 24).create(ModelExtension.class);
+        assertEquals(4, qualified.execute(20).size());
+    }
+
+    @Test
+    public void testTablesRead_withJoinsListsAndSubqueries() {
+        assertEquals(Arrays.asList("USERS", "ORDERS"), Arrays.asList(SqlBuilder.tablesRead(
+            "SELECT * FROM users JOIN orders USING (USER_ID) WHERE name = 'FROM nowhere' ").toArray()));
+        assertEquals(Arrays.asList("A", "B", "C"), Arrays.asList(SqlBuilder.tablesRead(
+            "SELECT * FROM public.a x, \"B\" WHERE id IN (SELECT id FROM c WHERE f(1, 2) > 0) ").toArray()));
+        assertEquals(Arrays.asList("A", "B"), Arrays.asList(SqlBuilder.tablesRead(
+            "SELECT * FROM \"Public\".\"a\", \"Public\".b ").toArray()));
+    }
+
+    @Test
+    public void testTablesRead_withSubqueryFollowedByList() {
+        assertEquals(Arrays.asList("A", "B", "C"), Arrays.asList(SqlBuilder.tablesRead(
+            "SELECT * FROM (SELECT * FROM a) x, b JOIN c ON (b.id = c.id) ").toArray()));
+        assertEquals(Arrays.asList("A", "B", "C"), Arrays.asList(SqlBuilder.tablesRead(
+            "SELECT * FROM a JOIN b ON a.id = b.id, c ").toArray()));
+    }
+
+    @Test
+    public void testTablesRead_withUnknownTables() {
+        assertNull(SqlBuilder.tablesRead("SELECT * FROM generate_series(1, 10) "));
+        assertNull(SqlBuilder.tablesRead("SELECT * FROM (SELECT * FROM a "));
+        assertNull(SqlBuilder.tablesRead("SELECT * FROM 'a' "));
+    }
+}
@@ -0,0 +1,282 @@
+package com.revature.javelin;
+
+import static org.junit.Assert.*;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.revature.javelin.exceptions.InvalidQueryException;
+import com.revature.javelin.exceptions.ResourcePersistenceException;
+
+import org.junit.*;
+
+public class QueryTester {
+
+    private static final Query<ModelExtension> OLDER_THAN =
+        Query.findAll(ModelExtension.class).where("age > ?");
+
+    @Before
+    public void setup() {
+        Properties props = new Properties();
+        try {
+            props.load(new FileReader("src/main/resources/application.properties"));
+            Setup.open(props.getProperty("url"), props.getProperty("username"), props.getProperty("password"));
+
+            Statement stmt = Setup.getConnection().createStatement();
+            stmt.execute("DROP TABLE IF EXISTS ModelExtension");
+            stmt.execute("CREATE TABLE ModelExtension (user_id int, age int)");
+            PreparedStatement pstmt = Setup.getConnection().prepareStatement("INSERT INTO ModelExtension VALUES (?, ?)");
+            for (int i = 0; i < 10; i++) {
+                pstmt.setInt(1, i);
+                pstmt.setInt(2, 20 + i);
+                pstmt.executeUpdate();
+            }
+        } catch (IOException | SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @After
+    public void teardown() {
+        Setup.close();
+    }
+
+    @Test
+    public void testExecute_withDifferentParameters() {
+        assertEquals(9, OLDER_THAN.execute(20).size());
+        assertEquals(2, OLDER_THAN.execute(27).size());
+        assertEquals(0, OLDER_THAN.execute(100).size());
+    }
+
+    @Test
+    public void testExecute_withFailingStatement() {
+        try {
+            OLDER_THAN.execute("not a number");
+            // Should throw an error and never get here
+            assertTrue(false);
+        } catch (ResourcePersistenceException e) {
+            assertTrue(e.getCause() instanceof SQLException);
+        }
+    }
+
+    @Test
+    public void testWhere_leavesOriginalUnchanged() {
+        Query<ModelExtension> narrowed = OLDER_THAN.whereAnd("user_id < ?");
+        assertNotSame(OLDER_THAN, narrowed);
+        assertEquals("SELECT * FROM ModelExtension WHERE age > ? ", OLDER_THAN.getSql());
+        assertEquals("SELECT * FROM ModelExtension WHERE age > ? AND user_id < ? ", narrowed.getSql());
+        assertEquals(3, narrowed.execute(21, 5).size());
+    }
+
+    @Test
+    public void testWhere_withInvalidQuery() {
+        try {
+            Query.findAll(ModelExtension.class).where("; DROP TABLE ModelExtension");
+            assertTrue(false);
+        } catch (InvalidQueryException e) {
+            // Yay
+        }
+    }
+
+    @Test
+    public void testDelete_inSession() throws SQLException {
+        Query<ModelExtension> byId = Query.findAllByColumn(ModelExtension.class, "user_id");
+        try (Session session = Setup.openSession()) {
+            Query.delete(ModelExtension.class).where("user_id = ?").execute(session, 3);
+            assertEquals(0, byId.execute(session, 3).size());
+            assertEquals(1, byId.execute(session, 4).size());
+        }
+    }
+
+    @Test
+    public void testExecute_onManyThreads() throws Exception {
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        List<Future<Integer>> results = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final int age = 20 + t;
+            results.add(threads.submit(() -> OLDER_THAN.execute(age).size()));
+        }
+        for (int t = 0; t < 8; t++) {
+            assertEquals(9 - t, (int) results.get(t).get());
+        }
+        threads.shutdown();
+    }
+
+    @Test
+    public void testNamed_withAnnotatedQueries() {
+        assertEquals(1, Query.named(ModelExtensionWithQueries.class, "byAge").execute(25).size());
+        List<ModelExtensionWithQueries> ids = Query.named(ModelExtensionWithQueries.class, "idsOlderThan").execute(27);
+        assertEquals(2, ids.size());
+        assertNull(ids.get(0).get("age"));
+        assertSame(Query.named(ModelExtensionWithQueries.class, "byAge"),
+            Query.named(ModelExtensionWithQueries.class, "byAge"));
+    }
+
+    @Test
+    public void testNamed_withRegisteredQuery() {
+        Setup.registerQuery("youngest", Query.findAll(ModelExtension.class).where("age = 20"));
+        assertEquals(1, Query.named(ModelExtension.class, "youngest").execute().size());
+        try {
+            Query.named(ModelExtension.class, "missing");
+            assertTrue(false);
+        } catch (InvalidQueryException e) {
+            // Yay
+        }
+    }
+
+    @Test
+    public void testRegister_withInvalidNamedQuery() {
+        try {
+            Setup.register(ModelExtensionWithBadQuery.class);
+            assertTrue(false);
+        } catch (InvalidQueryException e) {
+            // Yay
+        } finally {
+            Setup.unregister(ModelExtensionWithBadQuery.class);
+        }
+    }
+
+    @Test
+    public void testExecute_withDifferentShapesOfSameClass() {
+        ModelExtension full = Query.findAll(ModelExtension.class).where("user_id = ?").execute(2).get(0);
+        ModelExtension partial = Query.findColumns(ModelExtension.class, "age").where("user_id = ?").execute(2).get(0);
+        assertEquals(2, full.getFieldsAndValues().size());
+        assertEquals(22, full.get("age"));
+        assertEquals(1, partial.getFieldsAndValues().size());
+        assertEquals(22, partial.get("age"));
+        assertNull(partial.get("user_id"));
+    }
+
+    @Test
+    public void testStream_givesConnectionBackOnClose() {
+        ConnectionPool pool = Setup.getPool();
+        int borrowed = pool.size() - pool.idleCount();
+        try (Stream<ModelExtension> models = OLDER_THAN.stream(25)) {
+            assertEquals(borrowed + 1, pool.size() - pool.idleCount());
+            List<Integer> ages = models.map(m -> (Integer) m.get("age")).collect(Collectors.toList());
+            assertEquals(4, ages.size());
+        }
+        assertEquals(borrowed, pool.size() - pool.idleCount());
+    }
+
+    @Test
+    public void testIterator_closesWhenExhausted() {
+        Setup.setFetchSize(3);
+        try {
+            ResultIterator<ModelExtension> it = Query.findAll(ModelExtension.class).iterator();
+            int count = 0;
+            while (it.hasNext()) {
+                it.next();
+                count++;
+            }
+            assertEquals(10, count);
+            assertTrue(it.isClosed());
+        } finally {
+            Setup.setFetchSize(1000);
+        }
+    }
+
+    @Test
+    public void testIterator_withMaxStreamRows() {
+        Setup.setMaxStreamRows(5);
+        try (ResultIterator<ModelExtension> it = Query.findAll(ModelExtension.class).iterator()) {
+            for (int i = 0; i < 5; i++) {
+                it.next();
+            }
+            try {
+                it.hasNext();
+                assertTrue(false);
+            } catch (InvalidQueryException e) {
+                // Yay
+            }
+            assertTrue(it.isClosed());
+        } finally {
+            Setup.setMaxStreamRows(0);
+        }
+        // Exactly at the limit is fine
+        Setup.setMaxStreamRows(10);
+        try (Stream<ModelExtension> models = Query.findAll(ModelExtension.class).stream()) {
+            assertEquals(10, models.count());
+        } finally {
+            Setup.setMaxStreamRows(0);
+        }
+    }
+
+    @Test
+    public void testOrderBy_composesWithWhereInAnyOrder() {
+        Query<ModelExtension> oldest = Query.findAll(ModelExtension.class).orderBy("age DESC").limit(3);
+        Query<ModelExtension> narrowed = oldest.where("age < ?");
+        assertEquals("SELECT * FROM ModelExtension WHERE age < ? ORDER BY age DESC LIMIT 3 ", narrowed.getSql());
+        List<ModelExtension> models = narrowed.execute(28);
+        assertEquals(3, models.size());
+        assertEquals(27, models.get(0).get("age"));
+        assertEquals(25, models.get(2).get("age"));
+        assertEquals(24, oldest.offset(5).first().get("age"));
+    }
+
+    @Test
+    public void testFirst_pushesLimitDown() {
+        Query<ModelExtension> byAge = Query.findAll(ModelExtension.class).orderBy("age");
+        assertEquals(21, byAge.where("age > ?").first(20).get("age"));
+        assertNull(OLDER_THAN.first(100));
+        assertEquals("SELECT * FROM ModelExtension ORDER BY age ", byAge.getSql());
+    }
+
+    @Test
+    public void testPages_walksWholeTable() {
+        Iterator<List<ModelExtension>> pages = Query.findAll(ModelExtension.class).pages("user_id", 4);
+        List<Integer> ids = new ArrayList<>();
+        List<Integer> sizes = new ArrayList<>();
+        while (pages.hasNext()) {
+            List<ModelExtension> page = pages.next();
+            sizes.add(page.size());
+            page.forEach(m -> ids.add((Integer) m.get("user_id")));
+        }
+        assertEquals(Arrays.asList(4, 4, 2), sizes);
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), ids);
+
+        // Parameters of the query come before the key
+        pages = OLDER_THAN.pages("user_id", 5, 24);
+        assertEquals(5, pages.next().size());
+        assertFalse(pages.hasNext());
+
+        // A full last page is followed by no empty one
+        pages = Query.findAll(ModelExtension.class).pages("user_id", 5);
+        pages.next();
+        pages.next();
+        assertFalse(pages.hasNext());
+    }
+
+    @Test
+    public void testPages_withOrderBy() {
+        try {
+            Query.findAll(ModelExtension.class).orderBy("age").pages("user_id", 5);
+            assertTrue(false);
+        } catch (InvalidQueryException e) {
+            // Yay
+        }
+    }
+
+    @Test
+    public void testIterator_withDelete() {
+        try {
+            Query.delete(ModelExtension.class).iterator();
+            assertTrue(false);
+        } catch (InvalidQueryException e) {
+            // Yay
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package com.revature.javelin;
+
+import static org.junit.Assert.*;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.revature.javelin.exceptions.InvalidQueryException;
+import com.revature.javelin.exceptions.ResourcePersistenceException;
+
+import org.junit.*;
+
+public class SessionTester {
+
+    @Before
+    public void setup() {
+        Properties props = new Properties();
+        try {
+            props.load(new FileReader("src/main/resources/application.properties"));
+            Setup.open(props.getProperty("url"), props.getProperty("username"), props.getProperty("password"));
+
+            String sql = "DROP TABLE IF EXISTS ModelExtension";
+            PreparedStatement pstmt = Setup.getConnection().prepareStatement(sql);
+            pstmt.execute();
+            sql = "CREATE TABLE ModelExtension (user_id int, age int)";
+            pstmt = Setup.getConnection().prepareStatement(sql);
+            pstmt.execute();
+        } catch (IOException | SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @After
+    public void teardown() {
+        Setup.close();
+    }
+
+    @Test
+    public void testCreate_andFindAll() throws SQLException {
+        try (Session session = Setup.openSession()) {
+            ModelExtension model = new ModelExtension();
+            model.setColumn("user_id", 1).setColumn("age", 30);
+            session.create(model);
+
+            List<ModelExtension> models = session.findAll(ModelExtension.class).execute();
+            assertEquals(1, models.size());
+            assertEquals(1, models.get(0).get("user_id"));
+            assertEquals(30, models.get(0).get("age"));
+        }
+    }
+
+    @Test
+    public void testCreate_withGeneratedPrimaryKey() throws SQLException {
+        Setup.getConnection().prepareStatement("ALTER TABLE ModelExtension ALTER COLUMN user_id int AUTO_INCREMENT").execute();
+        long misses = StatementCache.totalMisses();
+        try (Session session = Setup.openSession()) {
+            for (int i = 0; i < 3; i++) {
+                ModelExtension model = new ModelExtension().setColumn("age", 30 + i);
+                session.create(model, "user_id");
+                assertEquals(i + 1, ((Number) model.get("user_id")).intValue());
+            }
+        }
+        // The insert returning the key is prepared once
+        assertEquals(misses + 1, StatementCache.totalMisses());
+    }
+
+    @Test
+    public void testWhere_withParameters() throws SQLException {
+        try (Session session = Setup.openSession()) {
+            for (int i = 0; i < 5; i++) {
+                session.create(new ModelExtension().setColumn("user_id", i).setColumn("age", 20 + i));
+            }
+            List<ModelExtension> models = session.findAll(ModelExtension.class)
+                                            .where("age > ?", 21)
+                                            .whereAnd("user_id < ?", 4)
+                                            .execute();
+            assertEquals(2, models.size());
+        }
+    }
+
+    @Test
+    public void testUpdate_leavesModelAsPlainData() throws SQLException {
+        try (Session session = Setup.openSession()) {
+            ModelExtension model = new ModelExtension().setColumn("user_id", 1).setColumn("age", 30);
+            session.create(model);
+            model.changeColumn("age", 31);
+            session.update(model, "user_id");
+
+            ModelExtension found = session.findAllById(ModelExtension.class, "user_id", 1).execute().get(0);
+            assertEquals(31, found.get("age"));
+            assertEquals(2, model.getFieldsAndValues().size());
+        }
+    }
+
+    @Test
+    public void testUpdate_writesOnlyChangedColumns() throws SQLException {
+        Setup.getConnection().prepareStatement("ALTER TABLE ModelExtension ADD COLUMN name varchar(20)").execute();
+        try (Session session = Setup.openSession()) {
+            ModelExtension model = new ModelExtension().setColumn("user_id", 1).setColumn("age", 30)
+                .setColumn("name", "before");
+            session.create(model);
+
+            // Another writer changes a column this object does not touch
+            Setup.getConnection().prepareStatement("UPDATE ModelExtension SET name = 'after'").execute();
+            model.changeColumn("age", 31);
+            session.update(model, "user_id");
+
+            ModelExtension found = session.findAllById(ModelExtension.class, "user_id", 1).execute().get(0);
+            assertEquals(31, found.get("age"));
+            assertEquals("after", found.get("name"));
+        }
+    }
+
+    @Test
+    public void testDelete_withWhere() throws SQLException {
+        try (Session session = Setup.openSession()) {
+            session.create(new ModelExtension().setColumn("user_id", 1).setColumn("age", 30));
+            session.create(new ModelExtension().setColumn("user_id", 2).setColumn("age", 40));
+            session.delete(ModelExtension.class).where("user_id = ?", 1).execute();
+            assertEquals(1, session.findAll(ModelExtension.class).execute().size());
+        }
+    }
+
+    @Test
+    public void testExecute_withFailedStatement() throws SQLException {
+        try (Session session = Setup.openSession()) {
+            session.create(new ModelExtension().setColumn("user_id", 1).setColumn("age", 30));
+            try {
+                session.findAll(ModelExtension.class).where("age > ?", "not a number").execute();
+                // Should throw an error and never get here
+                assertTrue(false);
+            } catch (ResourcePersistenceException e) {
+                assertTrue(e.getCause() instanceof SQLException);
+            }
+            try {
+                session.create(new ModelExtension().setColumn("no_such_column", 1));
+                assertTrue(false);
+            } catch (ResourcePersistenceException e) {
+                // Yay
+            }
+        }
+    }
+
+    @Test
+    public void testClose_releasesConnection() throws SQLException {
+        Session session = Setup.openSession();
+        int idle = Setup.getPool().idleCount();
+        session.close();
+        assertEquals(idle + 1, Setup.getPool().idleCount());
+        try {
+            session.findAll(ModelExtension.class).execute();
+            assertTrue(false);
+        } catch (InvalidQueryException e) {
+            // Yay
+        }
+    }
+
+    @Test
+    public void testSessions_onManyThreads() throws Exception {
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        List<Future<?>> results = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int thread = t;
+            results.add(threads.submit(() -> {
+                try (Session session = Setup.openSession()) {
+                    for (int i = 0; i < 25; i++) {
+                        session.create(new ModelExtension()
+                            .setColumn("user_id", thread * 100 + i)
+                            .setColumn("age", thread));
+                    }
+                    assertEquals(25, session.findAll(ModelExtension.class)
+                        .where("age = ?", thread).execute().size());
+                }
+                return null;
+            }));
+        }
+        for (Future<?> result : results) {
+            result.get();
+        }
+        threads.shutdown();
+
+        PreparedStatement pstmt = Setup.getConnection().prepareStatement("SELECT COUNT(*) FROM ModelExtension");
+        ResultSet rs = pstmt.executeQuery();
+        rs.next();
+        assertEquals(100, rs.getInt(1));
+    }
+
+    private int countRows() throws SQLException {
+        PreparedStatement pstmt = Setup.getConnection().prepareStatement("SELECT COUNT(*) FROM ModelExtension");
+        ResultSet rs = pstmt.executeQuery();
+        rs.next();
+        return rs.getInt(1);
+    }
+
+    @Test
+    public void testInTransaction_withModelOperations() throws SQLException {
+        Setup.inTransaction(session -> {
+            new ModelExtension().setColumn("user_id", 1).setColumn("age", 30).create(ModelExtension.class);
+            session.create(new ModelExtension().setColumn("user_id", 2).setColumn("age", 40));
+            // Reads inside the transaction see its own writes
+            assertEquals(2, new ModelExtension().findAll().execute(ModelExtension.class).size());
+        });
+        assertEquals(2, countRows());
+    }
+
+    @Test
+    public void testInTransaction_withException() throws SQLException {
+        try {
+            Setup.inTransaction(session -> {
+                new ModelExtension().setColumn("user_id", 1).setColumn("age", 30).create(ModelExtension.class);
+                // No row to update, throws ResourcePersistenceException
+                new ModelExtension().setColumn("user_id", 5).setColumn("age", 30).update("user_id", ModelExtension.class);
+            });
+            assertTrue(false);
+        } catch (ResourcePersistenceException e) {
+            // Yay
+        }
+        assertEquals(0, countRows());
+    }
+
+    @Test
+    public void testInTransaction_withFailedStatement() throws SQLException {
+        try {
+            Setup.inTransaction(session -> {
+                session.create(new ModelExtension().setColumn("user_id", 1).setColumn("age", 30));
+                session.create(new ModelExtension().setColumn("no_such_column", 1));
+            });
+            assertTrue(false);
+        } catch (ResourcePersistenceException e) {
+            // Yay, the failed statement throws right away
+        }
+        assertEquals(0, countRows());
+    }
+
+    @Test
+    public void testInTransaction_withIsolationAndNesting() throws SQLException {
+        try (Session session = Setup.openSession()) {
+            session.inTransaction(java.sql.Connection.TRANSACTION_SERIALIZABLE, false, outer -> {
+                outer.create(new ModelExtension().setColumn("user_id", 1).setColumn("age", 30));
+                Setup.inTransaction(inner ->
+                    inner.create(new ModelExtension().setColumn("user_id", 2).setColumn("age", 40)));
+                assertEquals(java.sql.Connection.TRANSACTION_SERIALIZABLE,
+                    outer.getConnection().getTransactionIsolation());
+            });
+        }
+        assertEquals(2, countRows());
+    }
+
+    @Test
+    public void testIdentityMap_returnsLoadedObjectWithoutQuery() throws SQLException {
+        try (Session session = Setup.openSession()) {
+            for (int i = 0; i < 3; i++) {
+                session.create(new ModelExtension().setColumn("user_id", i).setColumn("age", 20 + i));
+            }
+            ModelExtension unmapped = session.findAllById(ModelExtension.class, "user_id", 1).execute().get(0);
+            assertNotSame(unmapped, session.findAllById(ModelExtension.class, "user_id", 1).execute().get(0));
+
+            session.setIdentityMap(true);
+            ModelExtension first = session.findAllById(ModelExtension.class, "user_id", 1).execute().get(0);
+            // Changed behind the session's back, but no query is run
+            Setup.getConnection().prepareStatement("UPDATE ModelExtension SET age = 99").execute();
+            List<ModelExtension> again = session.findAllById(ModelExtension.class, "user_id", 1).execute();
+            assertEquals(1, again.size());
+            assertSame(first, again.get(0));
+            assertEquals(21, first.get("age"));
+            // Another clause makes it a real query again
+            assertTrue(session.findAllById(ModelExtension.class, "user_id", 1).where("age = ?", 21).execute().isEmpty());
+
+            session.clearIdentityMap();
+            assertEquals(99, session.findAllById(ModelExtension.class, "user_id", 1).execute().get(0).get("age"));
+        }
+    }
+
+    @Test
+    public void testIdentityMap_withPrimaryKeyFromAnnotation() throws SQLException {
+        try (Session session = Setup.openSession()) {
+            for (int i = 0; i < 3; i++) {
+                session.create(new ModelExtension().setColumn("user_id", i).setColumn("age", 20 + i));
+            }
+            session.setIdentityMap(true);
+            List<ModelExtensionWithKey> all = session.findAll(ModelExtensionWithKey.class).execute();
+            assertEquals(3, all.size());
+            assertSame(all.get(2), session.findAllByColumn(ModelExtensionWithKey.class, "user_id", 2).execute().get(0));
+            assertSame(all.get(0), session.findAll(ModelExtensionWithKey.class).where("age < ?", 21).execute().get(0));
+
+            // Rows with some of the columns are not shared
+            ModelExtensionWithKey partial =
+                session.findColumns(ModelExtensionWithKey.class, "user_id").where("user_id = ?", 2).execute().get(0);
+            assertNotSame(all.get(2), partial);
+            assertNull(partial.get("age"));
+
+            // Deleting forgets the table's objects
+            session.delete(ModelExtensionWithKey.class).where("user_id = ?", 2).execute();
+            assertTrue(session.findAllByColumn(ModelExtensionWithKey.class, "user_id", 2).execute().isEmpty());
+        }
+    }
+
+    @Test
+    public void testIdentityMap_forgetsStaleObjectOnWrite() throws SQLException {
+        try (Session session = Setup.openSession()) {
+            session.create(new ModelExtension().setColumn("user_id", 1).setColumn("age", 20));
+            session.setIdentityMap(true);
+            ModelExtension loaded = session.findAllById(ModelExtension.class, "user_id", 1).execute().get(0);
+
+            // Writing the loaded object keeps it
+            loaded.setColumn("age", 21);
+            session.update(loaded, "user_id");
+            assertSame(loaded, session.findAllById(ModelExtension.class, "user_id", 1).execute().get(0));
+
+            // Writing another object for the same row forgets it
+            session.update(new ModelExtension().setColumn("user_id", 1).setColumn("age", 22), "user_id");
+            ModelExtension reloaded = session.findAllById(ModelExtension.class, "user_id", 1).execute().get(0);
+            assertNotSame(loaded, reloaded);
+            assertEquals(22, reloaded.get("age"));
+        }
+    }
+}
@@ -4,8 +4,23 @@ import static org.junit.Assert.*;
 
 import java.io.FileReader;
 import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.revature.javelin.exceptions.InvalidQueryException;
+import com.revature.javelin.exceptions.ResourcePersistenceException;
+
+import org.h2.jdbcx.JdbcDataSource;
 
 import org.junit.*;
 
@@ -141,4 +156,340 @@ public class SetupTester {
             assertTrue(false);
         }
     }
+
+    private static final String REPLICA_URL = "jdbc:h2:mem:javelin_replica;DB_CLOSE_DELAY=-1";
+
+    /**
+     * Opens the primary and one replica, each with a ModelExtension
+     * table holding a single row whose age tells the databases apart.
+     */
+    private void openWithReplica() throws SQLException {
+        Setup.open(props.getProperty("url"), props.getProperty("username"), props.getProperty("password"));
+        Statement stmt = Setup.getConnection().createStatement();
+        stmt.execute("DROP TABLE IF EXISTS ModelExtension");
+        stmt.execute("CREATE TABLE ModelExtension (user_id int, age int)");
+        stmt.execute("INSERT INTO ModelExtension VALUES (1, 10)");
+
+        String replicaUrl = props.getProperty("replicaUrl", REPLICA_URL);
+        try (Connection replica = DriverManager.getConnection(replicaUrl,
+                props.getProperty("username"), props.getProperty("password"))) {
+            stmt = replica.createStatement();
+            stmt.execute("DROP TABLE IF EXISTS ModelExtension");
+            stmt.execute("CREATE TABLE ModelExtension (user_id int, age int)");
+            stmt.execute("INSERT INTO ModelExtension VALUES (1, 20)");
+        }
+        Setup.addReplica(replicaUrl, props.getProperty("username"), props.getProperty("password"));
+    }
+
+    @Test
+    public void testReplica_withSelect() throws SQLException {
+        openWithReplica();
+        List<ModelExtension> models = new ModelExtension().findAll().execute(ModelExtension.class);
+        assertEquals(20, models.get(0).get("age"));
+    }
+
+    @Test
+    public void testReplica_withOnPrimary() throws SQLException {
+        openWithReplica();
+        List<ModelExtension> models = new ModelExtension().findAll().onPrimary().execute(ModelExtension.class);
+        assertEquals(10, models.get(0).get("age"));
+    }
+
+    @Test
+    public void testReplica_withWrite() throws SQLException {
+        openWithReplica();
+        new ModelExtension().setColumn("user_id", 2).setColumn("age", 11).create(ModelExtension.class);
+        // Writes go to the primary only
+        assertEquals(1, new ModelExtension().findAll().execute(ModelExtension.class).size());
+        assertEquals(2, new ModelExtension().findAll().onPrimary().execute(ModelExtension.class).size());
+    }
+
+    @Test
+    public void testReplica_withReadYourWrites() throws SQLException {
+        openWithReplica();
+        Setup.setReadYourWrites(60000);
+        try {
+            new ModelExtension().setColumn("user_id", 2).setColumn("age", 11).create(ModelExtension.class);
+            assertEquals(2, new ModelExtension().findAll().execute(ModelExtension.class).size());
+        } finally {
+            Setup.setReadYourWrites(0);
+        }
+    }
+
+    @Test
+    public void testReplica_withSchema() throws SQLException {
+        openWithReplica();
+        String replicaUrl = props.getProperty("replicaUrl", REPLICA_URL);
+        try (Connection primary = DriverManager.getConnection(props.getProperty("url"),
+                props.getProperty("username"), props.getProperty("password"));
+                Connection replica = DriverManager.getConnection(replicaUrl,
+                props.getProperty("username"), props.getProperty("password"))) {
+            int age = 30;
+            for (Connection db : new Connection[] { primary, replica }) {
+                Statement stmt = db.createStatement();
+                stmt.execute("CREATE SCHEMA IF NOT EXISTS Other");
+                stmt.execute("CREATE TABLE IF NOT EXISTS Other.ModelExtension (user_id int, age int)");
+                stmt.execute("INSERT INTO Other.ModelExtension VALUES (1, " + age + ")");
+                age += 10;
+            }
+            try {
+                Setup.open(props.getProperty("url"), props.getProperty("username"), props.getProperty("password"), "OTHER");
+                Setup.addReplica(replicaUrl, props.getProperty("username"), props.getProperty("password"));
+                assertEquals(40, new ModelExtension().findAll().execute(ModelExtension.class).get(0).get("age"));
+
+                // Also changed on replicas that were already added
+                Setup.setSchema("PUBLIC");
+                assertEquals(20, new ModelExtension().findAll().execute(ModelExtension.class).get(0).get("age"));
+            } finally {
+                for (Connection db : new Connection[] { primary, replica }) {
+                    Statement stmt = db.createStatement();
+                    stmt.execute("DROP TABLE Other.ModelExtension");
+                    stmt.execute("DROP SCHEMA Other");
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testReplica_withReadOnlySession() throws SQLException {
+        openWithReplica();
+        try (Session session = Setup.openReadOnlySession()) {
+            assertEquals(20, session.findAll(ModelExtension.class).execute().get(0).get("age"));
+            session.create(new ModelExtension().setColumn("user_id", 2));
+            assertTrue(false);
+        } catch (InvalidQueryException e) {
+            // Yay
+        }
+    }
+
+    @Test
+    public void testOpen_withDataSource() throws SQLException {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL(props.getProperty("url"));
+        dataSource.setUser(props.getProperty("username"));
+        dataSource.setPassword(props.getProperty("password"));
+        Setup.open(dataSource);
+        assertNotNull(Setup.getConnection());
+        assertFalse(Setup.getConnection().isClosed());
+    }
+
+    @Test
+    public void testOpen_withPoolSizeOfOne() throws SQLException {
+        Setup.setPoolSize(1, 1);
+        Setup.setBorrowTimeout(500);
+        try {
+            Setup.open(props.getProperty("url"), props.getProperty("username"), props.getProperty("password"));
+            Statement stmt = Setup.getConnection().createStatement();
+            stmt.execute("DROP TABLE IF EXISTS ModelExtension");
+            stmt.execute("CREATE TABLE ModelExtension (user_id int, age int)");
+            new ModelExtension().setColumn("user_id", 1).setColumn("age", 20).create(ModelExtension.class);
+            new ModelExtension().setColumn("user_id", 2).setColumn("age", 30).create(ModelExtension.class);
+            List<ModelExtension> found = new ModelExtension().findAll().execute(ModelExtension.class);
+            assertEquals(2, found.size());
+            assertEquals(1, Setup.getPool().size());
+        } finally {
+            Setup.setPoolSize(1, 10);
+            Setup.setBorrowTimeout(30000);
+        }
+    }
+
+    @Test
+    public void testCreate_withPrimaryKey_andNoFreeConnection() throws SQLException {
+        Setup.setPoolSize(1, 1);
+        Setup.setBorrowTimeout(100);
+        Connection held = null;
+        try {
+            Setup.open(props.getProperty("url"), props.getProperty("username"), props.getProperty("password"));
+            Statement stmt = Setup.getConnection().createStatement();
+            stmt.execute("DROP TABLE IF EXISTS ModelExtension");
+            stmt.execute("CREATE TABLE ModelExtension (user_id int auto_increment, age int)");
+            held = Setup.borrowConnection();
+            try {
+                new ModelExtension().setColumn("age", 20).create(ModelExtension.class, "user_id");
+                // Should throw an error and never get here
+                assertTrue(false);
+            } catch (ResourcePersistenceException e) {
+                assertTrue(e.getCause() instanceof SQLException);
+            }
+        } finally {
+            Setup.releaseConnection(held);
+            Setup.setPoolSize(1, 10);
+            Setup.setBorrowTimeout(30000);
+        }
+    }
+
+    @Test
+    public void testWarmUp_withRegisteredModel() throws SQLException {
+        Setup.open(props.getProperty("url"), props.getProperty("username"), props.getProperty("password"));
+        Statement stmt = Setup.getConnection().createStatement();
+        stmt.execute("DROP TABLE IF EXISTS ModelExtension");
+        stmt.execute("CREATE TABLE ModelExtension (user_id int, age int)");
+        Setup.register(ModelExtension.class);
+        try {
+            Setup.warmUp(4);
+            assertTrue(Setup.getPool().size() >= 4);
+        } finally {
+            Setup.unregister(ModelExtension.class);
+        }
+    }
+
+    @Test
+    public void testWarmUp_preparesStatementsOnPrimaryAndReplicas() throws SQLException {
+        Setup.open(props.getProperty("url"), props.getProperty("username"), props.getProperty("password"));
+        String replicaUrl = props.getProperty("replicaUrl", REPLICA_URL);
+        try (Connection replica = DriverManager.getConnection(replicaUrl,
+                props.getProperty("username"), props.getProperty("password"))) {
+            for (Connection db : new Connection[] { Setup.getConnection(), replica }) {
+                Statement stmt = db.createStatement();
+                stmt.execute("DROP TABLE IF EXISTS ModelExtension");
+                stmt.execute("CREATE TABLE ModelExtension (user_id int auto_increment PRIMARY KEY, age int)");
+            }
+        }
+        Setup.addReplica(replicaUrl, props.getProperty("username"), props.getProperty("password"));
+        Setup.register(ModelExtensionWithKey.class);
+        try {
+            Setup.warmUp(2);
+            long misses = Setup.getStatementCacheMisses();
+            new ModelExtensionWithKey().setColumn("age", 20).create(ModelExtensionWithKey.class, "user_id");
+            new ModelExtensionWithKey().findAllById("user_id", 1).execute(ModelExtensionWithKey.class);
+            assertEquals(misses, Setup.getStatementCacheMisses());
+        } finally {
+            Setup.unregister(ModelExtensionWithKey.class);
+        }
+    }
+
+    @Test
+    public void testStatementCache_withRepeatedQuery() throws SQLException {
+        Setup.open(props.getProperty("url"), props.getProperty("username"), props.getProperty("password"));
+        Statement stmt = Setup.getConnection().createStatement();
+        stmt.execute("DROP TABLE IF EXISTS ModelExtension");
+        stmt.execute("CREATE TABLE ModelExtension (user_id int, age int)");
+        long hits = Setup.getStatementCacheHits();
+        long misses = Setup.getStatementCacheMisses();
+        for (int i = 0; i < 3; i++) {
+            new ModelExtension().findAll().execute(ModelExtension.class);
+        }
+        assertEquals(misses + 1, Setup.getStatementCacheMisses());
+        assertEquals(hits + 2, Setup.getStatementCacheHits());
+    }
+
+    @Test
+    public void testSchemaCache_withRepeatedQuery() throws SQLException {
+        Setup.open(props.getProperty("url"), props.getProperty("username"), props.getProperty("password"));
+        Statement stmt = Setup.getConnection().createStatement();
+        stmt.execute("DROP TABLE IF EXISTS ModelExtension");
+        stmt.execute("CREATE TABLE ModelExtension (user_id int, age int)");
+        assertEquals(0, Setup.getSchemaCache().size());
+        new ModelExtension().findAll().execute(ModelExtension.class);
+        new ModelExtension().findAll().execute(ModelExtension.class);
+        assertEquals(1, Setup.getSchemaCache().size());
+        assertEquals(2, Setup.getSchemaCache().columnsOf(Setup.getConnection(), "ModelExtension").size());
+    }
+
+    @Test
+    public void testSchemaCache_withSimilarTableNames() throws SQLException {
+        Setup.open(props.getProperty("url"), props.getProperty("username"), props.getProperty("password"));
+        Statement stmt = Setup.getConnection().createStatement();
+        stmt.execute("DROP TABLE IF EXISTS Model_X");
+        stmt.execute("DROP TABLE IF EXISTS ModelAX");
+        stmt.execute("CREATE TABLE Model_X (user_id int)");
+        // Matches Model_X when _ is read as a wildcard
+        stmt.execute("CREATE TABLE ModelAX (age int)");
+        try {
+            assertEquals(1, Setup.getSchemaCache().columnsOf(Setup.getConnection(), "Model_X").size());
+        } finally {
+            stmt.execute("DROP TABLE Model_X");
+            stmt.execute("DROP TABLE ModelAX");
+        }
+    }
+
+    @Test
+    public void testSchemaCache_withTableInOtherSchema() throws SQLException {
+        Setup.open(props.getProperty("url"), props.getProperty("username"), props.getProperty("password"));
+        Statement stmt = Setup.getConnection().createStatement();
+        stmt.execute("DROP TABLE IF EXISTS ModelExtension");
+        stmt.execute("CREATE TABLE ModelExtension (user_id int, age int)");
+        stmt.execute("CREATE SCHEMA IF NOT EXISTS Other");
+        stmt.execute("CREATE TABLE IF NOT EXISTS Other.ModelExtension (name varchar(20))");
+        try {
+            assertEquals(2, Setup.getSchemaCache().columnsOf(Setup.getConnection(), "ModelExtension").size());
+        } finally {
+            stmt.execute("DROP TABLE Other.ModelExtension");
+            stmt.execute("DROP SCHEMA Other");
+        }
+    }
+
+    @Test
+    public void testSchemaCache_withDroppedTable() throws SQLException {
+        Setup.open(props.getProperty("url"), props.getProperty("username"), props.getProperty("password"));
+        Statement stmt = Setup.getConnection().createStatement();
+        stmt.execute("DROP TABLE IF EXISTS ModelExtension");
+        stmt.execute("CREATE TABLE ModelExtension (user_id int, age int)");
+        new ModelExtension().findAll().execute(ModelExtension.class);
+        stmt.execute("DROP TABLE ModelExtension");
+        try {
+            new ModelExtension().findAll().execute(ModelExtension.class);
+            assertTrue(false);
+        } catch (ResourcePersistenceException e) {
+            // Yay
+        }
+        assertEquals(0, Setup.getSchemaCache().size());
+    }
+
+    @Test
+    public void testWarmUp_withMissingTable() throws SQLException {
+        Setup.open(props.getProperty("url"), props.getProperty("username"), props.getProperty("password"));
+        Setup.getConnection().createStatement().execute("DROP TABLE IF EXISTS Test");
+        Setup.register(ModelExtensionWithAnnotation.class);
+        try {
+            Setup.warmUp(2);
+            assertTrue(false);
+        } catch (ResourcePersistenceException e) {
+            // Yay
+        } finally {
+            Setup.unregister(ModelExtensionWithAnnotation.class);
+        }
+    }
+
+    @Test
+    public void testSetVirtualThreads_withAsyncQuery() throws Exception {
+        Setup.open(props.getProperty("url"), props.getProperty("username"), props.getProperty("password"));
+        Statement stmt = Setup.getConnection().createStatement();
+        stmt.execute("DROP TABLE IF EXISTS ModelExtension");
+        stmt.execute("CREATE TABLE ModelExtension (user_id int, age int)");
+        stmt.execute("INSERT INTO ModelExtension VALUES (1, 10)");
+        try {
+            assertEquals(VirtualThreads.isSupported(), Setup.setVirtualThreads(true));
+            List<ModelExtension> models = new ModelExtension().findAll()
+                .executeAsync(ModelExtension.class).get(10, TimeUnit.SECONDS);
+            assertEquals(1, models.size());
+        } finally {
+            Setup.setVirtualThreads(false);
+        }
+    }
+
+    @Test
+    public void testBoundedExecutor_capsConcurrency() throws InterruptedException {
+        ExecutorService threads = Executors.newCachedThreadPool();
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger mostRunning = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(20);
+        Executor bounded = VirtualThreads.bounded(threads, 2);
+        for (int i = 0; i < 20; i++) {
+            bounded.execute(() -> {
+                int now = running.incrementAndGet();
+                mostRunning.accumulateAndGet(now, Math::max);
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        threads.shutdown();
+        assertTrue(mostRunning.get() <= 2);
+    }
 }